@@ -0,0 +1,78 @@
+package shack.bench;
+
+import org.openjdk.jmh.annotations.*;
+import shack.Assembler;
+import shack.Options;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Assembles whole files, from reading the Shack source to writing the Hack code: the example programs and generated
+ * programs of 10K, 1M and 10M lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AssembleBenchmark
+{
+    @Param({"example1.shk", "example2.shk", "example3.shk", "example4.shk", "example5.shk", "10000", "1000000", "10000000"})
+    public String program;
+
+    @Param({"false", "true"})
+    public boolean singlePass;
+
+    private Path directory;
+    private String file;
+    private Options options;
+    private PrintStream err;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("shack-bench");
+        if(program.endsWith(".shk"))
+        {
+            file = directory.resolve(program).toString();
+            try(InputStream example = AssembleBenchmark.class.getResourceAsStream("/" + program))
+            {
+                Files.copy(example, Path.of(file));
+            }
+        }
+        else
+        {
+            file = directory.resolve("synthetic" + program + ".shk").toString();
+            SyntheticProgram.write(Path.of(file), Integer.parseInt(program), 42);
+        }
+
+        options = new Options();
+        options.setSinglePass(singlePass);
+        err = new PrintStream(OutputStream.nullOutputStream());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        try(Stream<Path> files = Files.walk(directory))
+        {
+            for(Path path: (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    @Benchmark
+    public void assemble()
+    {
+        Assembler.assembleFile(file, options, err);
+    }
+}
@@ -0,0 +1,71 @@
+package shack.bench;
+
+import org.openjdk.jmh.annotations.*;
+import shack.EmbeddedAssembler;
+import shack.HackEmulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the Hack code of the example programs and of a generated program of 100K lines on the emulator. Every program
+ * is run (and started again whenever it stops) for the same number of instructions, so the score is the number of
+ * Hack instructions run per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmulatorBenchmark
+{
+    private static final int STEPS = 10_000_000; //the instructions run by every operation
+
+    @Param({"example1.shk", "example2.shk", "example3.shk", "example4.shk", "example5.shk", "100000"})
+    public String program;
+
+    private HackEmulator emulator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        byte[] source;
+        if(program.endsWith(".shk"))
+        {
+            try(InputStream example = EmulatorBenchmark.class.getResourceAsStream("/" + program))
+            {
+                source = example.readAllBytes();
+            }
+        }
+        else
+        {
+            Path file = Files.createTempFile("shack-bench", ".shk");
+            SyntheticProgram.write(file, Integer.parseInt(program), 42);
+            source = Files.readAllBytes(file);
+            Files.delete(file);
+        }
+
+        //The examples have errors on purpose, so the code (which leaves out the lines with errors) is run anyway
+        StringBuilder code = new StringBuilder();
+        new EmbeddedAssembler().assemble(ByteBuffer.wrap(source), EmbeddedAssembler.output(code));
+        emulator = HackEmulator.fromAssembly(code.toString().lines().toList());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STEPS)
+    public long run()
+    {
+        long steps = 0;
+        while(steps<STEPS)
+        {
+            emulator.reset();
+            steps += emulator.run(STEPS - steps);
+        }
+        return steps;
+    }
+}
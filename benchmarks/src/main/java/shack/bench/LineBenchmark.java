@@ -0,0 +1,126 @@
+package shack.bench;
+
+import org.openjdk.jmh.annotations.*;
+import shack.AsmEmitter;
+import shack.Assembler;
+import shack.HackInstruction;
+import shack.Lexer;
+import shack.Options;
+import shack.SymbolTable;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-line hot paths of the assembler: sanitising and splitting a line, validating a name, parsing a destination,
+ * converting an instruction and writing its Hack code. Every operation handles one line, so the sample time mode gives
+ * the per-line latency percentiles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineBenchmark
+{
+    @Param({"LOAD D var7", "  STO\tA   var12  ", "ADDD #1234", "JGT label3", "INC"})
+    public String line;
+
+    private ByteBuffer source;
+    private Lexer lexer;
+    private SymbolTable symbols;
+    private Assembler assembler;
+    private AsmEmitter emitter;
+
+    @Setup
+    public void setUp()
+    {
+        source = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        lexer = new Lexer();
+        lexer.scan(source, 0, source.limit());
+
+        symbols = new SymbolTable();
+        for(int i=0; i<64; i++)
+            symbols.intern("var" + i);
+        emitter = new AsmEmitter(Channels.newChannel(OutputStream.nullOutputStream()), symbols);
+
+        //A single-pass assembler converts every line as soon as it is read; the label is defined up front, so the jumps
+        //are not held back
+        Options options = new Options();
+        options.setSinglePass(true);
+        assembler = new Assembler(Channels.newChannel(OutputStream.nullOutputStream()), options,
+                new PrintStream(OutputStream.nullOutputStream()));
+        readLine(".dec");
+        for(int i=0; i<64; i++)
+            readLine("var" + i);
+        readLine(".code");
+        readLine("label3:");
+    }
+
+    /**
+     * Read a line with the assembler that is being benchmarked.
+     * @param text The line
+     */
+    private void readLine(String text)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        assembler.readLine(buffer, 0, buffer.limit(), 0);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        assembler.closeWriter();
+    }
+
+    @Benchmark
+    public int sanitise()
+    {
+        lexer.scan(source, 0, source.limit());
+        return lexer.tokenCount();
+    }
+
+    @Benchmark
+    public int findInvalidChar()
+    {
+        int last = lexer.tokenCount() - 1;
+        return lexer.findInvalidChar(lexer.start(last), lexer.end(last), true);
+    }
+
+    @Benchmark
+    public int parseDestination()
+    {
+        //What the assembler does with an operand: a number, or else a symbol lookup
+        int last = lexer.tokenCount() - 1;
+        int start = lexer.start(last) + (lexer.startsWith(last, '#') ? 1 : 0);
+        int address = lexer.parseAddress(start, lexer.end(last));
+        if(address!=Lexer.NOT_A_NUMBER)
+            return address;
+        return symbols.find(lexer.bytes(), start, lexer.end(last));
+    }
+
+    @Benchmark
+    public void convert()
+    {
+        //Sanitise, parse, dispatch and write the line
+        assembler.readLine(source, 0, source.limit(), 0);
+    }
+
+    @Benchmark
+    public void write()
+    {
+        //The Hack code of LOAD D var7
+        emitter.instruction(HackInstruction.D_EQ_A);
+        emitter.instruction(HackInstruction.AT_R13);
+        emitter.instruction(HackInstruction.M_EQ_D);
+        emitter.symbol(7);
+        emitter.instruction(HackInstruction.D_EQ_M);
+        emitter.instruction(HackInstruction.AT_R13);
+        emitter.instruction(HackInstruction.A_EQ_M);
+    }
+}
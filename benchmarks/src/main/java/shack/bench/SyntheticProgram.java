@@ -0,0 +1,66 @@
+package shack.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates valid Shack programs of a given size, with a realistic mix of instructions.
+ */
+public final class SyntheticProgram
+{
+    private static final String[] OPERATIONS = {"ADDD", "SUBD", "ANDD", "ORD"};
+    private static final String[] NO_OPERAND = {"INC", "DEC", "CLR", "NEG", "NOT"};
+    private static final String[] JUMPS = {"JMP", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE"};
+    private static final int VARIABLES = 64;
+    private static final int LABEL_EVERY = 16; //lines between two labels
+
+    private SyntheticProgram()
+    {
+    }
+
+    /**
+     * Write a program to a file.
+     * @param file The file
+     * @param lines The number of lines of code (the declarations come on top)
+     * @param seed The seed of the random mix of instructions
+     * @throws IOException If the file cannot be written
+     */
+    public static void write(Path file, int lines, long seed) throws IOException
+    {
+        Random random = new Random(seed);
+        int labels = lines/LABEL_EVERY + 1;
+        try(BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            writer.write(".dec\n");
+            for(int i=0; i<VARIABLES; i++)
+                writer.write("var" + i + "\n");
+            writer.write(".code\n");
+
+            for(int line=0; line<lines; line++)
+            {
+                if(line%LABEL_EVERY==0)
+                {
+                    writer.write("label" + line/LABEL_EVERY + ":\n");
+                    continue;
+                }
+
+                String variable = "var" + random.nextInt(VARIABLES);
+                int kind = random.nextInt(10);
+                if(kind<3)
+                    writer.write("LOAD " + (random.nextBoolean() ? "A " : "D ") + (random.nextBoolean() ? variable : "#" + random.nextInt(1000)) + "\n");
+                else if(kind<5)
+                    writer.write("STO " + (random.nextBoolean() ? "A " : "D ") + variable + "\n");
+                else if(kind<7)
+                    writer.write(OPERATIONS[random.nextInt(OPERATIONS.length)] + " " + (random.nextBoolean() ? variable : "#" + random.nextInt(1000)) + "\n");
+                else if(kind<9)
+                    writer.write(NO_OPERAND[random.nextInt(NO_OPERAND.length)] + "\n");
+                else
+                    writer.write(JUMPS[random.nextInt(JUMPS.length)] + " label" + random.nextInt(labels) + "\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package shack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes the Hack instructions as Hack assembly code. The lines are encoded into a large byte buffer, which is reused
+ * and written to the output channel in big chunks.
+ */
+public class AsmEmitter implements Emitter
+{
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private final SymbolTable symbols;
+
+    private byte[] buffer;
+    private ByteBuffer view; //the buffer, as given to the channel
+    private int count; //the number of bytes in the buffer
+    private long flushed; //the number of bytes written to the channel
+    private long hold = Long.MAX_VALUE; //the output position from which the output is held back
+    private int instructions; //the number of instructions written (labels are not instructions)
+    private boolean error;
+
+    /**
+     * Constructor for the AsmEmitter
+     * @param channel The channel to write the code to
+     * @param symbols The symbol table the symbol names are taken from
+     */
+    public AsmEmitter(WritableByteChannel channel, SymbolTable symbols)
+    {
+        this.channel = channel;
+        this.symbols = symbols;
+        buffer = new byte[BUFFER_SIZE];
+        view = ByteBuffer.wrap(buffer);
+    }
+
+    @Override
+    public void instruction(HackInstruction instruction)
+    {
+        put(instruction.line());
+        instructions++;
+    }
+
+    @Override
+    public void address(int address)
+    {
+        instructions++;
+        ensureCapacity(6 + HackInstruction.LINE_SEPARATOR.length);
+        buffer[count++] = '@';
+
+        //Write the digits backwards, from the end of the number
+        int end = count + digits(address);
+        for(int i=end-1; i>=count; i--)
+        {
+            buffer[i] = (byte) ('0' + address % 10);
+            address /= 10;
+        }
+        count = end;
+        put(HackInstruction.LINE_SEPARATOR);
+    }
+
+    /**
+     * Get the number of digits of a number.
+     * @param number The number (0 or more)
+     * @return The number of digits
+     */
+    private static int digits(int number)
+    {
+        int digits = 1;
+        while(number>=10)
+        {
+            number /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    @Override
+    public void symbol(int symbol)
+    {
+        instructions++;
+        byte[] name = symbols.bytes(symbol);
+        ensureCapacity(name.length + 1);
+        buffer[count++] = '@';
+        put(name);
+        put(HackInstruction.LINE_SEPARATOR);
+    }
+
+    @Override
+    public void label(int symbol)
+    {
+        byte[] name = symbols.bytes(symbol);
+        ensureCapacity(name.length + 2);
+        buffer[count++] = '(';
+        put(name);
+        buffer[count++] = ')';
+        put(HackInstruction.LINE_SEPARATOR);
+    }
+
+    /**
+     * Copy the given bytes to the buffer.
+     * @param bytes The bytes
+     */
+    private void put(byte[] bytes)
+    {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    /**
+     * Make sure the given number of bytes fit in the buffer, writing the buffer to the channel if they do not. If the
+     * output is held back and the buffer cannot be written, the buffer grows.
+     * @param length The number of bytes
+     */
+    private void ensureCapacity(int length)
+    {
+        if(count+length<=buffer.length)
+            return;
+
+        flush();
+        if(count+length>buffer.length)
+        {
+            byte[] newBuffer = new byte[Math.max(count+length, buffer.length*2)];
+            System.arraycopy(buffer, 0, newBuffer, 0, count);
+            buffer = newBuffer;
+            view = ByteBuffer.wrap(buffer);
+        }
+    }
+
+    /**
+     * Write the buffer to the channel, up to the position from which the output is held back.
+     */
+    @Override
+    public void flush()
+    {
+        int length = (int) Math.min(count, hold - flushed);
+        if(length<=0)
+            return;
+
+        try{
+            view.clear().limit(length);
+            while(view.hasRemaining())
+                channel.write(view);
+        }catch(IOException ex){
+            error = true;
+        }
+
+        System.arraycopy(buffer, length, buffer, 0, count - length);
+        count -= length;
+        flushed += length;
+    }
+
+    @Override
+    public long position()
+    {
+        return flushed + count;
+    }
+
+    @Override
+    public int instructionCount()
+    {
+        return instructions;
+    }
+
+    @Override
+    public void holdFrom(long position)
+    {
+        hold = position;
+    }
+
+    @Override
+    public void release()
+    {
+        hold = Long.MAX_VALUE;
+    }
+
+    @Override
+    public void cut(long start, long end)
+    {
+        int from = (int) (start - flushed);
+        int to = (int) (end - flushed);
+
+        //Every line that is not a label is an instruction
+        byte lastSeparatorByte = HackInstruction.LINE_SEPARATOR[HackInstruction.LINE_SEPARATOR.length-1];
+        for(int i=from; i<to; i++)
+            if((i==from || buffer[i-1]==lastSeparatorByte) && buffer[i]!='(')
+                instructions--;
+        System.arraycopy(buffer, to, buffer, from, count - to);
+        count -= to - from;
+    }
+
+    @Override
+    public boolean checkError()
+    {
+        return error;
+    }
+
+    @Override
+    public Emitter part()
+    {
+        //The whole part is held in its buffer, so it never needs a channel
+        AsmEmitter part = new AsmEmitter(null, symbols);
+        part.holdFrom(0);
+        return part;
+    }
+
+    @Override
+    public void append(Emitter part)
+    {
+        AsmEmitter code = (AsmEmitter) part;
+        ensureCapacity(code.count);
+        System.arraycopy(code.buffer, 0, buffer, count, code.count);
+        count += code.count;
+        instructions += code.instructions;
+    }
+
+    /**
+     * Write everything that is left (held or not) and close the channel.
+     * @throws IOException If the channel could not be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        release();
+        flush();
+        channel.close();
+    }
+}
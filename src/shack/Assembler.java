@@ -0,0 +1,1631 @@
+package shack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * An assembler that takes as input a file name that contains Shack language code and turns it into Hack code (which is outputted to a different file).
+ *
+ * @author Andrei Constantin (ac2042)
+ */
+public class Assembler
+{
+    private static final String USAGE = "Usage: sham [-s] [-O] [-c] [-W] [-w] [-f asm|hack|bin|sho] [-j threads] [-e max-errors] [-a] [-S] [-A] [-P] [-C cache-directory [--cache-limit megabytes]] file.shk... | directory | 'pattern' | - (or sham -d [-j threads], or sham -l output [-O] [-c] [-W] [-f asm|hack|bin] [-e max-errors] file.sho...)";
+
+    private static final String STANDARD_STREAMS = "-"; //the file name that stands for stdin (and stdout)
+    private static final int NOT_FOUND = -1; //a destination that is not valid
+    private static final int SYMBOL_DESTINATION = -2; //symbol destinations are SYMBOL_DESTINATION - symbol ID
+    private static final int FAILED = -1; //returned instead of a symbol ID when a line has an error
+    private static final Opcode[] OPCODES = Opcode.values(); //by ordinal (values() copies the array every time)
+    static final int PART_SIZE = 1 << 16; //the number of program entries in every part of a second pass that is split
+
+    //Kinds of lines, as returned by scanLine
+    static final int IGNORED_LINE = 0; //an empty line or a comment
+    static final int DEC_DIRECTIVE = 1;
+    static final int CODE_DIRECTIVE = 2;
+    static final int STATEMENT = 3; //a declaration, a label or an instruction
+
+    private final PrintStream err; //where the errors are printed
+    private final Diagnostics diagnostics; //the errors found so far, printed by printErrors
+    private boolean abortingEarly; //whether the assembly stops once the error limit is reached
+    private int lineNumber; //the number of the line being read
+    private AssemblyStats stats; //where the conversions are counted (null if they are not)
+    private CostAnalyzer analyzer; //where the cost of every line is noted (null if it is not)
+    private int converted; //the number of Hack instructions written by the conversions so far
+    private Emitter emitter;
+    private boolean decArea;
+    private Lexer lexer;
+
+    private SymbolTable symbols; //RAM labels, ROM labels and instruction codes
+    private Program program; //the parsed instructions and labels, waiting for their code to be generated
+    private boolean machineCode; //whether the output is machine code, which has to fit in the ROM
+    private ObjectWriter module; //the emitter, if the output is an object module (null otherwise)
+    private int threads = 1; //the number of threads the second pass is split between
+    private BitSet reportedInPart; //the variables reported as not declared, if this converts a part of a second pass
+    private BitSet missingInPart; //the labels reported as not defined, if this converts a part of a second pass
+
+    private boolean singlePass; //whether every line is converted as soon as it is read
+    private HashMap<Integer, ArrayList<Fixup>> fixups; //unresolved forward jumps, by label symbol
+    private HashMap<Integer, ArrayList<Fixup>> variableFixups; //instructions waiting for their variable, by symbol
+    private ArrayDeque<Fixup> pendingFixups; //unresolved forward jumps and variables, in output order
+    private Fixup heldVariable; //the fixup of the instruction being converted, if it waits for its variable
+    private boolean outputComplete; //whether the whole output was written, once the writer has been closed
+
+    public static void main(String[] args)
+    {
+        if(!run(Arrays.asList(args), new Options(), System.err))
+            System.exit(1);
+    }
+
+    /**
+     * Run the assembler with the given command-line arguments.
+     * @param args The arguments
+     * @param options The settings the arguments are added to (and the directory the file names are relative to)
+     * @param err Where the errors are printed
+     * @return true if everything was assembled (or linked) without errors, false if there were errors, a file could
+     *         not be read or written, or the arguments were wrong
+     */
+    static boolean run(List<String> args, Options options, PrintStream err)
+    {
+        ArrayList<String> files = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean watching = false;
+        boolean serving = false;
+        String linked = null; //the name of the linked program, if object modules are linked
+        for(int i=0; i<args.size(); i++)
+            if(args.get(i).equals("-s") || args.get(i).equals("--single-pass"))
+                options.setSinglePass(true);
+            else if(args.get(i).equals("-O") || args.get(i).equals("--optimize"))
+                options.setOptimizing(true);
+            else if(args.get(i).equals("-c") || args.get(i).equals("--control-flow"))
+                options.setFlowOptimizing(true);
+            else if(args.get(i).equals("-W") || args.get(i).equals("--warnings"))
+                options.setReporting(true);
+            else if(args.get(i).equals("-w") || args.get(i).equals("--watch"))
+                watching = true;
+            else if(args.get(i).equals("-d") || args.get(i).equals("--daemon"))
+                serving = true;
+            else if((args.get(i).equals("-j") || args.get(i).equals("--jobs")) && i+1<args.size())
+            {
+                threads = (int)count(args.get(++i), Integer.MAX_VALUE);
+                if(threads==0)
+                {
+                    err.println(USAGE);
+                    return false;
+                }
+            }
+            else if((args.get(i).equals("-e") || args.get(i).equals("--max-errors")) && i+1<args.size())
+            {
+                int limit = (int)count(args.get(++i), Integer.MAX_VALUE);
+                if(limit==0)
+                {
+                    err.println(USAGE);
+                    return false;
+                }
+                options.setErrorLimit(limit);
+            }
+            else if((args.get(i).equals("-l") || args.get(i).equals("--link")) && i+1<args.size())
+                linked = args.get(++i);
+            else if(args.get(i).equals("-a") || args.get(i).equals("--abort-early"))
+                options.setAbortingEarly(true);
+            else if(args.get(i).equals("-S") || args.get(i).equals("--stats"))
+                options.setCollectingStats(true);
+            else if(args.get(i).equals("-A") || args.get(i).equals("--analyze"))
+                options.setAnalyzing(true);
+            else if(args.get(i).equals("-P") || args.get(i).equals("--pipeline"))
+                options.setPipelined(true);
+            else if((args.get(i).equals("-C") || args.get(i).equals("--cache")) && i+1<args.size())
+                options.setCacheDirectory(options.resolve(args.get(++i)));
+            else if(args.get(i).equals("--cache-limit") && i+1<args.size())
+            {
+                long megabytes = count(args.get(++i), Long.MAX_VALUE >> 20);
+                if(megabytes==0)
+                {
+                    err.println(USAGE);
+                    return false;
+                }
+                options.setCacheLimit(megabytes << 20);
+            }
+            else if((args.get(i).equals("-f") || args.get(i).equals("--format")) && i+1<args.size())
+            {
+                Options.Format format = Options.Format.fromName(args.get(++i));
+                if(format==null)
+                {
+                    err.println(USAGE);
+                    return false;
+                }
+                options.setFormat(format);
+            }
+            else
+                files.add(args.get(i));
+
+        if(serving)
+        {
+            AssemblerDaemon.serve(AssemblerDaemon.socket(), threads, err);
+            return true;
+        }
+        if(linked!=null)
+        {
+            if(files.isEmpty() || options.getFormat()==Options.Format.OBJECT ||
+                    !files.stream().allMatch((file)->file.endsWith(Options.Format.OBJECT.extension())))
+            {
+                err.println(USAGE);
+                return false;
+            }
+            return Linker.linkFiles(files, linked, options, err);
+        }
+        if(files.size()==1 && files.get(0).equals(STANDARD_STREAMS))
+            return assembleStream(new FileInputStream(FileDescriptor.in).getChannel(),
+                    new FileOutputStream(FileDescriptor.out).getChannel(), options, err);
+
+        //More than one file (or a whole directory) is assembled as a batch
+        if(files.size()==1 && !BatchAssembler.isPattern(files.get(0), options))
+        {
+            if(watching && files.get(0).endsWith(".shk"))
+            {
+                IncrementalAssembler.watch(files.get(0), options, err);
+                return true;
+            }
+            options.setTranslationThreads(threads);
+            return assembleFile(files.get(0), options, err);
+        }
+        if(!files.isEmpty())
+            return new BatchAssembler(threads, options).run(files, err);
+        err.println(USAGE);
+        return false;
+    }
+
+    /**
+     * Parse the value of an option that counts something, like -j, -e or --cache-limit.
+     * @param value The value, as it was given
+     * @param max The largest value the option takes
+     * @return The value, or 0 if it is not a whole number from 1 to max
+     */
+    private static long count(String value, long max)
+    {
+        try{
+            long count = Long.parseLong(value);
+            return count>0 && count<=max ? count : 0;
+        }catch(NumberFormatException ex)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Assemble the Shack code of a stream into a stream of Hack code, in one pass. The code of every line is written as
+     * soon as no jump before it is still waiting for its label, so only those jumps are held in memory, and the errors
+     * are printed at the end.
+     * @param in The Shack code (it is closed at the end)
+     * @param out Where the Hack code is written (it is closed at the end)
+     * @param options The settings of the assembler (the assembly is always single-pass)
+     * @param err Where the errors are printed
+     * @return true if there were no errors, false otherwise
+     */
+    static boolean assembleStream(ReadableByteChannel in, WritableByteChannel out, Options options, PrintStream err)
+    {
+        options.setSinglePass(true);
+        Assembler assembler = new Assembler(out, options, err);
+        boolean read = true;
+        try(SourceReader reader = SourceReader.pipelined(in))
+        {
+            assembler.readAll(reader);
+        }catch(IOException ex)
+        {
+            err.println("Unable to read the standard input");
+            read = false;
+        }
+
+        assembler.translate();
+        assembler.printErrors();
+        assembler.closeWriter();
+        return read && assembler.succeeded();
+    }
+
+    /**
+     * Assemble the given Shack file into a Hack file with the same name.
+     * @param file The Shack file
+     * @param options The settings of the assembler
+     * @param err Where the errors are printed
+     * @return true if it was assembled without errors, false otherwise
+     */
+    public static boolean assembleFile(String file, Options options, PrintStream err)
+    {
+        //Test if a file has been given and if it has the appropriate suffix.
+        if(file!=null && !file.isEmpty() && file.endsWith(".shk"))
+        {
+            String name = options.resolve(file).toString();
+            String base = name.substring(0, name.length() - ".shk".length());
+
+            //The stats measure an assembly and the cost report is written beside it, so neither is taken from the cache
+            if(options.getCacheDirectory()==null || options.isCollectingStats() || options.isAnalyzing())
+            {
+                Assembler assembler = assemble(file, name, base, null, options, err);
+                return assembler!=null && assembler.succeeded();
+            }
+
+            //A source that has been assembled before with the same settings is replayed from the cache. The source is
+            //read once, so what is stored under its key is what was assembled even if the file changes meanwhile
+            BuildCache cache = new BuildCache(options.getCacheDirectory(), options.getCacheLimit());
+            Path output = Path.of(base + options.getFormat().extension());
+            byte[] source;
+            try{
+                source = Files.readAllBytes(Path.of(name));
+            }catch(IOException ex)
+            {
+                err.println("Unable to read "+file);
+                return false;
+            }
+            String key = cache.key(source, options);
+            int replayed = cache.replay(key, output, err);
+            if(replayed!=BuildCache.MISSED)
+                return replayed==BuildCache.SUCCEEDED;
+
+            ByteArrayOutputStream printed = new ByteArrayOutputStream();
+            Assembler assembler = assemble(file, name, base, source, options, new PrintStream(printed, true,
+                    StandardCharsets.UTF_8));
+            String text = printed.toString(StandardCharsets.UTF_8);
+            err.print(text);
+            if(assembler!=null && !assembler.emitter.checkError())
+                cache.store(key, output, text, assembler.succeeded());
+            return assembler!=null && assembler.succeeded();
+        }
+        err.println(USAGE);
+        return false;
+    }
+
+    /**
+     * Assemble a Shack file into the Hack file with the same name.
+     * @param file The Shack file, as it was given
+     * @param name The Shack file, resolved against the directory of the settings
+     * @param base The name of the Hack file (without its extension)
+     * @param source The contents of the Shack file, if they have been read already (null to read the file)
+     * @param options The settings of the assembler
+     * @param err Where the errors are printed
+     * @return The assembler, once it has written the Hack file, or null if the source could not be read
+     */
+    private static Assembler assemble(String file, String name, String base, byte[] source, Options options,
+                                      PrintStream err)
+    {
+        try{
+            AssemblyStats stats = null;
+            if(options.isCollectingStats() || AssemblyStats.isRecording())
+            {
+                stats = new AssemblyStats(name);
+                stats.start(AssemblyStats.Phase.READ);
+            }
+
+            //Create an assembler with the same name as the given file.
+            Assembler assembler = new Assembler(base, options, err);
+            SourceReader reader = source!=null ? new SourceReader(ByteBuffer.wrap(source)) :
+                    options.isPipelined() ? SourceReader.pipelined(name) : new SourceReader(name);
+            if(stats!=null)
+            {
+                reader.load();
+                assembler.stats = stats;
+                stats.start(AssemblyStats.Phase.DECLARE);
+            }
+
+            //The cost of a line is only known once every label is, so the lines are converted in a second pass
+            if(options.isAnalyzing())
+            {
+                assembler.analyzer = new CostAnalyzer();
+                assembler.singlePass = false;
+            }
+
+            assembler.readAll(reader);
+            if(stats!=null)
+                stats.start(AssemblyStats.Phase.TRANSLATE);
+            assembler.translate();
+            reader.close();
+
+            //Print all the errors (if any)
+            if(stats!=null)
+                stats.start(AssemblyStats.Phase.REPORT);
+            assembler.printErrors();
+            if(assembler.analyzer!=null)
+            {
+                Path report = Path.of(base + ".cost.txt");
+                try{
+                    assembler.analyzer.write(Path.of(name), report);
+                }catch(IOException ex)
+                {
+                    err.println("Unable to write "+report);
+                }
+            }
+
+            if(stats!=null)
+                stats.start(AssemblyStats.Phase.EMIT);
+            assembler.closeWriter();
+
+            if(stats!=null)
+            {
+                stats.finish(reader.lineNumber(), Path.of(base + options.getFormat().extension()));
+                if(options.isCollectingStats())
+                    stats.write(Path.of(base + ".stats.json"), err);
+            }
+            return assembler;
+        }catch(IOException ex)
+        {
+            err.println("Unable to read "+file);
+            return null;
+        }
+    }
+
+    /**
+     * Constructor of the assembler. It generates the output file.
+     *
+     * @param fileName The file name that will be used to create the output file.
+     */
+    public Assembler(String fileName)
+    {
+        this(fileName, false);
+    }
+
+    /**
+     * Constructor of the assembler. It generates the output file.
+     *
+     * @param fileName The file name that will be used to create the output file.
+     * @param singlePass true if every line should be converted as soon as it is declared, false if the conversion happens
+     *                   in a second pass
+     */
+    public Assembler(String fileName, boolean singlePass)
+    {
+        this(fileName, singlePass, System.err);
+    }
+
+    /**
+     * Constructor of the assembler. It generates the output file.
+     *
+     * @param fileName The file name that will be used to create the output file.
+     * @param singlePass true if every line should be converted as soon as it is declared, false if the conversion happens
+     *                   in a second pass
+     * @param err Where the errors are printed
+     */
+    public Assembler(String fileName, boolean singlePass, PrintStream err)
+    {
+        this(fileName, singlePassOptions(singlePass), err);
+    }
+
+    /**
+     * Get the default settings, with the given pass mode.
+     * @param singlePass true if every line should be converted as soon as it is read
+     * @return The settings
+     */
+    private static Options singlePassOptions(boolean singlePass)
+    {
+        Options options = new Options();
+        options.setSinglePass(singlePass);
+        return options;
+    }
+
+    /**
+     * Constructor of the assembler. It generates the output file.
+     *
+     * @param fileName The file name that will be used to create the output file (without its extension).
+     * @param options The settings of the assembler
+     * @param err Where the errors are printed
+     */
+    public Assembler(String fileName, Options options, PrintStream err)
+    {
+        this(openOutput(fileName+options.getFormat().extension(), options, err), options, err);
+    }
+
+    /**
+     * Open the output file.
+     * @param file The name of the output file
+     * @param err Where the errors are printed
+     * @return The channel to the file, or a channel that discards everything if the file could not be created
+     */
+    static WritableByteChannel openOutput(String file, PrintStream err)
+    {
+        try{
+            return FileChannel.open(Path.of(file), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }catch(IOException ex)
+        {
+            err.println("There was an error creating the output file.");
+            return Channels.newChannel(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * Open the output file, to be written on a thread of its own if the assembly is pipelined.
+     * @param file The name of the output file
+     * @param options The settings of the assembler
+     * @param err Where the errors are printed
+     * @return The channel to the file, or a channel that discards everything if the file could not be created
+     */
+    static WritableByteChannel openOutput(String file, Options options, PrintStream err)
+    {
+        WritableByteChannel channel = openOutput(file, err);
+        return options.isPipelined() ? new PipelinedChannel(channel) : channel;
+    }
+
+    /**
+     * Constructor of the assembler.
+     *
+     * @param channel The channel the Hack code is written to (it is closed by closeWriter)
+     * @param options The settings of the assembler
+     * @param err Where the errors are printed
+     */
+    public Assembler(WritableByteChannel channel, Options options, PrintStream err)
+    {
+        this(new SymbolTable(), new Program(), channel, options, err);
+    }
+
+    /**
+     * Constructor of an assembler whose symbol table and program are kept by the caller, so that they can be reused
+     * for the next source.
+     *
+     * @param symbols The symbol table (its variables and labels have to be cleared before another source is read)
+     * @param program The program (it has to be empty)
+     * @param channel The channel the Hack code is written to (it is closed by closeWriter)
+     * @param options The settings of the assembler
+     * @param err Where the errors are printed
+     */
+    Assembler(SymbolTable symbols, Program program, WritableByteChannel channel, Options options, PrintStream err)
+    {
+        this(symbols, program, null, new Diagnostics(errorLimit(options)), err);
+        abortingEarly = options.isAbortingEarly();
+        threads = options.getTranslationThreads();
+        machineCode = isMachineCode(options.getFormat());
+
+        //A module is always translated in two passes, and optimized when it is linked
+        if(options.getFormat()==Options.Format.OBJECT)
+        {
+            module = new ObjectWriter(channel, symbols);
+            emitter = module;
+        }
+        else
+        {
+            singlePass = options.isSinglePass();
+            emitter = createEmitter(channel, symbols, options, err);
+        }
+    }
+
+    /**
+     * Create the emitter of the Hack code for the given settings.
+     * @param channel The channel the Hack code is written to
+     * @param symbols The symbol table the symbol names and addresses are taken from
+     * @param options The settings (the format has to be one of Hack code, not OBJECT)
+     * @param err Where the unused symbols are reported, if they are
+     * @return The emitter
+     */
+    static Emitter createEmitter(WritableByteChannel channel, SymbolTable symbols, Options options, PrintStream err)
+    {
+        Emitter emitter;
+        if(isMachineCode(options.getFormat()))
+            emitter = new HackEncoder(channel, symbols, options.getFormat()==Options.Format.BINARY);
+        else
+            emitter = new AsmEmitter(channel, symbols);
+        if(options.isOptimizing())
+            emitter = new PeepholeOptimizer(emitter);
+        //The whole program is only held back for -c and -W, so that -O on its own keeps streaming (with -c, the peephole
+        //optimizer is also told which registers are read at every label)
+        if(options.isFlowOptimizing() || options.isReporting())
+            emitter = new FlowOptimizer(emitter, symbols, options.isFlowOptimizing(), options.isReporting() ? err : null);
+        return emitter;
+    }
+
+    /**
+     * Check if an output format is Hack machine code, which has to fit in the ROM.
+     * @param format The format
+     * @return true if it is, false otherwise
+     */
+    static boolean isMachineCode(Options.Format format)
+    {
+        return format==Options.Format.HACK || format==Options.Format.BINARY;
+    }
+
+    /**
+     * Get the number of errors kept and printed for the given settings.
+     * @param options The settings of the assembler
+     * @return The error limit (at least 1 if the assembly stops once it is reached), or Diagnostics.NO_LIMIT
+     */
+    static int errorLimit(Options options)
+    {
+        if(options.isAbortingEarly())
+            return Math.max(1, options.getErrorLimit());
+        return options.getErrorLimit();
+    }
+
+    /**
+     * Constructor of a two-pass assembler whose symbol table and program are kept by the caller, so that they can be
+     * reused when the same source is assembled again.
+     *
+     * @param symbols The symbol table (its variables and labels have to be cleared before the source is read again)
+     * @param program The program (it has to be empty)
+     * @param emitter Where the Hack instructions are emitted
+     * @param diagnostics Where the errors are reported
+     * @param err Where the errors are printed
+     */
+    Assembler(SymbolTable symbols, Program program, Emitter emitter, Diagnostics diagnostics, PrintStream err)
+    {
+        this.symbols = symbols;
+        this.program = program;
+        this.emitter = emitter;
+        this.diagnostics = diagnostics;
+        this.err = err;
+        lexer = new Lexer();
+        fixups = new HashMap<>();
+        variableFixups = new HashMap<>();
+        pendingFixups = new ArrayDeque<>();
+
+        //The instruction codes are symbols too, so that they cannot be used as labels (their address is their ordinal)
+        for(Opcode opcode: Opcode.values())
+            symbols.define(symbols.intern(opcode.name()), SymbolTable.OPCODE, 0, opcode.ordinal());
+    }
+
+    /**
+     * Constructor of an assembler that generates the code of a part of the program of another one, on its own thread.
+     * The symbol table and the program are shared, so they are only read (apart from the addresses of the labels in
+     * the part, which are counted from the start of the part until it is merged).
+     *
+     * @param whole The assembler whose program is split
+     * @param emitter Where the Hack instructions of the part are emitted
+     */
+    private Assembler(Assembler whole, Emitter emitter)
+    {
+        symbols = whole.symbols;
+        program = whole.program;
+        this.emitter = emitter;
+        diagnostics = new Diagnostics(Diagnostics.NO_LIMIT);
+        err = whole.err;
+        stats = whole.stats==null ? null : whole.stats.part();
+        fixups = new HashMap<>();
+        variableFixups = new HashMap<>();
+        pendingFixups = new ArrayDeque<>();
+        reportedInPart = new BitSet();
+        missingInPart = new BitSet();
+    }
+
+    /**
+     * Check if the label is not an instruction
+     * @param errors Where the error is reported if it is one
+     * @param label The symbol ID of the label
+     * @param position The position of the label in the scanned line
+     * @return true if it is not, false otherwise
+     */
+    private boolean checkLabelIsNotInstruction(Diagnostics errors, int label, int position)
+    {
+        if(symbols.is(label, SymbolTable.OPCODE))
+            return fail(errors, ErrorCode.OPCODE_AS_LABEL, position, label, null);
+        return true;
+    }
+
+    /**
+     * Record an error of the line that is being parsed.
+     * @param errors Where the error is reported
+     * @param code The kind of error
+     * @param position The position the error starts at in the scanned line
+     * @param argument The character or symbol ID the error is about (0 if there is none)
+     * @param text The text the error is about, for the codes whose argument is text (null otherwise)
+     * @return false, so that the parsing can stop with it
+     */
+    private boolean fail(Diagnostics errors, ErrorCode code, int position, int argument, String text)
+    {
+        errors.report(code, lineNumber, lexer.column(position), argument, text);
+        return false;
+    }
+
+    /**
+     * Report an error of an instruction whose code is being generated.
+     * @param code The kind of error
+     * @param instruction The index of the instruction in the program
+     * @return NOT_FOUND, as the destination of the instruction
+     */
+    private int fail(ErrorCode code, int instruction)
+    {
+        diagnostics.report(code, program.line(instruction), program.column(instruction), program.operand(instruction),
+                null);
+        return NOT_FOUND;
+    }
+
+    /**
+     * Report a jump to a label that has not been defined, unless the label has been reported already.
+     * @param label The symbol ID of the label
+     * @param line The number of the line of the jump
+     * @param column The column of the label in the line of the jump
+     */
+    private void reportMissingLabel(int label, int line, int column)
+    {
+        if(markReported(label, SymbolTable.MISSING))
+            diagnostics.report(ErrorCode.LABEL_NOT_DEFINED, line, column, label, null);
+    }
+
+    /**
+     * Mark a symbol as reported, unless it has been reported already. A part of a second pass keeps its own marks,
+     * since the symbol table is shared; the errors of the symbols reported by earlier parts are dropped when it is
+     * merged.
+     * @param symbol The symbol ID
+     * @param kind SymbolTable.REPORTED for a variable that is not declared, SymbolTable.MISSING for a label that is not
+     *             defined
+     * @return true if it has just been marked, false if it had been reported already
+     */
+    private boolean markReported(int symbol, int kind)
+    {
+        if(reportedInPart!=null)
+        {
+            BitSet marked = kind==SymbolTable.REPORTED ? reportedInPart : missingInPart;
+            if(marked.get(symbol))
+                return false;
+            marked.set(symbol);
+            return true;
+        }
+
+        if(symbols.is(symbol, kind))
+            return false;
+        symbols.mark(symbol, kind);
+        return true;
+    }
+
+    /**
+     * Print the errors found so far: the ones of the lines, in the order they were found, then the instruction labels
+     * that have not been defined.
+     */
+    public void printErrors()
+    {
+        diagnostics.print(err, symbols);
+    }
+
+    /**
+     * Read every line of the source: declare the variables and labels and parse the instructions (which are converted
+     * straight away in single-pass mode). The reading stops early if the assembly is aborted.
+     * @param reader The reader of the source
+     * @throws IOException If the source could not be read
+     */
+    public void readAll(SourceReader reader) throws IOException
+    {
+        while(!isAborted() && reader.nextLine())
+        {
+            readLine(reader.buffer(), reader.lineStart(), reader.lineEnd(), reader.lineNumber());
+
+            //The code of the lines read so far is written out before the reader waits for more of a stream
+            if(reader.endsBlock())
+                emitter.flush();
+        }
+    }
+
+    /**
+     * Finish the assembly once every line has been read: generate the code of the instructions (or, in single-pass
+     * mode, drop the jumps whose labels never showed up and the instructions whose variables were never declared).
+     */
+    public void translate()
+    {
+        //The errors that depend on the rest of the file cannot be told if the assembly stopped early
+        if(isAborted())
+            reportParseErrors();
+        else if(singlePass)
+            resolveRemainingFixups();
+        else
+            generateCode();
+    }
+
+    /**
+     * Get the number of Hack instructions written so far.
+     * @return The number of instructions
+     */
+    public int instructionCount()
+    {
+        return emitter.instructionCount();
+    }
+
+    /**
+     * Get the errors found so far.
+     * @return The errors
+     */
+    public Diagnostics diagnostics()
+    {
+        return diagnostics;
+    }
+
+    /**
+     * Check if the assembly should stop, because it stops at the error limit and the limit has been reached (counting
+     * the errors of the lines that are reported in the second pass).
+     * @return true if it should, false otherwise
+     */
+    public boolean isAborted()
+    {
+        return abortingEarly && diagnostics.count() + program.errors().count()>=diagnostics.limit();
+    }
+
+    /**
+     * Closes the file writer
+     */
+    public void closeWriter()
+    {
+        outputComplete = closeOutput(emitter, machineCode, err);
+    }
+
+    /**
+     * Check if the source was assembled without any errors and the whole output was written (once the writer has
+     * been closed).
+     * @return true if it was, false otherwise
+     */
+    public boolean succeeded()
+    {
+        return diagnostics.count()==0 && outputComplete;
+    }
+
+    /**
+     * Close the emitter of the Hack code, printing what went wrong with the output.
+     * @param emitter The emitter
+     * @param machineCode whether the output is machine code, which has to fit in the ROM
+     * @param err Where the errors are printed
+     * @return true if the whole output was written (and fits in the ROM), false otherwise
+     */
+    static boolean closeOutput(Emitter emitter, boolean machineCode, PrintStream err)
+    {
+        boolean complete = true;
+        try{
+            emitter.close();
+        }
+        catch(IOException ex)
+        {
+            err.println("The output file could not be closed.");
+            complete = false;
+        }
+
+        //Machine code has to fit in the ROM, since its addresses are only 15 bits long (the instructions are counted
+        //once the emitter is closed, since the control-flow optimization only drops them then)
+        if(machineCode && emitter.instructionCount()>HackEncoder.ROM_SIZE)
+        {
+            err.println("The program has "+emitter.instructionCount()+" instructions, but only "+HackEncoder.ROM_SIZE+" fit in ROM.");
+            complete = false;
+        }
+        if(emitter.checkError())
+        {
+            err.println("There was an error writing the output file.");
+            complete = false;
+        }
+        return complete;
+    }
+
+    /**
+     * Write the given Hack instruction to the output file.
+     * @param instruction The instruction
+     */
+    private void write(HackInstruction instruction)
+    {
+        emitter.instruction(instruction);
+        converted++;
+    }
+
+    /**
+     * Write an A-instruction that loads the given destination to the output file.
+     * @param destination The destination (an address or a symbol, as returned by getDestination)
+     */
+    private void writeDestination(int destination)
+    {
+        converted++;
+        if(destination>=0)
+            emitter.address(destination);
+        else
+            emitter.symbol(SYMBOL_DESTINATION - destination);
+    }
+
+    /**
+     * Write the given label to the output file. The label gets the ROM address of the next instruction.
+     * @param label The symbol ID of the label
+     */
+    private void writeLabel(int label)
+    {
+        symbols.setAddress(label, emitter.instructionCount());
+        emitter.label(label);
+    }
+
+    /**
+     * Resolve all the jumps (or instructions) that are waiting for the given label (or variable).
+     * @param waiting The fixups waiting for a symbol: fixups for the labels, variableFixups for the variables
+     * @param symbol The symbol ID of the label that has just been defined (or the variable that has been declared)
+     */
+    private void resolveFixups(HashMap<Integer, ArrayList<Fixup>> waiting, int symbol)
+    {
+        ArrayList<Fixup> resolved = waiting.remove(symbol);
+        if(resolved==null)
+            return;
+
+        for(Fixup fixup: resolved)
+            fixup.resolved = true;
+        while(!pendingFixups.isEmpty() && pendingFixups.peekFirst().resolved)
+            pendingFixups.removeFirst();
+
+        //Only the output after the first jump that is still waiting has to be held back
+        if(pendingFixups.isEmpty())
+            emitter.release();
+        else
+            emitter.holdFrom(pendingFixups.peekFirst().start);
+    }
+
+    /**
+     * Drop the jumps whose labels have not been defined by the end of the file (and the instructions whose variables
+     * have not been declared) and write the rest of the held output. The missing labels and variables are reported, to
+     * be printed by printErrors; a jump to a name that has been declared as a variable since is reported as such, like
+     * it is in two-pass mode.
+     */
+    public void resolveRemainingFixups()
+    {
+        for(Fixup fixup: pendingFixups)
+            if(fixup.resolved)
+                continue;
+            else if(fixup.variable)
+            {
+                if(markReported(fixup.label, SymbolTable.REPORTED))
+                    diagnostics.report(ErrorCode.VARIABLE_NOT_DECLARED, fixup.line, fixup.column, fixup.label, null);
+            }
+            else if(symbols.is(fixup.label, SymbolTable.RAM))
+                diagnostics.report(ErrorCode.VARIABLE_AS_JUMP_TARGET, fixup.line, fixup.column, fixup.label, null);
+            else
+                reportMissingLabel(fixup.label, fixup.line, fixup.column);
+
+        //Remove the code from last to first, so that the positions of the earlier ones stay the same. The ROM addresses
+        //of the removed instructions and the number of instructions removed up to each are kept, in output order
+        int[] cutAddresses = new int[pendingFixups.size()];
+        int[] cutSizes = new int[pendingFixups.size() + 1];
+        int cuts = pendingFixups.size();
+        Iterator<Fixup> iterator = pendingFixups.descendingIterator();
+        while(iterator.hasNext())
+        {
+            Fixup fixup = iterator.next();
+            if(fixup.resolved)
+                continue;
+            emitter.cut(fixup.start, fixup.end);
+            cuts--;
+            cutAddresses[cuts] = fixup.romAddress;
+            cutSizes[cuts] = fixup.size;
+        }
+        cutAddresses = Arrays.copyOfRange(cutAddresses, cuts, cutAddresses.length);
+        cutSizes = Arrays.copyOfRange(cutSizes, cuts, cutSizes.length);
+        for(int i=cutSizes.length-2; i>=0; i--)
+            cutSizes[i] += cutSizes[i+1];
+
+        //The labels move up by the instructions removed before them, which are found with a binary search (rather than
+        //going through every label for every removed jump)
+        if(cutAddresses.length>0)
+            for(int id=0; id<symbols.size(); id++)
+                if(symbols.is(id, SymbolTable.ROM) && symbols.address(id)>cutAddresses[0])
+                {
+                    //The first cut at (or after) the label
+                    int low = 0, high = cutAddresses.length;
+                    while(low<high)
+                    {
+                        int middle = (low + high) >>> 1;
+                        if(cutAddresses[middle]<symbols.address(id))
+                            low = middle + 1;
+                        else
+                            high = middle;
+                    }
+                    symbols.setAddress(id, symbols.address(id) - (cutSizes[0] - cutSizes[low]));
+                }
+
+        fixups.clear();
+        variableFixups.clear();
+        pendingFixups.clear();
+        emitter.release();
+    }
+
+    /**
+     * Read the given Shack line: declare its variable or label, or parse its instruction. In single-pass mode, the code
+     * of the line is generated straight away; otherwise, generateCode has to be called once every line has been read.
+     * @param source The buffer that holds the line of Shack code
+     * @param start The position of the first byte of the line
+     * @param end The position right after the last byte of the line
+     * @param lineNumber The number of the line in the source file
+     */
+    public void readLine(ByteBuffer source, int start, int end, int lineNumber)
+    {
+        //Check if the line is a comment, .dec or .code, and set the boolean variable 'decArea' accordingly.
+        switch(scanLine(source, start, end))
+        {
+            case IGNORED_LINE:
+                return;
+            case DEC_DIRECTIVE:
+                decArea = true;
+                return;
+            case CODE_DIRECTIVE:
+                decArea = false;
+                return;
+        }
+
+        this.lineNumber = lineNumber;
+
+        //Do declarations
+        if(decArea)
+        {
+            int variable = parseVariable(diagnostics);
+            if(variable!=FAILED)
+            {
+                symbols.declareVariable(variable, lineNumber);
+
+                //The instructions waiting for the variable (in single-pass mode) are resolved
+                if(symbols.is(variable, SymbolTable.RAM))
+                    resolveFixups(variableFixups, variable);
+            }
+            return;
+        }
+
+        boolean parsed;
+        if(isLabel()) //Do instruction label
+        {
+            int label = parseLabel(diagnostics);
+            parsed = label!=FAILED && defineLabel(label, lineNumber, lexer.column(0));
+        }
+        else if(singlePass) //Do actual instruction
+            parsed = parseInstruction(diagnostics);
+        else
+        {
+            //The errors found while parsing are reported in the second pass, in the order of the lines
+            parsed = parseInstruction(program.errors());
+            if(!parsed)
+                program.addError();
+        }
+
+        //In single-pass mode, the line is converted straight away
+        if(singlePass && parsed)
+        {
+            generateCode(program.size()-1);
+            program.clear();
+        }
+    }
+
+    /**
+     * Sanitise the given Shack line and split it into tokens, which are kept until the next line is scanned.
+     * @param source The buffer that holds the line of Shack code
+     * @param start The position of the first byte of the line
+     * @param end The position right after the last byte of the line
+     * @return IGNORED_LINE for empty lines and comments, DEC_DIRECTIVE for .dec, CODE_DIRECTIVE for .code and STATEMENT
+     *         for anything else
+     */
+    int scanLine(ByteBuffer source, int start, int end)
+    {
+        lexer.scan(source, start, end);
+        if(lexer.isEmpty() || lexer.isComment())
+            return IGNORED_LINE;
+        if(lexer.lineEquals(".dec"))
+            return DEC_DIRECTIVE;
+        if(lexer.lineEquals(".code"))
+            return CODE_DIRECTIVE;
+        return STATEMENT;
+    }
+
+    /**
+     * Check if the scanned line is an instruction label (it ends with :).
+     * @return true if it is, false otherwise
+     */
+    boolean isLabel()
+    {
+        return lexer.byteAt(lexer.length()-1)==':';
+    }
+
+    /**
+     * Parse the scanned line as a variable declaration.
+     * @param errors Where the error of the line is reported if it has one
+     * @return The symbol ID of the variable, or FAILED
+     */
+    int parseVariable(Diagnostics errors)
+    {
+        return parseName(errors, 0, lexer.length());
+    }
+
+    /**
+     * Parse the scanned line as an instruction label.
+     * @param errors Where the error of the line is reported if it has one
+     * @return The symbol ID of the label, or FAILED
+     */
+    int parseLabel(Diagnostics errors)
+    {
+        //Remove the : at the end of the label
+        return parseName(errors, 0, lexer.length()-1);
+    }
+
+    /**
+     * Check that part of the scanned line is a valid variable or label name, and find its symbol.
+     * @param errors Where the error of the line is reported if it has one
+     * @param start The start of the name
+     * @param end The end of the name
+     * @return The symbol ID, or FAILED
+     */
+    private int parseName(Diagnostics errors, int start, int end)
+    {
+        if(!checkInvalidChar(errors, start, end, false))
+            return FAILED;
+        int symbol = symbols.intern(lexer.bytes(), start, end);
+        return checkLabelIsNotInstruction(errors, symbol, start) ? symbol : FAILED;
+    }
+
+    /**
+     * Get the column the scanned line starts at.
+     * @return The column (in bytes, from 1)
+     */
+    int column()
+    {
+        return lexer.column(0);
+    }
+
+    /**
+     * Define an instruction label and add it to the program, if it has not been defined already (as a label or as a
+     * variable).
+     * @param label The symbol ID of the label
+     * @param lineNumber The number of the line it is defined on
+     * @param column The column it is defined at
+     * @return true if it has been defined, false if it has been reported as an error
+     */
+    boolean defineLabel(int label, int lineNumber, int column)
+    {
+        //The labels of a module are defined when the modules are linked, against the symbols of all of them
+        if(module==null)
+        {
+            if(symbols.is(label, SymbolTable.ROM) || symbols.is(label, SymbolTable.RAM))
+            {
+                diagnostics.report(symbols.is(label, SymbolTable.ROM) ? ErrorCode.LABEL_DEFINED_TWICE :
+                        ErrorCode.LABEL_DEFINED_AS_VARIABLE, lineNumber, column, label, null);
+                return false;
+            }
+            symbols.define(label, SymbolTable.ROM, lineNumber, SymbolTable.NO_ADDRESS);
+        }
+        program.addLabel(label, lineNumber, column);
+        return true;
+    }
+
+    /**
+     * Generate the code of every instruction and label that has been read, reporting the errors of the ones that cannot
+     * be converted.
+     */
+    public void generateCode()
+    {
+        //Stopping at the error limit depends on the errors of all the instructions before
+        //The cost of the lines is noted in order, so it is never split
+        Emitter part = threads>1 && !abortingEarly && analyzer==null && program.size()>PART_SIZE ? emitter.part() : null;
+        if(part!=null)
+            generateCodeInParts(part);
+        else
+            generateCode(0, program.size());
+        program.clear();
+    }
+
+    /**
+     * Generate the code of some of the instructions and labels that have been read.
+     * @param start The index of the first entry in the program
+     * @param end The index after the last entry
+     */
+    private void generateCode(int start, int end)
+    {
+        for(int i=start; i<end && !(abortingEarly && diagnostics.isFull()); i++)
+            generateCode(i);
+    }
+
+    /**
+     * Generate the code of the program in parts, on a pool of threads. Once the symbols are declared, the code of every
+     * instruction depends only on the instruction and the symbol table, so every part gets its own assembler, output
+     * and errors. The parts are then merged in order, so the output and the errors are the same as if the code had been
+     * generated in one go.
+     * @param first The emitter of the first part
+     */
+    private void generateCodeInParts(Emitter first)
+    {
+        int count = (program.size() + PART_SIZE - 1) / PART_SIZE;
+        Assembler[] parts = new Assembler[count];
+        ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(Math.min(threads, count));
+        try{
+            for(int i=0; i<count; i++)
+            {
+                Assembler part = new Assembler(this, i==0 ? first : emitter.part());
+                int start = i*PART_SIZE;
+                int end = Math.min(start + PART_SIZE, program.size());
+                parts[i] = part;
+                tasks.add(pool.submit(()->part.generateCode(start, end)));
+            }
+
+            //Merge every part as soon as it and the ones before it are done
+            for(int i=0; i<count; i++)
+            {
+                tasks.get(i).join();
+                merge(parts[i], i*PART_SIZE, Math.min((i+1)*PART_SIZE, program.size()));
+                parts[i] = null;
+            }
+        }finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Add the code and the errors of a part of the program to the ones before it.
+     * @param part The assembler that generated the code of the part
+     * @param start The index of the first entry of the part in the program
+     * @param end The index after the last entry
+     */
+    private void merge(Assembler part, int start, int end)
+    {
+        //The labels of the part got the ROM addresses of their instructions in the part
+        int base = emitter.instructionCount();
+        for(int i=start; i<end; i++)
+            if(program.kind(i)==Program.LABEL)
+                symbols.setAddress(program.operand(i), base + symbols.address(program.operand(i)));
+        emitter.append(part.emitter);
+
+        //A symbol that is not declared (or defined) is only reported the first time it is used in the whole program
+        Diagnostics errors = part.diagnostics;
+        for(int i=0; i<errors.size(); i++)
+        {
+            ErrorCode code = errors.code(i);
+            if(code==ErrorCode.VARIABLE_NOT_DECLARED && !markReported(errors.argument(i), SymbolTable.REPORTED))
+                continue;
+            if(code==ErrorCode.LABEL_NOT_DEFINED && !markReported(errors.argument(i), SymbolTable.MISSING))
+                continue;
+            diagnostics.report(errors, i, errors.line(i));
+        }
+
+        converted += part.converted;
+        if(stats!=null)
+            stats.addConversions(part.stats);
+    }
+
+    /**
+     * Report the errors of the lines that could not be parsed, without generating any code (the other errors depend on
+     * the lines that have not been read when the assembly stops early).
+     */
+    public void reportParseErrors()
+    {
+        for(int i=0; i<program.size() && !diagnostics.isFull(); i++)
+            if(program.kind(i)==Program.ERROR)
+                generateCode(i);
+        program.clear();
+    }
+
+    /**
+     * Generate the code of an instruction or label. If it cannot be converted, its error is reported instead.
+     * @param entry The index of its entry in the program
+     */
+    void generateCode(int entry)
+    {
+        if(program.kind(entry)==Program.LABEL)
+        {
+            if(module!=null)
+                module.locate(program.line(entry), program.column(entry));
+
+            //The jumps waiting for the label (in single-pass mode) are resolved
+            if(analyzer!=null)
+                analyzer.label(program.line(entry), program.operand(entry), converted);
+            writeLabel(program.operand(entry));
+            resolveFixups(fixups, program.operand(entry));
+        }
+        else if(program.kind(entry)==Program.ERROR)
+            diagnostics.report(program.errors(), program.operand(entry), program.line(entry));
+        else if(module!=null && (program.kind(entry)==Program.SYMBOL || program.kind(entry)==Program.IMMEDIATE_SYMBOL))
+        {
+            //Whether the symbol is a variable or a label is only known once the modules are linked, so the code of the
+            //instruction is marked, to be dropped then if the symbol is not what the instruction needs
+            int use = program.opcode(entry).isJump() ? ObjectModule.USE_JUMP : ObjectModule.USE_VARIABLE;
+            module.locate(program.line(entry), program.column(entry));
+            module.reference(program.operand(entry), use);
+            convert(entry);
+            module.endReference();
+        }
+        else
+            convert(entry);
+    }
+
+    /**
+     * Convert an instruction.
+     * @param entry The index of its entry in the program
+     */
+    private void convert(int entry)
+    {
+        convertCounted(entry);
+
+        //The code of an instruction that waits for its variable ends here
+        if(heldVariable!=null)
+        {
+            heldVariable.end(emitter);
+            heldVariable = null;
+        }
+    }
+
+    /**
+     * Convert an instruction, counting its code if the conversions are counted or the costs noted.
+     * @param entry The index of its entry in the program
+     */
+    private void convertCounted(int entry)
+    {
+        if(stats==null && analyzer==null)
+            convert(entry, program.opcode(entry));
+        else
+        {
+            //The instructions are counted as they are converted, before -O removes any
+            Opcode opcode = program.opcode(entry);
+            int before = converted;
+            convert(entry, opcode);
+            if(stats!=null)
+                stats.countConversion(opcode, converted - before);
+            if(analyzer!=null)
+            {
+                analyzer.instruction(program.line(entry), before, converted - before);
+                if(opcode.isJump() && converted>before)
+                    analyzer.jump(program.line(entry), converted - 1,
+                            program.kind(entry)==Program.SYMBOL ? program.operand(entry) : CostAnalyzer.NONE,
+                            program.operand(entry));
+            }
+        }
+    }
+
+    /**
+     * Convert an instruction by the form of its code.
+     * @param entry The index of its entry in the program
+     * @param opcode Its instruction code
+     */
+    private void convert(int entry, Opcode opcode)
+    {
+        switch(opcode.form())
+        {
+            case NO_OPERAND:
+                write(opcode.hack(true));
+                break;
+            case D_REGISTER:
+                writeDRegister(entry, opcode);
+                break;
+            case JUMP:
+                writeJump(entry, opcode);
+                break;
+            case STORE:
+                writeStore(entry);
+                break;
+            case LOAD:
+                writeLoad(entry);
+                break;
+        }
+    }
+
+    /**
+     * Check if an invalid character exists in part of the current line.
+     * @param errors Where the error is reported if there is one
+     * @param start The start of the code
+     * @param end The end of the code
+     * @param canStartWithNumber true if the destination can start with a number, false otherwise
+     * @return true if there is none, false otherwise
+     */
+    private boolean checkInvalidChar(Diagnostics errors, int start, int end, boolean canStartWithNumber)
+    {
+        int position = lexer.findInvalidChar(start, end, canStartWithNumber);
+        if(position==Lexer.EMPTY)
+            return fail(errors, ErrorCode.EMPTY_NAME, start, 0, null);
+        if(position!=Lexer.VALID)
+            return fail(errors, ErrorCode.ILLEGAL_CHARACTER, position, lexer.charAt(position, end), null);
+        return true;
+    }
+
+    /**
+     * Parse the scanned line as an instruction and add it to the program. If it is not a valid instruction, its error
+     * is reported instead (the errors that depend on which symbols are declared are only found when its code is
+     * generated).
+     * @param errors Where the error of the line is reported if it has one
+     * @return true if the instruction has been added, false otherwise
+     */
+    boolean parseInstruction(Diagnostics errors)
+    {
+        Lexer line = lexer;
+
+        //Search the instruction for invalid characters
+        if(!checkInvalidChar(errors, line.start(0), line.end(0), false))
+            return false;
+
+        int symbol = symbols.find(line.bytes(), line.start(0), line.end(0));
+        if(!symbols.is(symbol, SymbolTable.OPCODE))
+            return fail(errors, ErrorCode.ILLEGAL_OPCODE, line.start(0), 0, line.line());
+        Opcode opcode = OPCODES[symbols.address(symbol)];
+
+        if(line.tokenCount()!=opcode.form().operands() + 1)
+            return fail(errors, ErrorCode.INCORRECT_NUMBER_OF_OPERANDS, line.start(0), symbol, null);
+        switch(opcode.form())
+        {
+            case NO_OPERAND:
+                program.add(opcode, Program.NONE, Program.NONE, 0, lineNumber, line.column(line.start(0)));
+                return true;
+            case LOAD:
+            case STORE:
+                //Check instruction validity
+                if(!(line.tokenIs(1, 'A') || line.tokenIs(1, 'D')))
+                    return fail(errors, ErrorCode.ILLEGAL_OPERAND, line.start(1), 0, line.token(1));
+                int register = line.tokenIs(1, 'A') ? Program.REGISTER_A : Program.REGISTER_D;
+
+                //The other register can be loaded (LOAD A D, LOAD D A), but nothing can be stored to a number
+                if(opcode.form()==Opcode.Form.LOAD && line.tokenIs(2, register==Program.REGISTER_A ? 'D' : 'A'))
+                {
+                    program.add(opcode, register, register==Program.REGISTER_A ? Program.REGISTER_D : Program.REGISTER_A, 0,
+                            lineNumber, line.column(line.start(2)));
+                    return true;
+                }
+                return addInstruction(errors, opcode, register, line, 2);
+            default: //the d-register instructions and the jumps
+                return addInstruction(errors, opcode, Program.NONE, line, 1);
+        }
+    }
+
+    /**
+     * Add an instruction whose operand is a destination (a number or a symbol, either of which can be immediate) to the
+     * program. If the destination is not valid, its error is reported instead.
+     * @param errors Where the error of the line is reported if it has one
+     * @param opcode The instruction code
+     * @param register The register operand (or Program.NONE)
+     * @param line The instruction
+     * @param token The index of the destination token
+     * @return true if the instruction has been added, false otherwise
+     */
+    private boolean addInstruction(Diagnostics errors, Opcode opcode, int register, Lexer line, int token)
+    {
+        boolean immediate = line.startsWith(token, '#');
+        if(immediate && !opcode.form().allowsImmediate()) //nothing can be stored to a number or jumped to from one
+            return fail(errors, ErrorCode.ILLEGAL_OPERAND, line.start(token), 0, line.token(token));
+        int start = line.start(token) + (immediate ? 1 : 0);
+        int end = line.end(token);
+
+        //Check if it is a label or a number
+        int address = line.parseAddress(start, end);
+
+        //Check if the destination is a valid number
+        if(address==Lexer.OUT_OF_RANGE)
+            return fail(errors, ErrorCode.ILLEGAL_OPERAND, start, 0, line.text(start, end));
+        if(address!=Lexer.NOT_A_NUMBER)
+        {
+            program.add(opcode, register, immediate ? Program.IMMEDIATE : Program.ADDRESS, address, lineNumber,
+                    line.column(line.start(token)));
+            return true;
+        }
+
+        //A symbol has to start with a letter, since variables and labels do
+        if(!checkInvalidChar(errors, start, end, true) || !checkInvalidChar(errors, start, end, false))
+            return false;
+        program.add(opcode, register, immediate ? Program.IMMEDIATE_SYMBOL : Program.SYMBOL,
+                symbols.intern(line.bytes(), start, end), lineNumber, line.column(line.start(token)));
+        return true;
+    }
+
+    /**
+     * Convert load instructions.
+     * @param instruction The index of the instruction in the program
+     */
+    private void writeLoad(int instruction)
+    {
+        //Do different things depending on whether the second part is A or D
+        if(program.register(instruction)==Program.REGISTER_A)
+        {
+            if(program.kind(instruction)==Program.REGISTER_D)
+                write(HackInstruction.A_EQ_D);
+            else
+            {
+                //Check the validity of the label (if one is provided)
+                int dest = getDestination(instruction, false);
+
+                if(dest!=NOT_FOUND) {
+                    writeDestination(dest);
+                    if(!program.isImmediate(instruction))
+                        write(HackInstruction.A_EQ_M);
+                }
+            }
+        }
+        else
+        {
+            if(program.kind(instruction)==Program.REGISTER_A)
+                write(HackInstruction.D_EQ_A);
+            else
+            {
+                //Check the validity of the label (if one is provided)
+                int dest = getDestination(instruction, false);
+                if(dest!=NOT_FOUND) {
+                    //Save A
+                    write(HackInstruction.D_EQ_A);
+                    write(HackInstruction.AT_R13);
+                    write(HackInstruction.M_EQ_D);
+
+                    //Load D
+                    writeDestination(dest);
+                    if (program.isImmediate(instruction))
+                        write(HackInstruction.D_EQ_A);
+                    else
+                        write(HackInstruction.D_EQ_M);
+                    //Restore A
+                    write(HackInstruction.AT_R13);
+                    write(HackInstruction.A_EQ_M);
+                }
+            }
+        }
+    }
+
+    /**
+     * Convert store instructions.
+     * @param instruction The index of the instruction in the program
+     */
+    private void writeStore(int instruction)
+    {
+        //Check the validity of the label (if one is provided)
+        int dest = getDestination(instruction, false);
+        if(dest!=NOT_FOUND)
+        {
+            //Convert the instruction
+            if (program.register(instruction)==Program.REGISTER_A)
+                write(HackInstruction.D_EQ_A);
+            writeDestination(dest);
+            write(HackInstruction.M_EQ_D);
+        }
+    }
+
+    /**
+     * Convert d-register instructions (ADDD, ANDD etc.)
+     * @param instruction The index of the instruction in the program
+     * @param opcode Its instruction code
+     */
+    private void writeDRegister(int instruction, Opcode opcode)
+    {
+        //Check the validity of the label (if one is provided)
+        int dest = getDestination(instruction, false);
+
+        if(dest!=NOT_FOUND) {
+            //Convert the instruction
+            writeDestination(dest);
+
+            write(opcode.hack(program.isImmediate(instruction)));
+        }
+    }
+
+    /**
+     * Convert a jump instruction.
+     * @param instruction The index of the instruction in the program
+     * @param opcode Its instruction code
+     */
+    private void writeJump(int instruction, Opcode opcode)
+    {
+        //Check the validity of the label (if one is provided)
+        int destination;
+        Fixup fixup = null;
+        int label = program.operand(instruction);
+        if(program.kind(instruction)==Program.SYMBOL && module==null && !symbols.is(label, SymbolTable.ROM) &&
+                !symbols.is(label, SymbolTable.RAM))
+        {
+            if(!singlePass)
+            {
+                reportMissingLabel(label, program.line(instruction), program.column(instruction));
+                return;
+            }
+
+            //The label may still be defined later on, so the jump is held until then
+            destination = SYMBOL_DESTINATION - label;
+            fixup = hold(fixups, label, instruction, false);
+        }
+        else
+        {
+            destination = getDestination(instruction, true);
+            if(destination==NOT_FOUND)
+                return;
+        }
+
+        //Convert the instruction
+        writeDestination(destination);
+        write(opcode.hack(false));
+
+        if(fixup!=null)
+            fixup.end(emitter);
+    }
+
+    /**
+     * Hold back the code of an instruction (and everything after it) until its symbol is defined, in single-pass mode.
+     * The fixup has to be ended once the code of the instruction has been written.
+     * @param waiting Where the fixup waits for its symbol: fixups for a label, variableFixups for a variable
+     * @param symbol The symbol ID of the label or variable
+     * @param instruction The index of the instruction in the program
+     * @param variable true if the symbol has to be a variable, false if it has to be a label
+     * @return The fixup
+     */
+    private Fixup hold(HashMap<Integer, ArrayList<Fixup>> waiting, int symbol, int instruction, boolean variable)
+    {
+        Fixup fixup = new Fixup(symbol, variable, program.line(instruction), program.column(instruction),
+                emitter.position(), emitter.instructionCount());
+        waiting.computeIfAbsent(symbol, (id)->new ArrayList<>()).add(fixup);
+        if(pendingFixups.isEmpty())
+            emitter.holdFrom(fixup.start);
+        pendingFixups.addLast(fixup);
+        return fixup;
+    }
+
+    /**
+     * Get the destination of the given instruction. If it's a number, return it as it is, otherwise check if the label
+     * exists and return its symbol (as SYMBOL_DESTINATION - symbol ID). If the destination is not valid, its error is
+     * reported (unless it has been reported already) and the destination will be NOT_FOUND
+     * @param instruction The index of the instruction in the program
+     * @param isJump true if the destination is a jump destination (whose label has been defined as something), false
+     *               otherwise
+     */
+    private int getDestination(int instruction, boolean isJump)
+    {
+        int symbol = program.operand(instruction);
+        if(program.kind(instruction)==Program.ADDRESS || program.kind(instruction)==Program.IMMEDIATE)
+            return symbol;
+        if(module!=null) //checked when the modules are linked
+            return SYMBOL_DESTINATION - symbol;
+
+        if(isJump)
+        {
+            if(!symbols.is(symbol, SymbolTable.ROM)) //If a variable was used as a jump destination, report it
+                return fail(ErrorCode.VARIABLE_AS_JUMP_TARGET, instruction);
+        }
+        else if(!symbols.is(symbol, SymbolTable.RAM)) {
+            //In single-pass mode the variable may still be declared later on, so the instruction is held until then
+            if(singlePass && !symbols.is(symbol, SymbolTable.ROM))
+            {
+                heldVariable = hold(variableFixups, symbol, instruction, true);
+                return SYMBOL_DESTINATION - symbol;
+            }
+            if(markReported(symbol, SymbolTable.REPORTED))
+                return fail(ErrorCode.VARIABLE_NOT_DECLARED, instruction);
+            else
+                return NOT_FOUND;
+        }
+
+        return SYMBOL_DESTINATION - symbol;
+    }
+
+    /**
+     * A jump to a label that had not been defined when the jump was converted (or, in single-pass mode, an instruction
+     * whose variable had not been declared yet).
+     */
+    private static class Fixup
+    {
+        private final int label; //the label (or variable), reported if it is never defined
+        private final boolean variable; //whether the symbol has to be a variable rather than a label
+        private final int line; //where the instruction is
+        private final int column;
+        private final long start; //output position of the converted instruction
+        private long end;
+        private final int romAddress; //ROM address of the converted instruction
+        private int size; //the number of Hack instructions it was converted to
+        private boolean resolved;
+
+        /**
+         * Constructor for the Fixup
+         * @param label The symbol ID of the label (or variable)
+         * @param variable true if the symbol has to be a variable, false if it has to be a label
+         * @param line The number of the line of the instruction
+         * @param column The column of the symbol in the line of the instruction
+         * @param start The output position of the converted instruction
+         * @param romAddress The ROM address of the converted instruction
+         */
+        private Fixup(int label, boolean variable, int line, int column, long start, int romAddress)
+        {
+            this.label = label;
+            this.variable = variable;
+            this.line = line;
+            this.column = column;
+            this.start = start;
+            this.romAddress = romAddress;
+        }
+
+        /**
+         * Mark the end of the code of the instruction, once it has been written.
+         * @param emitter The emitter it has been written to
+         */
+        private void end(Emitter emitter)
+        {
+            end = emitter.position();
+            size = emitter.instructionCount() - romAddress;
+        }
+    }
+}
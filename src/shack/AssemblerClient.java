@@ -0,0 +1,87 @@
+package shack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A thin launcher for the assembler daemon. It takes the same arguments as the assembler, sends them to the daemon,
+ * prints the errors that come back and exits with the status the daemon sends after them (1 if the connection is
+ * lost). If no daemon is running (or the files are to be watched, the standard input assembled or a daemon started),
+ * it assembles the files itself.
+ *
+ * The client still pays for starting a JVM (only the loading and warming up of the assembler is saved); the sham script
+ * speaks the same protocol without one.
+ */
+public class AssemblerClient
+{
+    public static void main(String[] args)
+    {
+        //Watching and serving never finish, and the standard input of the daemon is not this one, so they are always
+        //done here
+        List<String> arguments = Arrays.asList(args);
+        SocketChannel daemon = null;
+        if(!arguments.contains("-w") && !arguments.contains("--watch") && !arguments.contains("-d") &&
+                !arguments.contains("--daemon") && !arguments.contains("-"))
+            daemon = connect();
+        if(daemon==null)
+        {
+            Assembler.main(args);
+            return;
+        }
+
+        try(SocketChannel channel = daemon)
+        {
+            StringBuilder request = new StringBuilder(System.getProperty("user.dir")).append('\n');
+            for(String argument: args)
+                request.append(argument).append('\n');
+            request.append('\n');
+
+            OutputStream out = Channels.newOutputStream(channel);
+            out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            //The last byte is the status, so every byte is only printed once another one has come after it
+            InputStream in = Channels.newInputStream(channel);
+            byte[] buffer = new byte[8192];
+            int status = -1;
+            for(int read=in.read(buffer); read>0; read=in.read(buffer))
+            {
+                if(status>=0)
+                    System.err.write(status);
+                System.err.write(buffer, 0, read-1);
+                status = buffer[read-1] & 0xFF;
+            }
+            System.err.flush();
+
+            if(status==-1) //the daemon went away before answering
+                throw new IOException();
+            if(status!=AssemblerDaemon.SUCCEEDED)
+                System.exit(1);
+        }catch(IOException ex)
+        {
+            System.err.println("The connection to the daemon was lost.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Connect to the daemon.
+     * @return The connection, or null if no daemon is listening
+     */
+    private static SocketChannel connect()
+    {
+        try{
+            return SocketChannel.open(UnixDomainSocketAddress.of(AssemblerDaemon.socket()));
+        }catch(IOException | UnsupportedOperationException ex)
+        {
+            return null;
+        }
+    }
+}
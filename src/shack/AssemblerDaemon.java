@@ -0,0 +1,133 @@
+package shack;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A resident assembler, which takes assembly requests over a Unix domain socket, so that a run does not pay for starting
+ * a JVM and loading (and warming up) the assembler every time.
+ *
+ * A request is the working directory of the client, then its command-line arguments, one per line, then an empty line
+ * (all in UTF-8). The errors are sent back as they would have been printed, followed by a status byte (SUCCEEDED or
+ * FAILED, the exit status the assembler would have had), and the connection is closed once the request is done. Every
+ * request gets its own assemblers and runs on its own thread of the pool.
+ */
+public class AssemblerDaemon
+{
+    static final int SUCCEEDED = 0; //the status byte of a request that succeeded
+    static final int FAILED = 1; //the status byte of a request that failed or was refused
+
+    /**
+     * Get the socket the daemon listens on: the SHAM_SOCKET environment variable, or sham-(user name).sock in the
+     * temporary directory.
+     * @return The path of the socket
+     */
+    public static Path socket()
+    {
+        String socket = System.getenv("SHAM_SOCKET");
+        if(socket!=null && !socket.isEmpty())
+            return Path.of(socket);
+        return Path.of(System.getProperty("java.io.tmpdir"), "sham-"+System.getProperty("user.name")+".sock");
+    }
+
+    /**
+     * Listen on the given socket and handle requests until the process is stopped.
+     * @param socket The path of the socket
+     * @param threads The largest number of requests handled at the same time
+     * @param err Where the errors of the daemon itself are printed
+     */
+    public static void serve(Path socket, int threads, PrintStream err)
+    {
+        //A socket file left behind by a daemon that was killed is replaced, but a running daemon is not
+        try{
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+            err.println("A daemon is already listening on "+socket);
+            return;
+        }catch(IOException ex)
+        {
+            //Nothing is listening
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try(ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX))
+        {
+            Files.deleteIfExists(socket);
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Runtime.getRuntime().addShutdownHook(new Thread(()->{
+                try{
+                    Files.deleteIfExists(socket);
+                }catch(IOException ex)
+                {
+                    //The socket file is replaced by the next daemon anyway
+                }
+            }));
+
+            while(true)
+            {
+                SocketChannel client = server.accept();
+                pool.execute(()->handle(client));
+            }
+        }catch(IOException ex)
+        {
+            err.println("Unable to listen on "+socket);
+        }finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Handle a request.
+     * @param client The connection to the client
+     */
+    private static void handle(SocketChannel client)
+    {
+        try(client)
+        {
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(client),
+                    StandardCharsets.UTF_8));
+            PrintStream err = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(client)), false,
+                    StandardCharsets.UTF_8);
+
+            String directory = in.readLine();
+            ArrayList<String> arguments = new ArrayList<>();
+            for(String argument=in.readLine(); argument!=null && !argument.isEmpty(); argument=in.readLine())
+                arguments.add(argument);
+            if(directory==null)
+                return;
+
+            //Watching and serving never finish, so they are left to the client's own process
+            boolean succeeded = false;
+            if(arguments.contains("-w") || arguments.contains("--watch") || arguments.contains("-d") ||
+                    arguments.contains("--daemon"))
+                err.println("The daemon cannot watch files or start another daemon.");
+            else if(arguments.contains("-")) //the standard input of the daemon is not the client's
+                err.println("The daemon cannot assemble the standard input.");
+            else
+            {
+                Options options = new Options();
+                options.setDirectory(Path.of(directory));
+                succeeded = Assembler.run(arguments, options, err);
+            }
+            err.write(succeeded ? SUCCEEDED : FAILED);
+            err.flush();
+        }catch(IOException ex)
+        {
+            //The client has gone away
+        }
+    }
+}
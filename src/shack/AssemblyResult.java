@@ -0,0 +1,151 @@
+package shack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of the assembly of a source by an EmbeddedAssembler: its errors (in the order the command line prints
+ * them), the problems with the output and the number of Hack instructions written.
+ */
+public class AssemblyResult
+{
+    private final List<Diagnostic> errors;
+    private final int omittedErrors;
+    private final List<String> outputErrors;
+    private final int instructionCount;
+
+    /**
+     * An error found in the source.
+     */
+    public static class Diagnostic
+    {
+        private final ErrorCode code;
+        private final int line;
+        private final int column;
+        private final String message;
+
+        /**
+         * Constructor for the Diagnostic
+         * @param code The kind of error
+         * @param line The number of the line it is on
+         * @param column The column it starts at (in bytes, from 1), or 0 if it is about the whole line
+         * @param message The message, as the command line prints it
+         */
+        private Diagnostic(ErrorCode code, int line, int column, String message)
+        {
+            this.code = code;
+            this.line = line;
+            this.column = column;
+            this.message = message;
+        }
+
+        /**
+         * Get the kind of error.
+         * @return The kind of error
+         */
+        public ErrorCode code()
+        {
+            return code;
+        }
+
+        /**
+         * Get the number of the line the error is on (from 1).
+         * @return The line number
+         */
+        public int line()
+        {
+            return line;
+        }
+
+        /**
+         * Get the column the error starts at.
+         * @return The column (in bytes, from 1), or 0 if the error is about the whole line
+         */
+        public int column()
+        {
+            return column;
+        }
+
+        /**
+         * Get the message of the error.
+         * @return The message
+         */
+        public String message()
+        {
+            return message;
+        }
+
+        @Override
+        public String toString()
+        {
+            return line+":"+column+": "+message;
+        }
+    }
+
+    /**
+     * Constructor for the AssemblyResult. The messages are put together straight away, since the symbol table is
+     * reused for the next source.
+     * @param diagnostics The errors found in the source
+     * @param symbols The symbol table the symbol names are taken from
+     * @param outputErrors The problems with the output, one per message
+     * @param instructionCount The number of Hack instructions written
+     */
+    AssemblyResult(Diagnostics diagnostics, SymbolTable symbols, List<String> outputErrors, int instructionCount)
+    {
+        int[] order = diagnostics.order(symbols);
+        ArrayList<Diagnostic> errors = new ArrayList<>(order.length);
+        for(int index: order)
+            errors.add(new Diagnostic(diagnostics.code(index), diagnostics.line(index), diagnostics.column(index),
+                    diagnostics.message(index, symbols)));
+        this.errors = Collections.unmodifiableList(errors);
+        omittedErrors = diagnostics.omitted(symbols);
+        this.outputErrors = Collections.unmodifiableList(outputErrors);
+        this.instructionCount = instructionCount;
+    }
+
+    /**
+     * Check if the source was assembled without any errors and the whole output was written.
+     * @return true if it was, false otherwise
+     */
+    public boolean isSuccessful()
+    {
+        return errors.isEmpty() && outputErrors.isEmpty();
+    }
+
+    /**
+     * Get the errors found in the source, up to the error limit.
+     * @return The errors, in the order the command line prints them
+     */
+    public List<Diagnostic> errors()
+    {
+        return errors;
+    }
+
+    /**
+     * Get the number of errors left out because there were more than the error limit.
+     * @return The number of errors
+     */
+    public int omittedErrors()
+    {
+        return omittedErrors;
+    }
+
+    /**
+     * Get the problems with the output (e.g. a program that does not fit in ROM, or output that could not be written).
+     * @return The messages, as the command line prints them
+     */
+    public List<String> outputErrors()
+    {
+        return outputErrors;
+    }
+
+    /**
+     * Get the number of Hack instructions written.
+     * @return The number of instructions
+     */
+    public int instructionCount()
+    {
+        return instructionCount;
+    }
+}
@@ -0,0 +1,380 @@
+package shack;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures where the time of the assembly of a file goes: the wall time, CPU time and allocated bytes of every phase,
+ * the lines read, the bytes written and the number of Hack instructions the lines of every instruction code were
+ * converted to.
+ *
+ * The phases are measured at their boundaries only, so measuring costs next to nothing. The measurements are committed
+ * as JFR events (shack.Assembly, shack.Phase and shack.Opcode) and can be written to a JSON file as well. The CPU time
+ * and the allocations are the ones of the thread that assembles the file, so they leave out the parts of a second pass
+ * that is split between threads.
+ */
+public class AssemblyStats
+{
+    /**
+     * The phases of an assembly, in the order they run in.
+     */
+    public enum Phase
+    {
+        READ, //loading the source into memory
+        DECLARE, //the first pass (which converts the lines as well in single-pass mode)
+        TRANSLATE, //the second pass (or, in single-pass mode, dropping the jumps whose labels never showed up)
+        REPORT, //printing the errors
+        EMIT //writing the rest of the output and closing it
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final Opcode[] OPCODES = Opcode.values();
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final String file;
+    private final long[] wallTimes = new long[PHASES.length]; //nanoseconds
+    private final long[] cpuTimes = new long[PHASES.length]; //nanoseconds, or -1 if they cannot be measured
+    private final long[] allocations = new long[PHASES.length]; //bytes, or -1 if they cannot be measured
+    private final long[] opcodeLines = new long[OPCODES.length];
+    private final long[] opcodeInstructions = new long[OPCODES.length];
+    private long lines;
+    private long bytesWritten;
+
+    private final AssemblyEvent event;
+    private Phase phase; //the phase that is running, or null
+    private PhaseEvent phaseEvent;
+    private long wallStart;
+    private long cpuStart;
+    private long allocationStart;
+
+    /**
+     * Check if a JFR recording wants the assembly events.
+     * @return true if it does, false otherwise
+     */
+    public static boolean isRecording()
+    {
+        return EventType.getEventType(AssemblyEvent.class).isEnabled();
+    }
+
+    /**
+     * Constructor for the AssemblyStats. The assembly starts being measured straight away.
+     * @param file The Shack file that is assembled
+     */
+    public AssemblyStats(String file)
+    {
+        this.file = file;
+        event = new AssemblyEvent();
+        event.begin();
+    }
+
+    /**
+     * End the phase that is running (if any) and start the given one.
+     * @param next The phase that starts
+     */
+    public void start(Phase next)
+    {
+        end();
+        phase = next;
+        phaseEvent = new PhaseEvent();
+        phaseEvent.begin();
+        wallStart = System.nanoTime();
+        cpuStart = cpuTime();
+        allocationStart = allocatedBytes();
+    }
+
+    /**
+     * End the phase that is running, if any.
+     */
+    private void end()
+    {
+        if(phase==null)
+            return;
+
+        int i = phase.ordinal();
+        wallTimes[i] += System.nanoTime() - wallStart;
+        long cpu = cpuTime();
+        cpuTimes[i] = cpu<0 ? -1 : cpuTimes[i] + cpu - cpuStart;
+        long allocated = allocatedBytes();
+        allocations[i] = allocated<0 ? -1 : allocations[i] + allocated - allocationStart;
+
+        phaseEvent.end();
+        if(phaseEvent.shouldCommit())
+        {
+            phaseEvent.file = file;
+            phaseEvent.phase = phase.name().toLowerCase();
+            phaseEvent.cpuTime = cpu<0 ? -1 : cpu - cpuStart;
+            phaseEvent.allocated = allocated<0 ? -1 : allocated - allocationStart;
+            phaseEvent.commit();
+        }
+        phase = null;
+    }
+
+    /**
+     * Get the CPU time of the current thread.
+     * @return The CPU time in nanoseconds, or -1 if it cannot be measured
+     */
+    private static long cpuTime()
+    {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * Get the number of bytes the current thread has allocated so far.
+     * @return The number of bytes, or -1 if they cannot be measured
+     */
+    private static long allocatedBytes()
+    {
+        if(threads instanceof com.sun.management.ThreadMXBean)
+        {
+            com.sun.management.ThreadMXBean memory = (com.sun.management.ThreadMXBean) threads;
+            if(memory.isThreadAllocatedMemorySupported() && memory.isThreadAllocatedMemoryEnabled())
+                return memory.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    /**
+     * Record the conversion of a line.
+     * @param opcode The instruction code of the line
+     * @param instructions The number of Hack instructions it was converted to
+     */
+    public void countConversion(Opcode opcode, int instructions)
+    {
+        opcodeLines[opcode.ordinal()]++;
+        opcodeInstructions[opcode.ordinal()] += instructions;
+    }
+
+    /**
+     * Create the stats of a part of the assembly that runs on another thread, whose conversions are added to these
+     * ones by addConversions. The part is not measured, and its events are never committed.
+     * @return The stats of the part
+     */
+    public AssemblyStats part()
+    {
+        return new AssemblyStats(file);
+    }
+
+    /**
+     * Add the conversions counted by the stats of a part of the assembly.
+     * @param part The stats of the part, as created by part
+     */
+    public void addConversions(AssemblyStats part)
+    {
+        for(int i=0; i<OPCODES.length; i++)
+        {
+            opcodeLines[i] += part.opcodeLines[i];
+            opcodeInstructions[i] += part.opcodeInstructions[i];
+        }
+    }
+
+    /**
+     * End the last phase and commit the events of the assembly.
+     * @param lines The number of lines read
+     * @param output The output file, whose size is the number of bytes written
+     */
+    public void finish(long lines, Path output)
+    {
+        end();
+        this.lines = lines;
+        try{
+            bytesWritten = Files.size(output);
+        }catch(IOException ex)
+        {
+            bytesWritten = 0; //the output file could not be created
+        }
+
+        event.end();
+        if(event.shouldCommit())
+        {
+            event.file = file;
+            event.lines = lines;
+            event.bytesWritten = bytesWritten;
+            event.linesPerSecond = linesPerSecond();
+            event.commit();
+        }
+
+        for(Opcode opcode: OPCODES)
+        {
+            OpcodeEvent opcodeEvent = new OpcodeEvent();
+            if(opcodeLines[opcode.ordinal()]>0 && opcodeEvent.shouldCommit())
+            {
+                opcodeEvent.file = file;
+                opcodeEvent.opcode = opcode.name();
+                opcodeEvent.lines = opcodeLines[opcode.ordinal()];
+                opcodeEvent.instructions = opcodeInstructions[opcode.ordinal()];
+                opcodeEvent.commit();
+            }
+        }
+    }
+
+    /**
+     * Get the wall time of the whole assembly.
+     * @return The time in nanoseconds
+     */
+    public long wallTime()
+    {
+        long total = 0;
+        for(long time: wallTimes)
+            total += time;
+        return total;
+    }
+
+    /**
+     * Get the number of lines read per second of wall time.
+     * @return The rate
+     */
+    public double linesPerSecond()
+    {
+        long time = wallTime();
+        return time==0 ? 0 : lines * 1e9 / time;
+    }
+
+    /**
+     * Write the measurements to a JSON file.
+     * @param path The file
+     * @param err Where the errors are printed
+     */
+    public void write(Path path, PrintStream err)
+    {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"file\": \"").append(escape(file)).append("\",\n");
+        json.append("  \"lines\": ").append(lines).append(",\n");
+        json.append("  \"bytesWritten\": ").append(bytesWritten).append(",\n");
+        json.append("  \"wallTimeNanos\": ").append(wallTime()).append(",\n");
+        json.append("  \"linesPerSecond\": ").append(Math.round(linesPerSecond())).append(",\n");
+
+        json.append("  \"phases\": {");
+        for(Phase phase: PHASES)
+        {
+            int i = phase.ordinal();
+            json.append(i==0 ? "\n" : ",\n").append("    \"").append(phase.name().toLowerCase()).append("\": {")
+                    .append("\"wallTimeNanos\": ").append(wallTimes[i])
+                    .append(", \"cpuTimeNanos\": ").append(cpuTimes[i])
+                    .append(", \"allocatedBytes\": ").append(allocations[i]).append('}');
+        }
+        json.append("\n  },\n");
+
+        //Every instruction code is listed, whether it was used or not
+        json.append("  \"opcodes\": {");
+        for(Opcode opcode: OPCODES)
+        {
+            int i = opcode.ordinal();
+            json.append(i==0 ? "\n" : ",\n").append("    \"").append(opcode.name()).append("\": {")
+                    .append("\"lines\": ").append(opcodeLines[i])
+                    .append(", \"instructions\": ").append(opcodeInstructions[i]).append('}');
+        }
+        json.append("\n  }\n}\n");
+
+        try{
+            Files.writeString(path, json, StandardCharsets.UTF_8);
+        }catch(IOException ex)
+        {
+            err.println("Unable to write "+path);
+        }
+    }
+
+    /**
+     * Escape a String for a JSON string literal.
+     * @param text The String
+     * @return The escaped String
+     */
+    private static String escape(String text)
+    {
+        StringBuilder escaped = new StringBuilder();
+        for(char c: text.toCharArray())
+            if(c=='"' || c=='\\')
+                escaped.append('\\').append(c);
+            else if(c<0x20)
+                escaped.append(String.format("\\u%04x", (int) c));
+            else
+                escaped.append(c);
+        return escaped.toString();
+    }
+
+    //region EVENTS
+
+    /**
+     * The assembly of a Shack file.
+     */
+    @Name("shack.Assembly")
+    @Label("Assembly")
+    @Category("Shack")
+    @Description("The assembly of a Shack file")
+    static class AssemblyEvent extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Lines")
+        long lines;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Lines per Second")
+        double linesPerSecond;
+    }
+
+    /**
+     * A phase of the assembly of a Shack file.
+     */
+    @Name("shack.Phase")
+    @Label("Assembly Phase")
+    @Category("Shack")
+    @Description("A phase of the assembly of a Shack file")
+    static class PhaseEvent extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("CPU Time")
+        @Timespan
+        long cpuTime;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    /**
+     * The conversions of the lines of an instruction code, in the assembly of a Shack file.
+     */
+    @Name("shack.Opcode")
+    @Label("Opcode Conversions")
+    @Category("Shack")
+    @Description("The Hack instructions the lines of an instruction code were converted to")
+    static class OpcodeEvent extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Opcode")
+        String opcode;
+
+        @Label("Lines")
+        long lines;
+
+        @Label("Hack Instructions")
+        long instructions;
+    }
+
+    //endregion
+}
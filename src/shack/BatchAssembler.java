@@ -0,0 +1,154 @@
+package shack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Assembles many Shack files at the same time. Every file gets its own assembler, and the files are shared between the
+ * threads of a work-stealing pool. The errors of every file are collected and printed in the order the files were
+ * given, each one prefixed by the name of its file.
+ */
+public class BatchAssembler
+{
+    private final int threads;
+    private final Options options;
+
+    /**
+     * Constructor for the BatchAssembler
+     * @param threads The largest number of files assembled at the same time
+     * @param options The settings every file is assembled with
+     */
+    public BatchAssembler(int threads, Options options)
+    {
+        this.threads = threads;
+        this.options = options;
+    }
+
+    /**
+     * Check if the given argument is a directory or a glob pattern (rather than a single file).
+     * @param argument The argument
+     * @param options The settings (with the directory the argument is relative to)
+     * @return true if it is, false otherwise
+     */
+    public static boolean isPattern(String argument, Options options)
+    {
+        return Files.isDirectory(options.resolve(argument)) || argument.chars().anyMatch((c)->"*?[{".indexOf(c)!=-1);
+    }
+
+    /**
+     * Assemble the given files and print their errors.
+     * @param arguments Files, directories (all the .shk files inside them) and glob patterns (e.g. "src/**.shk")
+     * @param err Where the errors are printed
+     * @return true if every file was assembled without errors, false otherwise
+     */
+    public boolean run(List<String> arguments, PrintStream err)
+    {
+        AtomicBoolean succeeded = new AtomicBoolean(true);
+        ArrayList<String> files = new ArrayList<>();
+        for(String argument: arguments)
+            try{
+                files.addAll(expand(argument));
+            }catch(IOException ex)
+            {
+                err.println("Unable to read "+argument);
+                succeeded.set(false);
+            }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(threads, files.size())));
+        try{
+            ArrayList<Future<String>> results = new ArrayList<>();
+            for(String file: files)
+                results.add(pool.submit(()->assemble(file, succeeded)));
+
+            //Print the errors in the order of the files, as soon as each file is done
+            for(Future<String> result: results)
+                err.print(result.get());
+        }catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            succeeded.set(false);
+        }catch(ExecutionException ex)
+        {
+            err.println(ex.getCause().getMessage());
+            succeeded.set(false);
+        }finally
+        {
+            pool.shutdown();
+        }
+        return succeeded.get();
+    }
+
+    /**
+     * Assemble a single file.
+     * @param file The file
+     * @param succeeded Cleared if the file has errors
+     * @return The errors, one per line, each prefixed by the name of the file
+     */
+    private String assemble(String file, AtomicBoolean succeeded)
+    {
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        if(!Assembler.assembleFile(file, options, new PrintStream(errors, true, StandardCharsets.UTF_8)))
+            succeeded.set(false);
+
+        StringBuilder result = new StringBuilder();
+        for(String error: errors.toString(StandardCharsets.UTF_8).lines().collect(Collectors.toList()))
+            result.append(file).append(": ").append(error).append(System.lineSeparator());
+        return result.toString();
+    }
+
+    /**
+     * Find the files an argument stands for.
+     * @param argument A file, a directory or a glob pattern
+     * @return The files, sorted by name
+     * @throws IOException If a directory cannot be read
+     */
+    private List<String> expand(String argument) throws IOException
+    {
+        Path path = Path.of(argument);
+        if(Files.isDirectory(options.resolve(argument)))
+            return find(path, FileSystems.getDefault().getPathMatcher("glob:**.shk"));
+        if(!isPattern(argument, options))
+            return List.of(argument);
+
+        //Search from the last directory before the first wildcard
+        int wildcard = 0;
+        while("*?[{".indexOf(argument.charAt(wildcard))==-1)
+            wildcard++;
+        int separator = argument.lastIndexOf('/', wildcard);
+        Path directory = Path.of(separator==-1 ? "." : argument.substring(0, separator+1));
+        return find(directory, FileSystems.getDefault().getPathMatcher("glob:" + argument.substring(separator+1)));
+    }
+
+    /**
+     * Find the files in a directory (and the directories inside it) that match the given pattern.
+     * @param directory The directory, as it was given
+     * @param matcher The pattern, relative to the directory
+     * @return The files (starting with the directory as it was given), sorted by name
+     * @throws IOException If the directory cannot be read
+     */
+    private List<String> find(Path directory, PathMatcher matcher) throws IOException
+    {
+        Path start = options.resolve(directory.toString());
+        try(Stream<Path> paths = Files.walk(start))
+        {
+            return paths.filter((path)->Files.isRegularFile(path) && matcher.matches(start.relativize(path)))
+                    .map((path)->directory.resolve(start.relativize(path)).toString())
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package shack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * A cache of assembled files on disk, shared by every assembler process on the machine. An entry is found by the
+ * SHA-256 of the source, the settings that change what is written (the format, the optimizations and the error
+ * settings) and the version of the assembler (its own class files), and holds the output file, the text printed
+ * for it and whether the assembly succeeded. A hit writes the output and prints the text again without assembling
+ * anything.
+ *
+ * Entries are written to a temporary file and moved into place, so a process never reads half an entry. A hit marks
+ * its entry as used by touching it. Every process keeps a running estimate of the size of each cache directory (the
+ * directory is listed once, then every store adds its entry), and only lists the directory again once the estimate
+ * is larger than the limit: the entries used longest ago are then deleted until the cache is a tenth below its limit,
+ * so the stores after it do not list it again straight away (an entry deleted by another process is only a miss).
+ */
+public class BuildCache
+{
+    public static final long DEFAULT_LIMIT = 256L << 20; //the size of the cache, in bytes, if no other is given
+    public static final int MISSED = 0; //what replay returns if there is no entry
+    public static final int SUCCEEDED = 1; //what replay returns if the entry was assembled without errors
+    public static final int FAILED = 2; //what replay returns if the entry had errors
+
+    private static final int MAGIC = 0x53484B43; //"SHKC"
+    private static final int HEADER_SIZE = 9; //the magic number, the status and the length of the text
+    private static final String TEMPORARY_PREFIX = ".tmp-";
+    private static final long TEMPORARY_AGE = 60L*60*1000; //how old a temporary file left by a process that died is
+    private static final String VERSION = version();
+    private static final long UNKNOWN = -1; //the size of a cache directory that has not been listed yet
+    private static final ConcurrentHashMap<Path, AtomicLong> sizes = new ConcurrentHashMap<>(); //by cache directory
+
+    private final Path directory;
+    private final long limit;
+    private final AtomicLong size; //the estimated size of the cache, shared by every BuildCache of its directory
+
+    /**
+     * Constructor for the BuildCache
+     * @param directory The directory of the cache (it is created if it does not exist)
+     * @param limit The largest size of the cache, in bytes
+     */
+    public BuildCache(Path directory, long limit)
+    {
+        this.directory = directory;
+        this.limit = limit;
+        size = sizes.computeIfAbsent(directory.toAbsolutePath().normalize(), (path)->new AtomicLong(UNKNOWN));
+    }
+
+    /**
+     * Get the version of the assembler: the sizes and modification times of its class files (or of its jar), so that
+     * an assembler that has been rebuilt never replays what an older one wrote.
+     * @return The version
+     */
+    private static String version()
+    {
+        StringBuilder version = new StringBuilder();
+        try{
+            Path code = Path.of(BuildCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if(Files.isDirectory(code))
+                code = code.resolve("shack");
+            try(Stream<Path> files = Files.isDirectory(code) ? Files.list(code) : Stream.of(code))
+            {
+                files.sorted().forEach((file)->{
+                    try{
+                        version.append(file.getFileName()).append(' ').append(Files.size(file)).append(' ')
+                                .append(Files.getLastModifiedTime(file).toMillis()).append('\n');
+                    }catch(IOException ex)
+                    {
+                        version.append(file.getFileName()).append('\n');
+                    }
+                });
+            }
+        }catch(IOException | URISyntaxException | RuntimeException ex)
+        {
+            //Without its own files, the assembler can only be told apart by its build
+            version.append(BuildCache.class.getPackage().getImplementationVersion());
+        }
+        return version.toString();
+    }
+
+    /**
+     * Get the key of the entry of a source for the given settings.
+     * @param source The source, as it is assembled
+     * @param options The settings
+     * @return The key (a SHA-256, in hexadecimal)
+     */
+    public String key(byte[] source, Options options)
+    {
+        MessageDigest digest;
+        try{
+            digest = MessageDigest.getInstance("SHA-256");
+        }catch(NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex); //every Java platform has SHA-256
+        }
+
+        String settings = VERSION + "\0" + options.getFormat() + ' ' + options.isSinglePass() + ' ' +
+                options.isOptimizing() + ' ' + options.isFlowOptimizing() + ' ' + options.isReporting() + ' ' +
+                options.getErrorLimit() + ' ' + options.isAbortingEarly() + "\0";
+        digest.update(settings.getBytes(StandardCharsets.UTF_8));
+        digest.update(source);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Get the file of an entry.
+     * @param key The key of the entry
+     * @return The file (in a subdirectory named after the first two digits of the key, so no directory gets too big)
+     */
+    private Path entry(String key)
+    {
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    /**
+     * Replay an entry: write its output file and print its text.
+     * @param key The key of the entry
+     * @param output The output file
+     * @param err Where the text is printed
+     * @return SUCCEEDED or FAILED if the entry was there, MISSED if it was not (nothing is written or printed then)
+     */
+    public int replay(String key, Path output, PrintStream err)
+    {
+        Path entry = entry(key);
+        ByteBuffer content;
+        int status;
+        try{
+            content = ByteBuffer.wrap(Files.readAllBytes(entry));
+            if(content.remaining()<HEADER_SIZE || content.getInt()!=MAGIC)
+                return MISSED;
+            status = content.get();
+            byte[] text = new byte[content.getInt()];
+            content.get(text);
+            if(status!=SUCCEEDED && status!=FAILED)
+                return MISSED;
+            Files.write(output, Arrays.copyOfRange(content.array(), content.position(), content.limit()));
+            err.print(new String(text, StandardCharsets.UTF_8));
+        }catch(IOException | RuntimeException ex)
+        {
+            return MISSED; //a missing (or evicted, or damaged) entry is a miss
+        }
+
+        try{
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        }catch(IOException ex)
+        {
+            //The entry has just been evicted by another process
+        }
+        return status;
+    }
+
+    /**
+     * Store an entry, then evict the entries used longest ago if the cache has grown larger than its limit.
+     * @param key The key of the entry
+     * @param output The output file (as it has just been written)
+     * @param text The text printed for the source
+     * @param succeeded true if the source was assembled without errors, false otherwise
+     */
+    public void store(String key, Path output, String text, boolean succeeded)
+    {
+        try{
+            byte[] code = Files.readAllBytes(output);
+            byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream content = new ByteArrayOutputStream(HEADER_SIZE + textBytes.length + code.length);
+            content.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).put((byte) (succeeded ? SUCCEEDED : FAILED))
+                    .putInt(textBytes.length).array());
+            content.write(textBytes);
+            content.write(code);
+
+            Path entry = entry(key);
+            Files.createDirectories(entry.getParent());
+            long replaced = Files.exists(entry) ? Files.size(entry) : 0;
+            Path temporary = Files.createTempFile(directory, TEMPORARY_PREFIX, null);
+            try{
+                Files.write(temporary, content.toByteArray());
+                try{
+                    Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }catch(AtomicMoveNotSupportedException ex)
+                {
+                    Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }finally
+            {
+                Files.deleteIfExists(temporary);
+            }
+            if(size.get()==UNKNOWN || size.addAndGet(content.size() - replaced)>limit)
+                evict();
+        }catch(IOException ex)
+        {
+            //The cache is only an optimization, so a file that cannot be cached is simply assembled again next time
+        }
+    }
+
+    /**
+     * List the cache and, if it is larger than its limit, delete the entries used longest ago until it is a tenth below
+     * its limit (and the temporary files that processes which died left behind). The estimated size of the cache is
+     * set to what is left.
+     * @throws IOException If the cache directory could not be read
+     */
+    private void evict() throws IOException
+    {
+        synchronized(this.size)
+        {
+            //Another thread may have evicted while this one waited
+            long estimate = this.size.get();
+            if(estimate!=UNKNOWN && estimate<=limit)
+                return;
+            this.size.set(evict(limit - limit/10));
+        }
+    }
+
+    /**
+     * List the cache and delete the entries used longest ago until it fits in the given size, if it is larger than the
+     * limit.
+     * @param target The size the cache is brought down to
+     * @return The size of the cache afterwards
+     * @throws IOException If the cache directory could not be read
+     */
+    private long evict(long target) throws IOException
+    {
+        ArrayList<Path> entries = new ArrayList<>();
+        ArrayList<BasicFileAttributes> attributes = new ArrayList<>();
+        long size = 0;
+        long now = System.currentTimeMillis();
+        try(DirectoryStream<Path> subdirectories = Files.newDirectoryStream(directory))
+        {
+            for(Path subdirectory: subdirectories)
+            {
+                if(!Files.isDirectory(subdirectory))
+                {
+                    if(subdirectory.getFileName().toString().startsWith(TEMPORARY_PREFIX) &&
+                            now - lastModified(subdirectory)>TEMPORARY_AGE)
+                        delete(subdirectory);
+                    continue;
+                }
+                try(DirectoryStream<Path> files = Files.newDirectoryStream(subdirectory))
+                {
+                    for(Path file: files)
+                    {
+                        try{
+                            BasicFileAttributes fileAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+                            entries.add(file);
+                            attributes.add(fileAttributes);
+                            size += fileAttributes.size();
+                        }catch(NoSuchFileException ex)
+                        {
+                            //Evicted by another process
+                        }
+                    }
+                }catch(NoSuchFileException ex)
+                {
+                }
+            }
+        }
+        if(size<=limit)
+            return size;
+
+        Integer[] order = new Integer[entries.size()];
+        for(int i=0; i<order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparing((Integer i)->attributes.get(i).lastModifiedTime()));
+        for(int i=0; i<order.length && size>target; i++)
+        {
+            delete(entries.get(order[i]));
+            size -= attributes.get(order[i]).size();
+        }
+        return size;
+    }
+
+    /**
+     * Get when a file was last modified.
+     * @param file The file
+     * @return The time, in milliseconds (0 if the file has gone)
+     */
+    private static long lastModified(Path file)
+    {
+        try{
+            return Files.getLastModifiedTime(file).toMillis();
+        }catch(IOException ex)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Delete a file, if it has not been deleted already (e.g. by another process evicting the same entry).
+     * @param file The file
+     */
+    private static void delete(Path file)
+    {
+        try{
+            Files.deleteIfExists(file);
+        }catch(IOException ex)
+        {
+            //It is left for the next eviction
+        }
+    }
+}
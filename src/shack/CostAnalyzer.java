@@ -0,0 +1,195 @@
+package shack;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Works out what every line of a Shack program costs in Hack: the ROM words its code takes and, for the loops (a jump
+ * back to a label before it), the cycles one pass through the loop takes. The Hack CPU runs one instruction per cycle,
+ * so an iteration is estimated as the words from the label to the jump, as if every branch inside it falls through.
+ * The words are counted as the instructions are converted, before -O and -c.
+ *
+ * The report is an annotated listing of the source (the ROM address, words and loop depth of every line), the ROM used
+ * against the size of the ROM, the loops by cycles per iteration and the lines most worth optimizing: the ones in the
+ * deepest loops first, then the ones with the most words.
+ */
+public class CostAnalyzer
+{
+    static final int NONE = -1; //no address (or, for a jump, no label)
+    private static final int HOTSPOTS = 20; //the number of lines in the summary
+
+    private int[] addresses = new int[256]; //the ROM address of the code (or label) of every line, by line number
+    private int[] words = new int[256]; //the number of words of every line, by line number
+    private int[] labels = new int[64]; //the ROM address of every label, by symbol ID
+    private int[] jumps = new int[64]; //line, ROM address and target (symbol ID, or NONE - address) of every jump
+    private int jumpCount;
+
+    /**
+     * Constructor for the CostAnalyzer
+     */
+    public CostAnalyzer()
+    {
+        Arrays.fill(addresses, NONE);
+        Arrays.fill(labels, NONE);
+    }
+
+    /**
+     * Make sure a line fits in the arrays by line number.
+     * @param line The line number
+     */
+    private void ensureLine(int line)
+    {
+        if(line<addresses.length)
+            return;
+        int length = Math.max(line + 1, addresses.length*2);
+        int oldLength = addresses.length;
+        addresses = Arrays.copyOf(addresses, length);
+        Arrays.fill(addresses, oldLength, length, NONE);
+        words = Arrays.copyOf(words, length);
+    }
+
+    /**
+     * Count the code of an instruction.
+     * @param line The number of its line
+     * @param address The ROM address of its first word
+     * @param count The number of words it was converted to (0 if it could not be converted)
+     */
+    public void instruction(int line, int address, int count)
+    {
+        if(count==0)
+            return;
+        ensureLine(line);
+        addresses[line] = address;
+        words[line] = count;
+    }
+
+    /**
+     * Note where a label is.
+     * @param line The number of its line
+     * @param symbol Its symbol ID
+     * @param address Its ROM address
+     */
+    public void label(int line, int symbol, int address)
+    {
+        ensureLine(line);
+        addresses[line] = address;
+        if(symbol>=labels.length)
+        {
+            int oldLength = labels.length;
+            labels = Arrays.copyOf(labels, Math.max(symbol + 1, labels.length*2));
+            Arrays.fill(labels, oldLength, labels.length, NONE);
+        }
+        labels[symbol] = address;
+    }
+
+    /**
+     * Note a jump, whose target is looked up once every label has its address.
+     * @param line The number of its line
+     * @param address The ROM address of the jump instruction itself (the last word of its code)
+     * @param symbol The symbol ID of the label it goes to, or NONE if it goes to a number
+     * @param target The address it goes to, if it goes to a number
+     */
+    public void jump(int line, int address, int symbol, int target)
+    {
+        if(jumpCount*3==jumps.length)
+            jumps = Arrays.copyOf(jumps, jumps.length*2);
+        jumps[jumpCount*3] = line;
+        jumps[jumpCount*3+1] = address;
+        jumps[jumpCount*3+2] = symbol==NONE ? NONE - target : symbol;
+        jumpCount++;
+    }
+
+    /**
+     * Write the report.
+     * @param source The Shack file the lines are taken from
+     * @param report The file the report is written to
+     * @throws IOException If the source could not be read or the report could not be written
+     */
+    public void write(Path source, Path report) throws IOException
+    {
+        //A loop is a jump back to (or to) an earlier address: start, end and the line of the jump
+        ArrayList<int[]> loops = new ArrayList<>();
+        for(int i=0; i<jumpCount; i++)
+        {
+            int symbol = jumps[i*3+2];
+            int target = symbol<0 ? NONE - symbol : symbol<labels.length ? labels[symbol] : NONE;
+            if(target!=NONE && target<=jumps[i*3+1])
+                loops.add(new int[]{target, jumps[i*3+1], jumps[i*3]});
+        }
+
+        int total = 0;
+        for(int count: words)
+            total += count;
+
+        //The number of loops every ROM address is in
+        int[] depths = new int[total + 1];
+        for(int[] loop: loops)
+        {
+            depths[loop[0]]++;
+            depths[loop[1] + 1]--;
+        }
+        for(int address=1; address<depths.length; address++)
+            depths[address] += depths[address-1];
+
+        try(SourceReader reader = new SourceReader(source.toString());
+            PrintWriter out = new PrintWriter(Files.newBufferedWriter(report)))
+        {
+            out.println(String.format("%6s %6s %6s %6s  %s", "Line", "ROM", "Words", "Loops", "Source"));
+            ArrayList<String> lines = new ArrayList<>();
+            lines.add(null); //line numbers start from 1
+            while(reader.nextLine())
+            {
+                int line = reader.lineNumber();
+                String text = reader.line();
+                lines.add(text);
+                if(line<addresses.length && addresses[line]!=NONE)
+                    out.println(String.format("%6d %6d %6s %6s  %s", line, addresses[line],
+                            words[line]>0 ? Integer.toString(words[line]) : "", depth(depths, line)>0 ?
+                            Integer.toString(depth(depths, line)) : "", text));
+                else
+                    out.println(String.format("%6d %6s %6s %6s  %s", line, "", "", "", text));
+            }
+
+            out.println();
+            out.println(String.format("ROM: %d of %d words (%.1f%%)", total, HackEncoder.ROM_SIZE,
+                    100.0*total/HackEncoder.ROM_SIZE));
+
+            out.println();
+            out.println("Loops, by cycles per iteration:");
+            loops.sort(Comparator.comparingInt((int[] loop)->loop[0] - loop[1]).thenComparingInt((loop)->loop[2]));
+            for(int[] loop: loops)
+                out.println(String.format("%8d cycles  ROM %d-%d, jumping back on line %d", loop[1] - loop[0] + 1,
+                        loop[0], loop[1], loop[2]));
+            if(loops.isEmpty())
+                out.println("    none");
+
+            out.println();
+            out.println("Hotspots, by loop depth and words:");
+            ArrayList<Integer> costly = new ArrayList<>();
+            for(int line=1; line<Math.min(words.length, lines.size()); line++)
+                if(words[line]>0)
+                    costly.add(line);
+            costly.sort(Comparator.comparingInt((Integer line)->-depth(depths, line))
+                    .thenComparingInt((line)->-words[line]).thenComparingInt((line)->line));
+            for(int line: costly.subList(0, Math.min(HOTSPOTS, costly.size())))
+                out.println(String.format("%8d words  depth %d  line %d: %s", words[line], depth(depths, line), line,
+                        lines.get(line).strip()));
+        }
+    }
+
+    /**
+     * Get the number of loops the code of a line is in.
+     * @param depths The number of loops every ROM address is in
+     * @param line The line number
+     * @return The number of loops (0 for a line without code)
+     */
+    private int depth(int[] depths, int line)
+    {
+        return words[line]==0 ? 0 : depths[addresses[line]];
+    }
+}
@@ -0,0 +1,290 @@
+package shack;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * The errors found in a Shack program. Every error is a small record (its code, line, column and argument) kept in
+ * arrays, and its message is only put together when it is printed, so a source with thousands of errors costs little
+ * more to assemble than a clean one.
+ *
+ * The errors are printed in the order they were reported, except for the instruction labels that are never defined,
+ * which are only known at the end: they are printed last, sorted by their message (ignoring case), and a message that
+ * is the same as an earlier one is only printed once.
+ */
+public class Diagnostics
+{
+    public static final int NO_LIMIT = 0;
+
+    private final int limit; //the number of errors that are kept (the rest are only counted)
+    private byte[] codes = new byte[16]; //ErrorCode ordinals
+    private int[] lines = new int[16];
+    private int[] columns = new int[16]; //byte columns, from 1
+    private int[] arguments = new int[16]; //a character or a symbol ID, depending on the code
+    private String[] texts = new String[16]; //the argument of the codes whose argument is text
+    private int size;
+    private int reported; //the errors reported in order, including the ones over the limit
+    private int missingLabels; //the LABEL_NOT_DEFINED errors, which are all kept
+
+    private static final ErrorCode[] CODES = ErrorCode.values();
+
+    /**
+     * Constructor for the Diagnostics
+     * @param limit The largest number of errors kept and printed, or NO_LIMIT
+     */
+    public Diagnostics(int limit)
+    {
+        this.limit = limit;
+    }
+
+    /**
+     * Report an error.
+     * @param code The kind of error
+     * @param line The number of the line it is on
+     * @param column The column it starts at (in bytes, from 1), or 0 if it is about the whole line
+     * @param argument The character or symbol ID the message is about (0 if there is none)
+     * @param text The text the message is about, for the codes whose argument is text (null otherwise)
+     */
+    public void report(ErrorCode code, int line, int column, int argument, String text)
+    {
+        if(code==ErrorCode.LABEL_NOT_DEFINED)
+            missingLabels++;
+        else if(reported++>=limit && limit!=NO_LIMIT)
+            return; //only counted
+
+        if(size==codes.length)
+        {
+            int capacity = size*2;
+            codes = Arrays.copyOf(codes, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            columns = Arrays.copyOf(columns, capacity);
+            arguments = Arrays.copyOf(arguments, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+        }
+        codes[size] = (byte) code.ordinal();
+        lines[size] = line;
+        columns[size] = column;
+        arguments[size] = argument;
+        texts[size] = text;
+        size++;
+    }
+
+    /**
+     * Report an error that was recorded somewhere else (e.g. while a line was parsed), on the given line.
+     * @param from Where the error was recorded
+     * @param index The index of the error there
+     * @param line The number of the line it is on
+     */
+    public void report(Diagnostics from, int index, int line)
+    {
+        report(from.code(index), line, from.column(index), from.argument(index), from.text(index));
+    }
+
+    /**
+     * Get the number of errors kept.
+     * @return The number of errors
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Get the number of errors reported, including the ones over the limit.
+     * @return The number of errors
+     */
+    public int count()
+    {
+        return reported + missingLabels;
+    }
+
+    /**
+     * Get the largest number of errors kept and printed.
+     * @return The limit, or NO_LIMIT
+     */
+    public int limit()
+    {
+        return limit;
+    }
+
+    /**
+     * Check if as many errors as the limit have been reported.
+     * @return true if they have, false otherwise (always false if there is no limit)
+     */
+    public boolean isFull()
+    {
+        return limit!=NO_LIMIT && count()>=limit;
+    }
+
+    /**
+     * Forget every error.
+     */
+    public void clear()
+    {
+        Arrays.fill(texts, 0, size, null);
+        size = 0;
+        reported = 0;
+        missingLabels = 0;
+    }
+
+    /**
+     * Get the kind of an error.
+     * @param index The index of the error
+     * @return The kind of error
+     */
+    public ErrorCode code(int index)
+    {
+        return CODES[codes[index]];
+    }
+
+    /**
+     * Get the line of an error.
+     * @param index The index of the error
+     * @return The number of the line
+     */
+    public int line(int index)
+    {
+        return lines[index];
+    }
+
+    /**
+     * Get the column of an error.
+     * @param index The index of the error
+     * @return The column (in bytes, from 1), or 0 if the error is about the whole line
+     */
+    public int column(int index)
+    {
+        return columns[index];
+    }
+
+    /**
+     * Get the character or symbol ID an error is about.
+     * @param index The index of the error
+     * @return The argument
+     */
+    public int argument(int index)
+    {
+        return arguments[index];
+    }
+
+    /**
+     * Get the text an error is about.
+     * @param index The index of the error
+     * @return The text, or null if its argument is not text
+     */
+    public String text(int index)
+    {
+        return texts[index];
+    }
+
+    /**
+     * Get the message of an error.
+     * @param index The index of the error
+     * @param symbols The symbol table the symbol names are taken from
+     * @return The message
+     */
+    public String message(int index, SymbolTable symbols)
+    {
+        ErrorCode code = code(index);
+        switch(code.argument())
+        {
+            case CHARACTER:
+                return code.message(String.valueOf((char) arguments[index]));
+            case SYMBOL:
+                return code.message(symbols.name(arguments[index]));
+            case TEXT:
+                return code.message(texts[index]);
+            default:
+                return code.message("");
+        }
+    }
+
+    /**
+     * Get the indices of the errors in the order they are printed in (without the missing labels whose message is the
+     * same as an earlier one), up to the limit.
+     * @param symbols The symbol table the symbol names are taken from
+     * @return The indices
+     */
+    public int[] order(SymbolTable symbols)
+    {
+        return order(sortMissingLabels(symbols));
+    }
+
+    /**
+     * Get the indices of the errors in the order they are printed in, up to the limit.
+     * @param missing The missing labels, as returned by sortMissingLabels
+     * @return The indices
+     */
+    private int[] order(int[] missing)
+    {
+        int[] order = new int[size - missingLabels + missing.length];
+        int count = 0;
+        for(int i=0; i<size; i++)
+            if(codes[i]!=ErrorCode.LABEL_NOT_DEFINED.ordinal())
+                order[count++] = i;
+        System.arraycopy(missing, 0, order, count, missing.length);
+        return limit!=NO_LIMIT && order.length>limit ? Arrays.copyOf(order, limit) : order;
+    }
+
+    /**
+     * Get the number of errors left out of the order they are printed in, because there were more than the limit.
+     * @param symbols The symbol table the symbol names are taken from
+     * @return The number of errors
+     */
+    public int omitted(SymbolTable symbols)
+    {
+        if(limit==NO_LIMIT)
+            return 0;
+        int[] missing = sortMissingLabels(symbols);
+        return reported + missing.length - order(missing).length;
+    }
+
+    /**
+     * Sort the missing labels by their messages, ignoring case. The messages are put together (and lower-cased) once,
+     * rather than every time two of them are compared.
+     * @param symbols The symbol table the symbol names are taken from
+     * @return The indices of the missing labels, sorted, without the ones whose message is the same as an earlier one
+     */
+    private int[] sortMissingLabels(SymbolTable symbols)
+    {
+        String[] keys = new String[size];
+        Integer[] missing = new Integer[missingLabels];
+        int count = 0;
+        for(int i=0; i<size; i++)
+            if(codes[i]==ErrorCode.LABEL_NOT_DEFINED.ordinal())
+            {
+                keys[i] = message(i, symbols).toLowerCase();
+                missing[count++] = i;
+            }
+        Arrays.sort(missing, (a, b)->keys[a].compareTo(keys[b])); //stable, so the first of the same messages is kept
+
+        int[] sorted = new int[missing.length];
+        count = 0;
+        for(int i=0; i<missing.length; i++)
+            if(i==0 || !keys[missing[i]].equals(keys[missing[i-1]]))
+                sorted[count++] = missing[i];
+        return Arrays.copyOf(sorted, count);
+    }
+
+    /**
+     * Print the messages of the errors, one per line, and how many were left out if there were more than the limit.
+     * @param err Where the errors are printed
+     * @param symbols The symbol table the symbol names are taken from
+     */
+    public void print(PrintStream err, SymbolTable symbols)
+    {
+        if(size==0)
+            return;
+
+        int[] missing = sortMissingLabels(symbols);
+        int[] order = order(missing);
+        StringBuilder messages = new StringBuilder();
+        for(int index: order)
+            messages.append(message(index, symbols)).append(System.lineSeparator());
+        int left = reported + missing.length - order.length;
+        if(left>0)
+            messages.append(left).append(left==1 ? " more error was" : " more errors were").append(" not printed.")
+                    .append(System.lineSeparator());
+        err.print(messages);
+    }
+}
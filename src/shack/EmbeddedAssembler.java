@@ -0,0 +1,290 @@
+package shack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.Collectors;
+
+/**
+ * Assembles Shack source that is held in memory, for programs that use the assembler as a library. Nothing is read
+ * from or written to files and nothing is printed: the errors are returned in an AssemblyResult.
+ *
+ * The source is given as a ByteBuffer (see the source methods for text, readers and streams) and the Hack code is
+ * written to a channel (see the output methods for streams, text and buffers). An EmbeddedAssembler can assemble any
+ * number of sources, one at a time; its symbol table (with the instruction codes in it) and its program are reused.
+ */
+public class EmbeddedAssembler
+{
+    private static final int MAX_SYMBOLS = 1 << 20; //more names than this, and the symbol table is started again
+
+    private final Options options;
+    private SymbolTable symbols;
+    private final Program program;
+
+    /**
+     * Constructor for the EmbeddedAssembler, with the default settings (two passes, Hack assembly output).
+     */
+    public EmbeddedAssembler()
+    {
+        this(new Options());
+    }
+
+    /**
+     * Constructor for the EmbeddedAssembler
+     * @param options The settings every source is assembled with (the ones about files are not used)
+     */
+    public EmbeddedAssembler(Options options)
+    {
+        this.options = options;
+        symbols = new SymbolTable();
+        program = new Program();
+    }
+
+    /**
+     * Assemble the given source text and append the Hack code to the given text.
+     * @param source The Shack source
+     * @param output Where the Hack code is appended
+     * @return The result
+     */
+    public AssemblyResult assemble(CharSequence source, Appendable output)
+    {
+        return assemble(source(source), output(output));
+    }
+
+    /**
+     * Assemble the given source.
+     * @param source The Shack source, from its position to its limit (its position is not changed)
+     * @param output Where the Hack code is written (it is closed at the end)
+     * @return The result
+     */
+    public AssemblyResult assemble(ByteBuffer source, WritableByteChannel output)
+    {
+        //The names of the sources before are kept, so they are only dropped once there are a lot of them
+        if(symbols.size()>MAX_SYMBOLS)
+            symbols = new SymbolTable();
+        symbols.clearDefinitions();
+        program.clear();
+
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        PrintStream err = new PrintStream(messages, true, StandardCharsets.UTF_8);
+        Assembler assembler = new Assembler(symbols, program, output, options, err);
+        try{
+            assembler.readAll(new SourceReader(source));
+        }catch(IOException ex)
+        {
+            throw new IllegalStateException(ex); //a source in memory is read in one window
+        }
+        assembler.translate();
+        assembler.closeWriter();
+
+        return new AssemblyResult(assembler.diagnostics(), symbols,
+                messages.toString(StandardCharsets.UTF_8).lines().collect(Collectors.toList()),
+                assembler.instructionCount());
+    }
+
+    /**
+     * Encode source text as UTF-8.
+     * @param text The Shack source
+     * @return The source, to be assembled
+     */
+    public static ByteBuffer source(CharSequence text)
+    {
+        return StandardCharsets.UTF_8.encode(CharBuffer.wrap(text));
+    }
+
+    /**
+     * Read the whole source from a reader, and encode it as UTF-8.
+     * @param reader The reader (it is not closed)
+     * @return The source, to be assembled
+     * @throws IOException If the reader could not be read
+     */
+    public static ByteBuffer source(Reader reader) throws IOException
+    {
+        StringWriter text = new StringWriter();
+        reader.transferTo(text);
+        return source(text.getBuffer());
+    }
+
+    /**
+     * Read the whole source from a stream.
+     * @param stream The stream (it is not closed)
+     * @return The source, to be assembled
+     * @throws IOException If the stream could not be read
+     */
+    public static ByteBuffer source(InputStream stream) throws IOException
+    {
+        return ByteBuffer.wrap(stream.readAllBytes());
+    }
+
+    /**
+     * Get a channel that writes the Hack code to a stream.
+     * @param stream The stream (it is flushed at the end, but not closed)
+     * @return The channel
+     */
+    public static WritableByteChannel output(OutputStream stream)
+    {
+        return new StreamOutput(stream);
+    }
+
+    /**
+     * Get a channel that appends the Hack code to text, decoded as UTF-8. The code is appended all at once, at the end.
+     * @param text The text
+     * @return The channel
+     */
+    public static WritableByteChannel output(Appendable text)
+    {
+        return new TextOutput(text);
+    }
+
+    /**
+     * Get a channel that puts the Hack code into a buffer, from its position on. If the code does not fit, the output
+     * error is in the result.
+     * @param buffer The buffer
+     * @return The channel
+     */
+    public static WritableByteChannel output(ByteBuffer buffer)
+    {
+        return new BufferOutput(buffer);
+    }
+
+    //region OUTPUTS
+
+    /**
+     * Writes the Hack code to a stream.
+     */
+    private static class StreamOutput implements WritableByteChannel
+    {
+        private final OutputStream stream;
+        private boolean open = true;
+
+        /**
+         * Constructor for the StreamOutput
+         * @param stream The stream
+         */
+        private StreamOutput(OutputStream stream)
+        {
+            this.stream = stream;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException
+        {
+            int length = source.remaining();
+            if(source.hasArray())
+            {
+                stream.write(source.array(), source.arrayOffset() + source.position(), length);
+                source.position(source.limit());
+            }
+            else
+            {
+                byte[] bytes = new byte[length];
+                source.get(bytes);
+                stream.write(bytes);
+            }
+            return length;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            open = false;
+            stream.flush();
+        }
+    }
+
+    /**
+     * Collects the Hack code and appends it to text when it is closed.
+     */
+    private static class TextOutput implements WritableByteChannel
+    {
+        private final Appendable text;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final StreamOutput collector = new StreamOutput(code);
+
+        /**
+         * Constructor for the TextOutput
+         * @param text The text
+         */
+        private TextOutput(Appendable text)
+        {
+            this.text = text;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException
+        {
+            return collector.write(source);
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return collector.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if(!collector.isOpen())
+                return;
+            collector.close();
+            text.append(code.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Puts the Hack code into a buffer.
+     */
+    private static class BufferOutput implements WritableByteChannel
+    {
+        private final ByteBuffer buffer;
+        private boolean open = true;
+
+        /**
+         * Constructor for the BufferOutput
+         * @param buffer The buffer
+         */
+        private BufferOutput(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException
+        {
+            if(source.remaining()>buffer.remaining())
+                throw new IOException("The output does not fit in the buffer.");
+            int length = source.remaining();
+            buffer.put(source);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return open;
+        }
+
+        @Override
+        public void close()
+        {
+            open = false;
+        }
+    }
+
+    //endregion
+}
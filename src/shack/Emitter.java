@@ -0,0 +1,92 @@
+package shack;
+
+import java.io.Closeable;
+
+/**
+ * Receives the Hack instructions that the Shack code is converted to.
+ *
+ * Output can be held back from a given position on (e.g. while a jump is waiting for its label), and parts of the
+ * held output can be cut before it is written.
+ */
+public interface Emitter extends Closeable
+{
+    /**
+     * Emit a fixed instruction.
+     * @param instruction The instruction
+     */
+    void instruction(HackInstruction instruction);
+
+    /**
+     * Emit an A-instruction that loads a number (@address).
+     * @param address The number (0 to 32767)
+     */
+    void address(int address);
+
+    /**
+     * Emit an A-instruction that loads a symbol (@symbol).
+     * @param symbol The symbol ID
+     */
+    void symbol(int symbol);
+
+    /**
+     * Emit a label declaration ((label)).
+     * @param symbol The symbol ID of the label
+     */
+    void label(int symbol);
+
+    /**
+     * Get the current output position (how much has been emitted so far).
+     * @return The output position
+     */
+    long position();
+
+    /**
+     * Get the number of instructions emitted so far (labels are not instructions), which is the ROM address of the
+     * next instruction.
+     * @return The number of instructions
+     */
+    int instructionCount();
+
+    /**
+     * Hold back the output from the given position on, until it is released.
+     * @param position The output position
+     */
+    void holdFrom(long position);
+
+    /**
+     * Stop holding back the output.
+     */
+    void release();
+
+    /**
+     * Write the output that is not held back now, rather than once there is enough of it (e.g. so that a reader of a
+     * stream gets the code of the lines read so far while the next ones are awaited).
+     */
+    void flush();
+
+    /**
+     * Remove part of the held output.
+     * @param start The output position of the start of the part
+     * @param end The output position of the end of the part
+     */
+    void cut(long start, long end);
+
+    /**
+     * Check if the output could not be written.
+     * @return true if there was an error, false otherwise
+     */
+    boolean checkError();
+
+    /**
+     * Create an emitter for a part of the output that is emitted on its own (e.g. on another thread) and added to the
+     * end of this output by append. The instructions of the part are counted from 0.
+     * @return The emitter of the part, or null if the output cannot be split into parts
+     */
+    Emitter part();
+
+    /**
+     * Add a part, created by part, to the end of the output.
+     * @param part The emitter of the part
+     */
+    void append(Emitter part);
+}
@@ -0,0 +1,67 @@
+package shack;
+
+/**
+ * The kinds of errors found in a Shack program. The message of an error is the prefix of its kind, then its argument,
+ * then the suffix of its kind.
+ */
+public enum ErrorCode
+{
+    ILLEGAL_CHARACTER("Illegal character: ", "", Argument.CHARACTER),
+    EMPTY_NAME("String index out of range: 0", "", Argument.NONE), //a label or a symbol with no name (e.g. ":" or "#")
+    INCORRECT_NUMBER_OF_OPERANDS("Incorrect number of operands for ", "", Argument.SYMBOL), //the instruction code
+    ILLEGAL_OPCODE("Illegal opcode: ", "", Argument.TEXT), //the whole line
+    ILLEGAL_OPERAND("Illegal operand: ", "", Argument.TEXT),
+    LABEL_DEFINED_TWICE("ROM label ", " has been defined more than once.", Argument.SYMBOL),
+    LABEL_DEFINED_AS_VARIABLE("ROM label ", " has been defined as a RAM label.", Argument.SYMBOL),
+    OPCODE_AS_LABEL("", " is an opcode and may not be used as a label.", Argument.SYMBOL),
+    LABEL_NOT_DEFINED("Instruction label ", " has not been defined.", Argument.SYMBOL),
+    VARIABLE_NOT_DECLARED("RAM label ", " has not been declared.", Argument.SYMBOL),
+    VARIABLE_AS_JUMP_TARGET("RAM label ", " has been used as a jump destination.", Argument.SYMBOL);
+
+    /**
+     * What the argument of an error is.
+     */
+    public enum Argument
+    {
+        NONE,
+        CHARACTER, //the argument is a character
+        SYMBOL, //the argument is a symbol ID
+        TEXT //the argument is a piece of the line, kept as text
+    }
+
+    private final String prefix;
+    private final String suffix;
+    private final Argument argument;
+
+    /**
+     * Constructor for the ErrorCode
+     * @param prefix The start of the message
+     * @param suffix The end of the message
+     * @param argument What the argument is
+     */
+    ErrorCode(String prefix, String suffix, Argument argument)
+    {
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.argument = argument;
+    }
+
+    /**
+     * Get what the argument of an error of this kind is.
+     * @return The kind of argument
+     */
+    public Argument argument()
+    {
+        return argument;
+    }
+
+    /**
+     * Put together the message of an error of this kind.
+     * @param argument The argument, as text
+     * @return The message
+     */
+    public String message(String argument)
+    {
+        return prefix + argument + suffix;
+    }
+}
@@ -0,0 +1,464 @@
+package shack;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Optimizes the control flow of the whole program before passing it on to another emitter. The program is held back
+ * until it is closed, since a jump can go anywhere in it, and split into basic blocks at its labels and jumps:
+ * - a jump to a block that only jumps somewhere else goes straight there (e.g. "JMP a" where "a: JMP b" becomes
+ *   "JMP b"), as long as the value of A it leaves behind is not used;
+ * - the blocks that cannot be reached from the start of the program (or from a label whose address is loaded into A
+ *   for something other than a jump) are dropped. A program that jumps to a numeric address can jump anywhere, so none
+ *   of its blocks are dropped.
+ * The values of A, D and the memory stay the same at every instruction that is run.
+ *
+ * If the next emitter is the peephole optimizer, it is also told which registers are read after every label, so that
+ * it only keeps the ones that are (e.g. LOAD D does not save and restore A if the code after the next label loads A
+ * before reading it).
+ *
+ * It can also warn about the variables and labels that are never used, and report what it saved.
+ */
+public class FlowOptimizer implements Emitter
+{
+    private static final HackInstruction[] INSTRUCTIONS = HackInstruction.values(); //by ordinal
+
+    //Kinds of held back records
+    private static final int INSTRUCTION = 0;
+    private static final int ADDRESS = 1;
+    private static final int SYMBOL = 2;
+    private static final int LABEL = 3;
+
+    private static final int REGISTERS = HackInstruction.REGISTER_A | HackInstruction.REGISTER_D;
+    private static final int NO_LABEL = -1;
+    private static final int MAX_HOPS = 64; //the most blocks that only jump that a jump is threaded through
+
+    private final Emitter next;
+    private final SymbolTable symbols;
+    private final boolean optimizing;
+    private final PrintStream report;
+    private final PeepholeOptimizer registers; //the next emitter, if it is the peephole optimizer (null otherwise)
+
+    private int[] kinds = new int[1024];
+    private int[] operands = new int[1024]; //instruction ordinal, address or symbol ID
+    private int size;
+    private int instructions;
+    private boolean closed;
+
+    /**
+     * Constructor for the FlowOptimizer
+     * @param next The emitter the optimized program is passed on to
+     * @param symbols The symbol table the labels and variables are taken from
+     * @param optimizing true if the jumps should be threaded and the unreachable blocks dropped, false if the program is
+     *                   only checked for unused symbols
+     * @param report Where the unused variables and labels and what was saved are printed (or null)
+     */
+    public FlowOptimizer(Emitter next, SymbolTable symbols, boolean optimizing, PrintStream report)
+    {
+        this.next = next;
+        this.symbols = symbols;
+        this.optimizing = optimizing;
+        this.report = report;
+        registers = next instanceof PeepholeOptimizer ? (PeepholeOptimizer) next : null;
+    }
+
+    @Override
+    public void instruction(HackInstruction instruction)
+    {
+        hold(INSTRUCTION, instruction.ordinal());
+        instructions++;
+    }
+
+    @Override
+    public void address(int address)
+    {
+        hold(ADDRESS, address);
+        instructions++;
+    }
+
+    @Override
+    public void symbol(int symbol)
+    {
+        hold(SYMBOL, symbol);
+        instructions++;
+    }
+
+    @Override
+    public void label(int symbol)
+    {
+        hold(LABEL, symbol);
+    }
+
+    /**
+     * Hold back a record.
+     * @param kind INSTRUCTION, ADDRESS, SYMBOL or LABEL
+     * @param operand The instruction ordinal, the address or the symbol ID
+     */
+    private void hold(int kind, int operand)
+    {
+        if(size==kinds.length)
+        {
+            kinds = Arrays.copyOf(kinds, size*2);
+            operands = Arrays.copyOf(operands, size*2);
+        }
+        kinds[size] = kind;
+        operands[size] = operand;
+        size++;
+    }
+
+    /**
+     * Check if the record at a position is a jump instruction.
+     * @param position The position
+     * @return true if it is, false otherwise
+     */
+    private boolean isJump(int position)
+    {
+        return position<size && kinds[position]==INSTRUCTION && INSTRUCTIONS[operands[position]].isJump();
+    }
+
+    /**
+     * Check if the record at a position is an unconditional jump.
+     * @param position The position
+     * @return true if it is, false otherwise
+     */
+    private boolean isUnconditionalJump(int position)
+    {
+        return position<size && kinds[position]==INSTRUCTION && operands[position]==HackInstruction.JMP.ordinal();
+    }
+
+    /**
+     * Find where every label is.
+     * @return The position of the label record, by symbol ID (NO_LABEL for the symbols that are not labels)
+     */
+    private int[] findLabels()
+    {
+        int[] labels = new int[symbols.size()];
+        Arrays.fill(labels, NO_LABEL);
+        for(int i=0; i<size; i++)
+            if(kinds[i]==LABEL && labels[operands[i]]==NO_LABEL)
+                labels[operands[i]] = i;
+        return labels;
+    }
+
+    /**
+     * Get the position of the first instruction at or after a position (skipping labels).
+     * @param position The position
+     * @return The position of the instruction, or size if there is none
+     */
+    private int skipLabels(int position)
+    {
+        while(position<size && kinds[position]==LABEL)
+            position++;
+        return position;
+    }
+
+    /**
+     * Make every jump to a block that only jumps somewhere else go straight to where that block jumps to.
+     * @param labels The positions of the labels, by symbol ID
+     * @return The number of jumps that were changed
+     */
+    private int threadJumps(int[] labels)
+    {
+        int threaded = 0;
+        for(int jump=1; jump<size; jump++)
+        {
+            if(!isJump(jump) || kinds[jump-1]!=SYMBOL || labels[operands[jump-1]]==NO_LABEL)
+                continue;
+
+            //A conditional jump that is not taken leaves the address of its label in A, so it can only be changed if
+            //the instruction after it loads A without reading it
+            int after = skipLabels(jump + 1);
+            if(!isUnconditionalJump(jump) && after<size && kinds[after]==INSTRUCTION &&
+                    !overwritesA(INSTRUCTIONS[operands[after]]))
+                continue;
+
+            int target = followJumps(labels, operands[jump-1]);
+            if(target==NO_LABEL || (kinds[target]==SYMBOL && operands[target]==operands[jump-1]))
+                continue;
+            kinds[jump-1] = kinds[target];
+            operands[jump-1] = operands[target];
+            threaded++;
+        }
+        return threaded;
+    }
+
+    /**
+     * Check if an instruction loads A without reading it first.
+     * @param instruction The instruction
+     * @return true if it does, false otherwise
+     */
+    private static boolean overwritesA(HackInstruction instruction)
+    {
+        return (instruction.writes() & HackInstruction.REGISTER_A)!=0 &&
+                (instruction.reads() & HackInstruction.REGISTER_A)==0;
+    }
+
+    /**
+     * Follow the blocks that only jump somewhere else, from a label on. Any of the blocks on the way can be jumped to
+     * instead of the label, so a long chain (or a loop of them) is only followed so far.
+     * @param labels The positions of the labels, by symbol ID
+     * @param label The symbol ID of the label
+     * @return The position of the A-instruction of the last jump on the way, or NO_LABEL if the block of the label does
+     *         more than jump
+     */
+    private int followJumps(int[] labels, int label)
+    {
+        int found = NO_LABEL;
+        for(int hops=0; hops<MAX_HOPS; hops++)
+        {
+            int start = skipLabels(labels[label]);
+            if(!isUnconditionalJump(start + 1) || (kinds[start]!=ADDRESS && kinds[start]!=SYMBOL))
+                break;
+            found = start;
+            if(kinds[start]==ADDRESS || labels[operands[start]]==NO_LABEL)
+                break;
+            label = operands[start];
+        }
+        return found;
+    }
+
+    /**
+     * Find the records that can be run: the ones that can be reached from the start of the program or from a label
+     * whose address is used for something other than a jump.
+     * @param labels The positions of the labels, by symbol ID
+     * @return The reachable records, or null if where the program jumps to is not known (so all of them are kept)
+     */
+    private BitSet findReachable(int[] labels)
+    {
+        ArrayDeque<Integer> starts = new ArrayDeque<>();
+        starts.push(0);
+        for(int i=0; i<size; i++)
+        {
+            if(isJump(i + 1))
+            {
+                if(kinds[i]!=SYMBOL || labels[operands[i]]==NO_LABEL)
+                    return null; //a numeric address, which may be any instruction
+            }
+            else if(kinds[i]==SYMBOL && labels[operands[i]]!=NO_LABEL)
+                starts.push(labels[operands[i]]);
+        }
+        if(size>0 && isJump(0))
+            return null;
+
+        BitSet reachable = new BitSet(size);
+        while(!starts.isEmpty())
+        {
+            //Go through the code from the start until an unconditional jump or code that has been reached already
+            for(int i=starts.pop(); i<size && !reachable.get(i); i++)
+            {
+                reachable.set(i);
+                if(isJump(i))
+                    starts.push(labels[operands[i-1]]);
+                if(isUnconditionalJump(i))
+                    break;
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Print the variables and labels that are never used, in the order they were declared.
+     */
+    private void reportUnused()
+    {
+        BitSet used = new BitSet(symbols.size());
+        for(int i=0; i<size; i++)
+            if(kinds[i]==SYMBOL)
+                used.set(operands[i]);
+
+        ArrayList<Integer> unused = new ArrayList<>();
+        for(int id=0; id<symbols.size(); id++)
+            if(symbols.is(id, SymbolTable.RAM) && !used.get(id))
+                unused.add(id);
+        for(int i=0; i<size; i++)
+            if(kinds[i]==LABEL && !used.get(operands[i]) && !symbols.is(operands[i], SymbolTable.RAM))
+                unused.add(operands[i]);
+        unused.sort((a, b)->Integer.compare(symbols.line(a), symbols.line(b)));
+
+        StringBuilder messages = new StringBuilder();
+        for(int id: unused)
+            messages.append("Warning: ").append(symbols.is(id, SymbolTable.RAM) ? "RAM label " : "ROM label ")
+                    .append(symbols.name(id)).append(" is never used.").append(System.lineSeparator());
+        report.print(messages);
+    }
+
+    @Override
+    public long position()
+    {
+        return size;
+    }
+
+    @Override
+    public int instructionCount()
+    {
+        return closed ? next.instructionCount() : instructions;
+    }
+
+    @Override
+    public void holdFrom(long position)
+    {
+        //Everything is held until the emitter is closed
+    }
+
+    @Override
+    public void release()
+    {
+    }
+
+    @Override
+    public void flush()
+    {
+        //Nothing is written until the whole program is known
+    }
+
+    @Override
+    public void cut(long start, long end)
+    {
+        int from = (int) start;
+        int to = (int) end;
+        for(int i=from; i<to; i++)
+            if(kinds[i]!=LABEL)
+                instructions--;
+        System.arraycopy(kinds, to, kinds, from, size - to);
+        System.arraycopy(operands, to, operands, from, size - to);
+        size -= to - from;
+    }
+
+    @Override
+    public boolean checkError()
+    {
+        return next.checkError();
+    }
+
+    @Override
+    public Emitter part()
+    {
+        return null; //the blocks can jump to each other from anywhere in the program
+    }
+
+    @Override
+    public void append(Emitter part)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Drop the records that cannot be run.
+     * @param reachable The records that can be run
+     * @return The number of instructions dropped
+     */
+    private int dropUnreachable(BitSet reachable)
+    {
+        int removed = 0;
+        int kept = 0;
+        for(int i=0; i<size; i++)
+            if(reachable.get(i))
+            {
+                kinds[kept] = kinds[i];
+                operands[kept] = operands[i];
+                kept++;
+            }
+            else if(kinds[i]!=LABEL)
+                removed++;
+        size = kept;
+        return removed;
+    }
+
+    /**
+     * Find the registers that are read after every label before they are written, following the jumps (the ones after
+     * the end of the program are never read, and the ones after a jump to a numeric address always are).
+     * @param labels The positions of the labels, by symbol ID
+     * @return A and D (HackInstruction.REGISTER_A and REGISTER_D), combined, by label symbol ID
+     */
+    private int[] findLiveRegisters(int[] labels)
+    {
+        int[] live = new int[symbols.size()];
+
+        //The registers read at a label depend on the ones read at the labels it jumps to, which may come before it,
+        //so the program is gone through backwards until nothing changes (at most once more than it has nested loops)
+        boolean changed = true;
+        while(changed)
+        {
+            changed = false;
+            int registers = 0;
+            for(int i=size-1; i>=0; i--)
+            {
+                if(kinds[i]==LABEL)
+                {
+                    changed |= live[operands[i]]!=registers;
+                    live[operands[i]] = registers;
+                }
+                else if(kinds[i]!=INSTRUCTION)
+                    registers &= ~HackInstruction.REGISTER_A;
+                else
+                {
+                    HackInstruction instruction = INSTRUCTIONS[operands[i]];
+                    if(instruction.isJump())
+                    {
+                        int target = i>0 && kinds[i-1]==SYMBOL && labels[operands[i-1]]!=NO_LABEL ?
+                                live[operands[i-1]] : REGISTERS;
+                        registers = instruction==HackInstruction.JMP ? target : registers | target;
+                    }
+                    registers = (registers & ~instruction.writes()) | (instruction.reads() & REGISTERS);
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Optimize the program, pass it on and close the next emitter.
+     * @throws IOException If the next emitter could not be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(report!=null)
+            reportUnused();
+
+        int removed = 0;
+        int threaded = 0;
+        if(optimizing)
+        {
+            int[] labels = findLabels();
+            threaded = threadJumps(labels);
+            BitSet reachable = findReachable(labels);
+            if(reachable!=null)
+                removed = dropUnreachable(reachable);
+        }
+        int[] live = registers!=null ? findLiveRegisters(findLabels()) : null;
+
+        for(int i=0; i<size; i++)
+            switch(kinds[i])
+            {
+                case INSTRUCTION:
+                    next.instruction(INSTRUCTIONS[operands[i]]);
+                    break;
+                case ADDRESS:
+                    next.address(operands[i]);
+                    break;
+                case SYMBOL:
+                    next.symbol(operands[i]);
+                    break;
+                default:
+                    if(live!=null)
+                        registers.setLiveAfter(live[operands[i]]);
+
+                    //The labels move up by the instructions dropped before them
+                    symbols.setAddress(operands[i], next.instructionCount());
+                    next.label(operands[i]);
+            }
+
+        if(report!=null && optimizing)
+            report.println("Control flow: "+removed+" ROM words removed, "+threaded+
+                    (threaded==1 ? " jump" : " jumps")+" threaded.");
+        if(registers!=null)
+            registers.setLiveAfter(0); //nothing runs after the end of the program
+        closed = true;
+        next.close();
+    }
+}
@@ -0,0 +1,609 @@
+package shack;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs Hack programs, so that the code the assembler emits can be checked by what it does rather than by how it reads.
+ * It can run Shack source (assembled in memory), Hack assembly code and Hack machine code.
+ *
+ * The program is decoded once into an array of ints: an A-instruction is its address (0 or more) and a C-instruction
+ * is negative, with its computation, destination and jump bits kept where the dispatch loop can switch on them. The
+ * RAM is a 32K-word short[], addressed by the low 15 bits of A, like the Hack CPU does.
+ *
+ * A program stops when it runs past its last instruction, when it reaches the usual Hack end loop ((END) @END 0;JMP)
+ * or after the given number of instructions.
+ */
+public class HackEmulator
+{
+    private static final String USAGE = "Usage: java shack.HackEmulator [-s] [-O] [-c] [-n max-steps] [-r address=value]... [-x address=value]... [-p from-to] file.shk|file.asm|file.hack|file.bin";
+
+    public static final int RAM_SIZE = 1 << 15;
+    public static final long DEFAULT_MAX_STEPS = 1_000_000_000L;
+
+    private static final int ADDRESS_MASK = 0x7FFF;
+
+    //Decoded C-instructions: COMPUTE, then the a-bit and c-bits (7), the d-bits (3) and the j-bits (3), as in Hack
+    private static final int COMPUTE = 1 << 31;
+    private static final int HALT = 1 << 30; //an unconditional jump to the A-instruction right before it
+    private static final int DEST_A = 0b100 << 3;
+    private static final int DEST_D = 0b010 << 3;
+    private static final int DEST_M = 0b001 << 3;
+    private static final int JUMP_BITS = 0b111;
+
+    //The computations of the Hack assembly language, by their a-bit and c-bits (the M forms have the a-bit set)
+    private static final HashMap<String, Integer> computations = new HashMap<>(){{
+        put("0", 0b0101010);
+        put("1", 0b0111111);
+        put("-1", 0b0111010);
+        put("D", 0b0001100);
+        put("A", 0b0110000);
+        put("!D", 0b0001101);
+        put("!A", 0b0110001);
+        put("-D", 0b0001111);
+        put("-A", 0b0110011);
+        put("D+1", 0b0011111);
+        put("A+1", 0b0110111);
+        put("D-1", 0b0001110);
+        put("A-1", 0b0110010);
+        put("D+A", 0b0000010);
+        put("D-A", 0b0010011);
+        put("A-D", 0b0000111);
+        put("D&A", 0b0000000);
+        put("D|A", 0b0010101);
+        for(Map.Entry<String, Integer> entry: new ArrayList<>(entrySet()))
+            if(entry.getKey().indexOf('A')!=-1)
+                put(entry.getKey().replace('A', 'M'), entry.getValue() | 0b1000000);
+    }};
+    private static final List<String> jumps = List.of("", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP");
+
+    private final int[] code;
+    private final Map<String, Integer> symbols; //the addresses of the variables and labels, if the names are known
+    private final short[] ram = new short[RAM_SIZE];
+    private int a;
+    private int d;
+    private int pc;
+    private boolean halted;
+
+    public static void main(String[] args)
+    {
+        System.exit(run(List.of(args), System.out, System.err));
+    }
+
+    /**
+     * Run the emulator with the given command-line arguments: load the program, set the RAM, run it, then print the
+     * RAM that was asked for and check the expected values.
+     * @param args The arguments
+     * @param out Where the results are printed
+     * @param err Where the errors are printed
+     * @return The exit status: 0 if the program ran and every expected value was there, 1 otherwise
+     */
+    static int run(List<String> args, PrintStream out, PrintStream err)
+    {
+        Options options = new Options();
+        long maxSteps = DEFAULT_MAX_STEPS;
+        ArrayList<String> settings = new ArrayList<>();
+        ArrayList<String> expectations = new ArrayList<>();
+        String printed = null;
+        String file = null;
+        try{
+            for(int i=0; i<args.size(); i++)
+                if(args.get(i).equals("-s") || args.get(i).equals("--single-pass"))
+                    options.setSinglePass(true);
+                else if(args.get(i).equals("-O") || args.get(i).equals("--optimize"))
+                    options.setOptimizing(true);
+                else if(args.get(i).equals("-c") || args.get(i).equals("--control-flow"))
+                    options.setFlowOptimizing(true);
+                else if((args.get(i).equals("-n") || args.get(i).equals("--max-steps")) && i+1<args.size())
+                    maxSteps = Long.parseLong(args.get(++i));
+                else if((args.get(i).equals("-r") || args.get(i).equals("--ram")) && i+1<args.size())
+                    settings.add(args.get(++i));
+                else if((args.get(i).equals("-x") || args.get(i).equals("--expect")) && i+1<args.size())
+                    expectations.add(args.get(++i));
+                else if((args.get(i).equals("-p") || args.get(i).equals("--print")) && i+1<args.size())
+                    printed = args.get(++i);
+                else if(file==null)
+                    file = args.get(i);
+                else
+                    throw new IllegalArgumentException();
+        }catch(IllegalArgumentException ex)
+        {
+            file = null; //a number that could not be parsed
+        }
+        if(file==null)
+        {
+            err.println(USAGE);
+            return 1;
+        }
+
+        HackEmulator emulator;
+        try{
+            emulator = load(Path.of(file), options, err);
+        }catch(IOException ex)
+        {
+            err.println(ex.getMessage()!=null ? ex.getMessage() : "Unable to read "+file);
+            return 1;
+        }
+        if(emulator==null)
+            return 1;
+
+        for(String setting: settings)
+        {
+            int[] cell = emulator.parseCell(setting, err);
+            if(cell==null)
+                return 1;
+            emulator.setRam(cell[0], cell[1]);
+        }
+
+        long start = System.nanoTime();
+        long steps = emulator.run(maxSteps);
+        long time = System.nanoTime() - start;
+        out.printf("%d instructions in %.1f ms (%.0f million per second), %s.%n", steps, time/1e6,
+                time==0 ? 0.0 : steps*1e3/time, emulator.isHalted() ? "halted" : emulator.pc()>=emulator.length() ?
+                "ran past the last instruction" : "stopped after "+maxSteps+" instructions");
+
+        if(printed!=null)
+        {
+            int dash = printed.indexOf('-');
+            int from = emulator.address(dash==-1 ? printed : printed.substring(0, dash));
+            int to = dash==-1 ? from : emulator.address(printed.substring(dash+1));
+            if(from<0 || to<from)
+            {
+                err.println("Unknown RAM range: "+printed);
+                return 1;
+            }
+            for(int address=from; address<=to; address++)
+                out.println("RAM["+address+"] = "+emulator.ram(address));
+        }
+
+        int status = 0;
+        for(String expectation: expectations)
+        {
+            int[] cell = emulator.parseCell(expectation, err);
+            if(cell==null)
+                return 1;
+            if(emulator.ram(cell[0])!=(short) cell[1])
+            {
+                err.println("RAM["+cell[0]+"] is "+emulator.ram(cell[0])+", expected "+(short) cell[1]+".");
+                status = 1;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Parse a RAM cell and its value, given as address=value (the address can be a symbol of the program).
+     * @param text The cell and its value
+     * @param err Where the error is printed if it cannot be parsed
+     * @return The address and the value, or null if it cannot be parsed
+     */
+    private int[] parseCell(String text, PrintStream err)
+    {
+        int equals = text.indexOf('=');
+        try{
+            int address = equals==-1 ? -1 : address(text.substring(0, equals));
+            if(address>=0)
+                return new int[]{address, Integer.parseInt(text.substring(equals+1))};
+        }catch(NumberFormatException ex)
+        {
+            //reported below
+        }
+        err.println("Not a RAM cell and value: "+text);
+        return null;
+    }
+
+    /**
+     * Constructor for the HackEmulator
+     * @param program The Hack machine code
+     * @param length The number of words of machine code
+     * @param symbols The addresses of the variables and labels by their names (empty if they are not known)
+     */
+    public HackEmulator(short[] program, int length, Map<String, Integer> symbols)
+    {
+        this.symbols = symbols;
+        code = new int[length];
+        for(int i=0; i<length; i++)
+        {
+            int word = program[i] & 0xFFFF;
+            if((word & 0x8000)==0)
+                code[i] = word;
+            else
+            {
+                code[i] = COMPUTE | (word & 0x1FFF);
+                if((word & JUMP_BITS)==JUMP_BITS && i>0 && code[i-1]==i-1)
+                    code[i] |= HALT;
+            }
+        }
+    }
+
+    //region LOADING
+
+    /**
+     * Load a program from a file: Shack source (.shk, assembled first), Hack assembly code (.asm) or Hack machine code
+     * (.hack, one 16-digit binary word per line, or .bin, packed big-endian words).
+     * @param file The file
+     * @param options The settings the Shack source is assembled with
+     * @param err Where the errors of the Shack source are printed
+     * @return The emulator, or null if the Shack source has errors
+     * @throws IOException If the file cannot be read or is not a valid program
+     */
+    public static HackEmulator load(Path file, Options options, PrintStream err) throws IOException
+    {
+        String name = file.getFileName().toString();
+        if(name.endsWith(".shk"))
+            return fromShack(ByteBuffer.wrap(Files.readAllBytes(file)), options, err);
+        if(name.endsWith(".asm"))
+            return fromAssembly(Files.readAllLines(file, StandardCharsets.UTF_8));
+        if(name.endsWith(".bin"))
+        {
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+            short[] words = new short[bytes.remaining()/2];
+            bytes.asShortBuffer().get(words);
+            return new HackEmulator(words, words.length, Map.of());
+        }
+        if(name.endsWith(".hack"))
+        {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+            short[] words = new short[lines.size()];
+            int count = 0;
+            for(String line: lines)
+                if(!line.isBlank())
+                {
+                    if(!line.strip().matches("[01]{16}"))
+                        throw new IOException("Line "+(count+1)+" of "+file+" is not a 16-bit binary word.");
+                    words[count++] = (short) Integer.parseInt(line.strip(), 2);
+                }
+            return new HackEmulator(words, count, Map.of());
+        }
+        throw new IOException("Unknown kind of program: "+file);
+    }
+
+    /**
+     * Assemble Shack source and load the Hack assembly code it is converted to.
+     * @param source The Shack source
+     * @param options The settings it is assembled with (only the pass mode and the optimizations are used; the output
+     *                is always Hack assembly code)
+     * @param err Where its errors are printed
+     * @return The emulator, or null if the source has errors
+     */
+    public static HackEmulator fromShack(ByteBuffer source, Options options, PrintStream err)
+    {
+        Options assembly = new Options();
+        assembly.setSinglePass(options.isSinglePass());
+        assembly.setOptimizing(options.isOptimizing());
+        assembly.setFlowOptimizing(options.isFlowOptimizing());
+        StringBuilder code = new StringBuilder();
+        AssemblyResult result = new EmbeddedAssembler(assembly).assemble(source, EmbeddedAssembler.output(code));
+
+        for(AssemblyResult.Diagnostic error: result.errors())
+            err.println(error.message());
+        for(String error: result.outputErrors())
+            err.println(error);
+        if(!result.isSuccessful())
+            return null;
+
+        try{
+            return fromAssembly(code.toString().lines().toList());
+        }catch(IOException ex)
+        {
+            throw new IllegalStateException(ex); //the assembler only writes valid Hack assembly code
+        }
+    }
+
+    /**
+     * Assemble Hack assembly code the way the Hack assembler does: labels get the ROM addresses of the instructions
+     * after them and variables get RAM addresses from 16 up, in the order they are first used.
+     * @param lines The lines of the code
+     * @return The emulator
+     * @throws IOException If a line is not valid Hack assembly code
+     */
+    public static HackEmulator fromAssembly(List<String> lines) throws IOException
+    {
+        //The labels are found first, since a jump can come before the label it goes to
+        HashMap<String, Integer> symbols = new HashMap<>();
+        ArrayList<String> instructions = new ArrayList<>();
+        ArrayList<Integer> lineNumbers = new ArrayList<>();
+        for(int i=0; i<lines.size(); i++)
+        {
+            String line = strip(lines.get(i));
+            if(line.isEmpty())
+                continue;
+            if(line.startsWith("(") && line.endsWith(")"))
+                symbols.put(line.substring(1, line.length()-1), instructions.size());
+            else
+            {
+                instructions.add(line);
+                lineNumbers.add(i+1);
+            }
+        }
+
+        short[] words = new short[instructions.size()];
+        int variables = 0;
+        for(int i=0; i<words.length; i++)
+        {
+            String instruction = instructions.get(i);
+            int word;
+            if(!instruction.startsWith("@"))
+                word = encodeComputation(instruction);
+            else if(instruction.matches("@[0-9]+"))
+                word = Integer.parseInt(instruction.substring(1)) <= ADDRESS_MASK ?
+                        Integer.parseInt(instruction.substring(1)) : -1;
+            else
+            {
+                String name = instruction.substring(1);
+                Integer address = symbols.get(name);
+                if(address==null)
+                {
+                    address = SymbolTable.predefinedAddress(name);
+                    if(address==SymbolTable.NO_ADDRESS)
+                        address = SymbolTable.FIRST_VARIABLE_ADDRESS + variables++;
+                    symbols.put(name, address);
+                }
+                word = address;
+            }
+            if(word<0)
+                throw new IOException("Line "+lineNumbers.get(i)+" is not a Hack instruction: "+instruction);
+            words[i] = (short) word;
+        }
+        return new HackEmulator(words, words.length, symbols);
+    }
+
+    /**
+     * Remove the comment and the whitespace of a line of Hack assembly code.
+     * @param line The line
+     * @return What is left
+     */
+    private static String strip(String line)
+    {
+        int comment = line.indexOf("//");
+        if(comment!=-1)
+            line = line.substring(0, comment);
+        return line.replaceAll("\\s", "");
+    }
+
+    /**
+     * Encode a C-instruction (dest=comp;jump, without whitespace).
+     * @param instruction The instruction
+     * @return The machine code, or -1 if it is not a valid C-instruction
+     */
+    private static int encodeComputation(String instruction)
+    {
+        int equals = instruction.indexOf('=');
+        int semicolon = instruction.indexOf(';');
+        String destination = equals==-1 ? "" : instruction.substring(0, equals);
+        Integer computation = computations.get(instruction.substring(equals+1, semicolon==-1 ? instruction.length() :
+                semicolon));
+        int jump = semicolon==-1 ? 0 : jumps.indexOf(instruction.substring(semicolon+1));
+        if(computation==null || jump<=0 && semicolon!=-1)
+            return -1;
+
+        int destinationBits = 0;
+        for(char register: destination.toCharArray())
+        {
+            int bit = register=='A' ? DEST_A : register=='D' ? DEST_D : register=='M' ? DEST_M : 0;
+            if(bit==0 || (destinationBits & bit)!=0)
+                return -1;
+            destinationBits |= bit;
+        }
+        return 0b111 << 13 | computation << 6 | destinationBits | jump;
+    }
+
+    //endregion
+
+    /**
+     * Run the program from where it is, until it stops.
+     * @param maxSteps The largest number of instructions run
+     * @return The number of instructions run
+     */
+    public long run(long maxSteps)
+    {
+        //The state is kept in local variables while the program runs, so that it stays in registers
+        final int[] code = this.code;
+        final short[] ram = this.ram;
+        int a = this.a;
+        int d = this.d;
+        int pc = this.pc;
+        long steps = 0;
+        if(halted)
+            return 0;
+        while(steps<maxSteps && pc<code.length)
+        {
+            int instruction = code[pc++];
+            steps++;
+            if(instruction>=0)
+            {
+                a = instruction;
+                continue;
+            }
+
+            int out;
+            switch((instruction >> 6) & 0x7F)
+            {
+                case 0b0101010: out = 0; break;
+                case 0b0111111: out = 1; break;
+                case 0b0111010: out = -1; break;
+                case 0b0001100: out = d; break;
+                case 0b0110000: out = a; break;
+                case 0b1110000: out = ram[a & ADDRESS_MASK]; break;
+                case 0b0001101: out = ~d; break;
+                case 0b0110001: out = ~a; break;
+                case 0b1110001: out = ~ram[a & ADDRESS_MASK]; break;
+                case 0b0001111: out = -d; break;
+                case 0b0110011: out = -a; break;
+                case 0b1110011: out = -ram[a & ADDRESS_MASK]; break;
+                case 0b0011111: out = d + 1; break;
+                case 0b0110111: out = a + 1; break;
+                case 0b1110111: out = ram[a & ADDRESS_MASK] + 1; break;
+                case 0b0001110: out = d - 1; break;
+                case 0b0110010: out = a - 1; break;
+                case 0b1110010: out = ram[a & ADDRESS_MASK] - 1; break;
+                case 0b0000010: out = d + a; break;
+                case 0b1000010: out = d + ram[a & ADDRESS_MASK]; break;
+                case 0b0010011: out = d - a; break;
+                case 0b1010011: out = d - ram[a & ADDRESS_MASK]; break;
+                case 0b0000111: out = a - d; break;
+                case 0b1000111: out = ram[a & ADDRESS_MASK] - d; break;
+                case 0b0000000: out = d & a; break;
+                case 0b1000000: out = d & ram[a & ADDRESS_MASK]; break;
+                case 0b0010101: out = d | a; break;
+                case 0b1010101: out = d | ram[a & ADDRESS_MASK]; break;
+                default: out = alu(instruction >> 6, d, (instruction & (1 << 12))!=0 ? ram[a & ADDRESS_MASK] : a);
+            }
+            out = (short) out;
+
+            //The jump goes to the address A had before the instruction (and M is the word at that address)
+            int target = a;
+            if((instruction & DEST_M)!=0)
+                ram[a & ADDRESS_MASK] = (short) out;
+            if((instruction & DEST_A)!=0)
+                a = out;
+            if((instruction & DEST_D)!=0)
+                d = out;
+
+            int jump = instruction & JUMP_BITS;
+            if(jump!=0 && (jump & (out<0 ? 0b100 : out==0 ? 0b010 : 0b001))!=0)
+            {
+                pc = target & ADDRESS_MASK;
+                if((instruction & HALT)!=0)
+                {
+                    halted = true;
+                    break;
+                }
+            }
+        }
+
+        this.a = a;
+        this.d = d;
+        this.pc = pc;
+        return steps;
+    }
+
+    /**
+     * Compute with the Hack ALU, for the computations the Hack assembly language has no name for.
+     * @param bits The a-bit and c-bits of the instruction (the a-bit is ignored)
+     * @param x The D register
+     * @param y The A register or the memory word, depending on the a-bit
+     * @return The result
+     */
+    private static int alu(int bits, int x, int y)
+    {
+        if((bits & 0b100000)!=0) //zx
+            x = 0;
+        if((bits & 0b010000)!=0) //nx
+            x = ~x;
+        if((bits & 0b001000)!=0) //zy
+            y = 0;
+        if((bits & 0b000100)!=0) //ny
+            y = ~y;
+        int out = (bits & 0b000010)!=0 ? x + y : x & y; //f
+        return (bits & 0b000001)!=0 ? ~out : out; //no
+    }
+
+    /**
+     * Start the program again, with the registers cleared. Like the reset of the Hack CPU, the RAM keeps what it holds.
+     */
+    public void reset()
+    {
+        a = 0;
+        d = 0;
+        pc = 0;
+        halted = false;
+    }
+
+    /**
+     * Clear every word of the RAM.
+     */
+    public void clearRam()
+    {
+        Arrays.fill(ram, (short) 0);
+    }
+
+    /**
+     * Check if the program has reached the Hack end loop.
+     * @return true if it has, false otherwise
+     */
+    public boolean isHalted()
+    {
+        return halted;
+    }
+
+    /**
+     * Get the number of instructions of the program.
+     * @return The number of instructions
+     */
+    public int length()
+    {
+        return code.length;
+    }
+
+    /**
+     * Get the address of the next instruction.
+     * @return The ROM address
+     */
+    public int pc()
+    {
+        return pc;
+    }
+
+    /**
+     * Get the A register.
+     * @return The value of A
+     */
+    public short a()
+    {
+        return (short) a;
+    }
+
+    /**
+     * Get the D register.
+     * @return The value of D
+     */
+    public short d()
+    {
+        return (short) d;
+    }
+
+    /**
+     * Get a word of the RAM.
+     * @param address The address (0 to 32767)
+     * @return The word
+     */
+    public short ram(int address)
+    {
+        return ram[address];
+    }
+
+    /**
+     * Set a word of the RAM.
+     * @param address The address (0 to 32767)
+     * @param value The word (only its low 16 bits are kept)
+     */
+    public void setRam(int address, int value)
+    {
+        ram[address] = (short) value;
+    }
+
+    /**
+     * Find the address of a RAM cell.
+     * @param cell A number, a symbol of the program or a symbol the Hack platform defines
+     * @return The address, or -1 if there is no such cell
+     */
+    public int address(String cell)
+    {
+        if(cell.matches("[0-9]+"))
+            return cell.length()<=5 && Integer.parseInt(cell)<RAM_SIZE ? Integer.parseInt(cell) : -1;
+        if(symbols.containsKey(cell))
+            return symbols.get(cell);
+        int predefined = SymbolTable.predefinedAddress(cell);
+        return predefined==SymbolTable.NO_ADDRESS ? -1 : predefined;
+    }
+}
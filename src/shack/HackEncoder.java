@@ -0,0 +1,247 @@
+package shack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Writes the Hack instructions as Hack machine code, so no Hack assembler is needed afterwards.
+ *
+ * The 16-bit words are kept in memory until the emitter is closed (or flushed), since a jump can come before the label
+ * it goes to; a jump whose label is still missing is held back, so its words are never flushed early. Variables are
+ * given the RAM addresses the symbol table allocated for them (from 16 up, in the order they are declared) and labels
+ * the ROM addresses of the instructions they are in front of.
+ */
+public class HackEncoder implements Emitter
+{
+    public static final int ROM_SIZE = 1 << 15; //the number of instructions that fit in the Hack ROM
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private final SymbolTable symbols;
+    private final boolean binary;
+
+    private short[] words = new short[1024];
+    private int count; //the number of words
+    private int[] references = new int[256]; //word index and symbol ID of every @symbol
+    private int referenceCount;
+    private int written; //the number of words written to the channel (words only holds the ones after them)
+    private long hold = Long.MAX_VALUE; //the word from which the output is held back
+    private ByteBuffer buffer; //the encoded words, as given to the channel
+    private boolean error;
+
+    /**
+     * Constructor for the HackEncoder
+     * @param channel The channel to write the machine code to
+     * @param symbols The symbol table the symbol addresses are taken from
+     * @param binary true for packed big-endian words, false for one line of 16 binary digits per word
+     */
+    public HackEncoder(WritableByteChannel channel, SymbolTable symbols, boolean binary)
+    {
+        this.channel = channel;
+        this.symbols = symbols;
+        this.binary = binary;
+    }
+
+    @Override
+    public void instruction(HackInstruction instruction)
+    {
+        add(instruction.code());
+    }
+
+    @Override
+    public void address(int address)
+    {
+        add((short) address);
+    }
+
+    @Override
+    public void symbol(int symbol)
+    {
+        if(referenceCount*2==references.length)
+            references = Arrays.copyOf(references, references.length*2);
+        references[referenceCount*2] = count;
+        references[referenceCount*2+1] = symbol;
+        referenceCount++;
+
+        //The address is filled in when the emitter is closed
+        add((short) 0);
+    }
+
+    @Override
+    public void label(int symbol)
+    {
+        //Labels take no space; their addresses are kept in the symbol table
+    }
+
+    /**
+     * Add a word to the program.
+     * @param word The word
+     */
+    private void add(short word)
+    {
+        if(count-written==words.length)
+            words = Arrays.copyOf(words, words.length*2);
+        words[count++ - written] = word;
+    }
+
+    @Override
+    public long position()
+    {
+        return count;
+    }
+
+    @Override
+    public int instructionCount()
+    {
+        return count;
+    }
+
+    @Override
+    public void holdFrom(long position)
+    {
+        hold = position;
+    }
+
+    @Override
+    public void release()
+    {
+        hold = Long.MAX_VALUE;
+    }
+
+    /**
+     * Fill in the symbol addresses of the words that are not held back and write them to the channel.
+     */
+    @Override
+    public void flush()
+    {
+        int end = (int) Math.min(count, hold);
+        if(end<=written)
+            return;
+
+        //A name that is both a label and a variable is taken as the label, like the Hack assembler does
+        int resolved = 0;
+        for(; resolved<referenceCount && references[resolved*2]<end; resolved++)
+        {
+            //A label in the output that is held back can still move up, if a jump before it is dropped
+            int symbol = references[resolved*2+1];
+            if(symbols.is(symbol, SymbolTable.ROM) && symbols.address(symbol)>=hold)
+            {
+                end = references[resolved*2];
+                break;
+            }
+            words[references[resolved*2] - written] = (short) symbols.address(symbol);
+        }
+        if(end<=written)
+            return;
+
+        if(buffer==null)
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        int wordSize = binary ? 2 : 16 + HackInstruction.LINE_SEPARATOR.length;
+        for(int i=0; i<end-written; i++)
+        {
+            if(buffer.remaining()<wordSize)
+                write(buffer);
+            if(binary)
+                buffer.putShort(words[i]);
+            else
+            {
+                for(int bit=15; bit>=0; bit--)
+                    buffer.put((byte) ('0' + ((words[i] >> bit) & 1)));
+                buffer.put(HackInstruction.LINE_SEPARATOR);
+            }
+        }
+        write(buffer);
+
+        System.arraycopy(words, end - written, words, 0, count - end);
+        System.arraycopy(references, resolved*2, references, 0, (referenceCount - resolved)*2);
+        referenceCount -= resolved;
+        written = end;
+    }
+
+    @Override
+    public void cut(long start, long end)
+    {
+        int from = (int) start;
+        int to = (int) end;
+        System.arraycopy(words, to - written, words, from - written, count - to);
+        count -= to - from;
+
+        //Drop the references inside the part and move the ones after it up
+        int kept = 0;
+        for(int i=0; i<referenceCount; i++)
+        {
+            int index = references[i*2];
+            if(index>=from && index<to)
+                continue;
+            references[kept*2] = index>=to ? index - (to - from) : index;
+            references[kept*2+1] = references[i*2+1];
+            kept++;
+        }
+        referenceCount = kept;
+    }
+
+    @Override
+    public boolean checkError()
+    {
+        return error;
+    }
+
+    @Override
+    public Emitter part()
+    {
+        //The words of the part are only kept in memory, until they are appended
+        return new HackEncoder(null, symbols, binary);
+    }
+
+    @Override
+    public void append(Emitter part)
+    {
+        HackEncoder code = (HackEncoder) part;
+        if(count-written+code.count>words.length)
+            words = Arrays.copyOf(words, Math.max(count-written+code.count, words.length*2));
+        System.arraycopy(code.words, 0, words, count - written, code.count);
+
+        //The references of the part point at its own words, which now come after the ones before it
+        int total = referenceCount + code.referenceCount;
+        if(total*2>references.length)
+            references = Arrays.copyOf(references, Math.max(total*2, references.length*2));
+        for(int i=0; i<code.referenceCount; i++)
+        {
+            references[(referenceCount+i)*2] = code.references[i*2] + count;
+            references[(referenceCount+i)*2+1] = code.references[i*2+1];
+        }
+        referenceCount = total;
+        count += code.count;
+    }
+
+    /**
+     * Fill in the symbol addresses, write the machine code that is left and close the channel.
+     * @throws IOException If the channel could not be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        release();
+        flush();
+        channel.close();
+    }
+
+    /**
+     * Write the buffer to the channel and clear it.
+     * @param buffer The buffer
+     */
+    private void write(ByteBuffer buffer)
+    {
+        try{
+            buffer.flip();
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+        }catch(IOException ex){
+            error = true;
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,154 @@
+package shack;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The fixed Hack instructions the Shack instructions are converted to (everything except @address, @symbol and
+ * (label), which depend on the operands). The text of every instruction, line separator included, is encoded once,
+ * and so is its machine code.
+ */
+public enum HackInstruction
+{
+    A_EQ_D("A=D", 0b1110001100100000),
+    A_EQ_M("A=M", 0b1111110000100000),
+    D_EQ_A("D=A", 0b1110110000010000),
+    D_EQ_M("D=M", 0b1111110000010000),
+    M_EQ_D("M=D", 0b1110001100001000),
+    AT_R13("@R13", 0b0000000000001101),
+
+    D_PLUS_ONE("D=D+1", 0b1110011111010000),
+    D_MINUS_ONE("D=D-1", 0b1110001110010000),
+    D_ZERO("D=0", 0b1110101010010000),
+    D_NEG("D=-D", 0b1110001111010000),
+    D_NOT("D=!D", 0b1110001101010000),
+
+    D_PLUS_A("D=D+A", 0b1110000010010000),
+    D_PLUS_M("D=D+M", 0b1111000010010000),
+    D_AND_A("D=D&A", 0b1110000000010000),
+    D_AND_M("D=D&M", 0b1111000000010000),
+    D_OR_A("D=D|A", 0b1110010101010000),
+    D_OR_M("D=D|M", 0b1111010101010000),
+    D_MINUS_A("D=D-A", 0b1110010011010000),
+    D_MINUS_M("D=D-M", 0b1111010011010000),
+
+    JMP("0; JMP", 0b1110101010000111),
+    JGT("D; JGT", 0b1110001100000001),
+    JEQ("D; JEQ", 0b1110001100000010),
+    JGE("D; JGE", 0b1110001100000011),
+    JLT("D; JLT", 0b1110001100000100),
+    JNE("D; JNE", 0b1110001100000101),
+    JLE("D; JLE", 0b1110001100000110);
+
+    public static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    //What an instruction reads and writes (M is the memory word at the address in A, so it also reads A)
+    public static final int REGISTER_A = 1;
+    public static final int REGISTER_D = 2;
+    public static final int MEMORY = 4;
+
+    private final String text;
+    private final byte[] line;
+    private final short code;
+    private final int reads;
+    private final int writes;
+    private final boolean jump;
+
+    /**
+     * Constructor for the HackInstruction
+     * @param text The Hack code of the instruction
+     * @param code The machine code of the instruction
+     */
+    HackInstruction(String text, int code)
+    {
+        this.text = text;
+        this.code = (short) code;
+        line = (text + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII);
+
+        //Split dest=comp;jump (an A-instruction only writes A)
+        int equals = text.indexOf('=');
+        int semicolon = text.indexOf(';');
+        jump = semicolon!=-1;
+        if(text.startsWith("@"))
+        {
+            reads = 0;
+            writes = REGISTER_A;
+        }
+        else
+        {
+            writes = registers(equals==-1 ? "" : text.substring(0, equals));
+            int read = registers(text.substring(equals+1, jump ? semicolon : text.length()));
+            reads = read | (jump || ((read | writes) & MEMORY)!=0 ? REGISTER_A : 0);
+        }
+    }
+
+    /**
+     * Get the registers named in part of an instruction.
+     * @param part The part (the destination or the computation)
+     * @return The registers (REGISTER_A, REGISTER_D and MEMORY)
+     */
+    private static int registers(String part)
+    {
+        int registers = 0;
+        if(part.indexOf('A')!=-1)
+            registers |= REGISTER_A;
+        if(part.indexOf('D')!=-1)
+            registers |= REGISTER_D;
+        if(part.indexOf('M')!=-1)
+            registers |= MEMORY;
+        return registers;
+    }
+
+    /**
+     * Get the Hack code of the instruction.
+     * @return The Hack code
+     */
+    public String text()
+    {
+        return text;
+    }
+
+    /**
+     * Get the machine code of the instruction (a 16-bit Hack word).
+     * @return The machine code
+     */
+    public short code()
+    {
+        return code;
+    }
+
+    /**
+     * Get the registers the instruction reads.
+     * @return REGISTER_A, REGISTER_D and MEMORY, combined
+     */
+    public int reads()
+    {
+        return reads;
+    }
+
+    /**
+     * Get the registers the instruction writes (a write to MEMORY also reads A, for the address).
+     * @return REGISTER_A, REGISTER_D and MEMORY, combined
+     */
+    public int writes()
+    {
+        return writes;
+    }
+
+    /**
+     * Check if the instruction is a jump.
+     * @return true if it is, false otherwise
+     */
+    public boolean isJump()
+    {
+        return jump;
+    }
+
+    /**
+     * Get the encoded line of the instruction (the Hack code followed by the line separator).
+     * @return The encoded line
+     */
+    public byte[] line()
+    {
+        return line;
+    }
+}
@@ -0,0 +1,721 @@
+package shack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembles a Shack file again and again (e.g. every time it is saved), keeping what it can from the previous assembly.
+ * Every distinct line is only parsed once, and the code of a line is only generated again if the line is new or if the
+ * symbol it refers to changed meaning (e.g. a variable whose declaration was removed). Only the part of the output file
+ * that changed is rewritten.
+ *
+ * The symbols are declared again on every assembly, in the order of the lines, so the errors are the same ones (in the
+ * same order) as when the file is assembled from scratch. Lines are matched by their text, so a line that moved keeps
+ * its code.
+ */
+public class IncrementalAssembler
+{
+    private static final long SETTLE_TIME = 50; //milliseconds without changes before a changed file is assembled
+    private static final int DIFF_BLOCK_SIZE = 4096; //the end of the source is compared a block at a time first
+    private static final int EVICTION_SLACK = 1024; //lines that are gone which are kept anyway, for small sources
+
+    //Kinds of lines, after the ones returned by Assembler.scanLine
+    private static final int UNKNOWN = -1;
+    private static final int VARIABLE = 4;
+    private static final int LABEL = 5;
+    private static final int INSTRUCTION = 6;
+
+    private static final int NO_ERROR = -1;
+
+    private static final byte[] PENDING = new byte[0]; //the code of a line that is being generated
+
+    private final Path source;
+    private final Path output;
+    private final PrintStream err;
+
+    private final SymbolTable symbols; //kept between assemblies, so that the symbol IDs of the lines stay valid
+    private final Program program;
+    private final Program parsed; //the instruction of the line that is being parsed
+    private final Diagnostics lineErrors; //the errors found while parsing the lines (their line numbers do not matter)
+    private final Assembler parser;
+    private final int errorLimit;
+    private final LineEmitter emitter;
+
+    private final HashMap<ByteBuffer, Line> decLines; //the lines seen in .dec, by their text
+    private final HashMap<ByteBuffer, Line> codeLines; //the lines seen in .code, by their text
+    private byte[] text; //the source
+    private Line[] lines; //the lines of the source
+    private int[] lineStarts; //where every line starts in the source (and, after the last one, the length of the source)
+    private int[] lineEnds; //where every line ends in the source, before its line terminator
+    private int lineCount;
+
+    private Line[] entryLines; //the line of every entry of the program
+    private byte[][] entryCodes; //the code of every entry of the program, as it is in the output file
+    private byte[] code; //the contents of the output file
+    private boolean rewriting; //true if the whole output file has to be written
+    private int assemblies; //the number of assemblies so far
+
+    /**
+     * Watch a Shack file, assembling it straight away and then every time it changes, until the thread is interrupted.
+     * Hack assembly is assembled incrementally in two-pass mode; anything else (machine code, which depends on the ROM
+     * address of every label, single-pass mode, optimized code, which is optimized across lines, an assembly that stops
+     * at the error limit, or one whose statistics or costs are written) is assembled from scratch every time.
+     * @param file The Shack file
+     * @param options The settings of the assembler
+     * @param err Where the errors are printed
+     */
+    public static void watch(String file, Options options, PrintStream err)
+    {
+        Path path = options.resolve(file).toAbsolutePath();
+        IncrementalAssembler assembler = null;
+        if(options.getFormat()==Options.Format.ASM && !options.isSinglePass() && !options.isOptimizing() &&
+                !options.isFlowOptimizing() && !options.isReporting() && !options.isAbortingEarly() &&
+                !options.isCollectingStats() && !options.isAnalyzing())
+            assembler = new IncrementalAssembler(path.toString(), options.getErrorLimit(), err);
+
+        try(WatchService watcher = path.getFileSystem().newWatchService())
+        {
+            path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while(true)
+            {
+                if(assembler==null)
+                    Assembler.assembleFile(file, options, err);
+                else
+                    try{
+                        assembler.assemble();
+                    }catch(IOException ex)
+                    {
+                        err.println("Unable to read "+file);
+                    }
+                waitForChange(watcher, path.getFileName());
+            }
+        }catch(IOException ex)
+        {
+            err.println("Unable to watch "+file);
+        }catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait until a file changes, and then until it has not changed for a moment (editors often save in several steps).
+     * @param watcher The watch service of the directory of the file
+     * @param name The name of the file
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    private static void waitForChange(WatchService watcher, Path name) throws InterruptedException
+    {
+        boolean changed = false;
+        while(!changed)
+        {
+            WatchKey key = watcher.take();
+            for(WatchEvent<?> event: key.pollEvents())
+                if(event.kind()==StandardWatchEventKinds.OVERFLOW || name.equals(event.context()))
+                    changed = true;
+            key.reset();
+        }
+
+        WatchKey key;
+        while((key = watcher.poll(SETTLE_TIME, TimeUnit.MILLISECONDS))!=null)
+        {
+            key.pollEvents();
+            key.reset();
+        }
+    }
+
+    /**
+     * Constructor for the IncrementalAssembler. Nothing is assembled until assemble is called.
+     * @param file The Shack file (the Hack assembly file gets the same name, with the .asm extension)
+     * @param errorLimit The largest number of errors printed on every assembly, or Diagnostics.NO_LIMIT
+     * @param err Where the errors are printed
+     */
+    public IncrementalAssembler(String file, int errorLimit, PrintStream err)
+    {
+        this.err = err;
+        this.errorLimit = errorLimit;
+        source = Path.of(file);
+        output = Path.of(file.substring(0, file.length() - ".shk".length()) + Options.Format.ASM.extension());
+
+        symbols = new SymbolTable();
+        program = new Program();
+        parsed = new Program();
+        lineErrors = new Diagnostics(Diagnostics.NO_LIMIT);
+        parser = new Assembler(symbols, parsed, null, lineErrors, err);
+        emitter = new LineEmitter(symbols);
+        decLines = new HashMap<>();
+        codeLines = new HashMap<>();
+        text = new byte[0];
+        lines = new Line[0];
+        lineStarts = new int[1];
+        lineEnds = new int[0];
+        entryLines = new Line[1024];
+        entryCodes = new byte[0][];
+        code = new byte[0];
+        rewriting = true;
+    }
+
+    /**
+     * Assemble the file again, printing its errors, and rewrite the part of the output file that changed.
+     * @return The number of lines whose code was generated
+     * @throws IOException If the file could not be read
+     */
+    public int assemble() throws IOException
+    {
+        diff(Files.readAllBytes(source));
+        assemblies++;
+        symbols.clearDefinitions();
+        program.clear();
+        Assembler assembler = new Assembler(symbols, program, emitter, new Diagnostics(errorLimit), err);
+
+        //Declare the variables and labels and add the instructions to the program, like the first pass does
+        ByteBuffer key = ByteBuffer.wrap(text);
+        boolean decArea = false;
+        for(int i=0; i<lineCount; i++)
+        {
+            //The lines that changed (or moved to the other area) are found by their text
+            Line line = lines[i];
+            if(line==null || line.decArea!=decArea)
+            {
+                key.limit(lineEnds[i]).position(lineStarts[i]);
+                line = find(decArea ? decLines : codeLines, key, decArea);
+                lines[i] = line;
+            }
+            line.assembly = assemblies;
+
+            if(line.kind==Assembler.DEC_DIRECTIVE)
+                decArea = true;
+            else if(line.kind==Assembler.CODE_DIRECTIVE)
+                decArea = false;
+            else if(line.kind!=Assembler.IGNORED_LINE)
+                read(assembler, line, i+1);
+        }
+
+        int generated = generateCode(assembler);
+        assembler.printErrors();
+
+        //The lines that are gone are forgotten, once there are as many of them as there are lines in the source
+        if(decLines.size()+codeLines.size()>lineCount*2+EVICTION_SLACK)
+        {
+            decLines.values().removeIf((line)->line.assembly!=assemblies);
+            codeLines.values().removeIf((line)->line.assembly!=assemblies);
+            compactLineErrors();
+        }
+        return generated;
+    }
+
+    /**
+     * Compare the new source with the last one by lines. The lines at the start and at the end that did not change are
+     * kept as they are; the ones in between are split again, and are found by their text when they are read.
+     * @param newText The new source
+     */
+    private void diff(byte[] newText)
+    {
+        int common = Math.min(text.length, newText.length);
+        int prefix = Arrays.mismatch(text, newText);
+        if(prefix==-1)
+            prefix = common;
+        int suffix = 0;
+        while(suffix+DIFF_BLOCK_SIZE<=common-prefix && Arrays.equals(text, text.length-suffix-DIFF_BLOCK_SIZE,
+                text.length-suffix, newText, newText.length-suffix-DIFF_BLOCK_SIZE, newText.length-suffix))
+            suffix += DIFF_BLOCK_SIZE;
+        while(suffix<common-prefix && text[text.length-suffix-1]==newText[newText.length-suffix-1])
+            suffix++;
+
+        //A line is only kept if the byte next to it is the same too (a '\r' followed by a new '\n' is one line end)
+        int first = 0;
+        while(first<lineCount && lineStarts[first+1]<prefix)
+            first++;
+        int last = lineCount;
+        while(last>first && lineStarts[last-1]>text.length-suffix)
+            last--;
+
+        int shift = newText.length - text.length;
+        int start = lineStarts[first];
+        int stop = lineStarts[last] + shift;
+        int changed = 0;
+        for(int position=start; position<stop; position=nextLine(newText, lineEnd(newText, position)))
+            changed++;
+
+        int count = first + changed + lineCount - last;
+        Line[] newLines = new Line[count];
+        int[] newStarts = new int[count+1];
+        int[] newEnds = new int[count];
+        System.arraycopy(lines, 0, newLines, 0, first);
+        System.arraycopy(lineStarts, 0, newStarts, 0, first);
+        System.arraycopy(lineEnds, 0, newEnds, 0, first);
+        int line = first;
+        for(int position=start; position<stop; line++)
+        {
+            newStarts[line] = position;
+            newEnds[line] = lineEnd(newText, position);
+            position = nextLine(newText, newEnds[line]);
+        }
+        for(int i=last; i<lineCount; i++, line++)
+        {
+            newLines[line] = lines[i];
+            newStarts[line] = lineStarts[i] + shift;
+            newEnds[line] = lineEnds[i] + shift;
+        }
+        newStarts[count] = newText.length;
+
+        text = newText;
+        lines = newLines;
+        lineStarts = newStarts;
+        lineEnds = newEnds;
+        lineCount = count;
+    }
+
+    /**
+     * Find the end of a line (lines end with '\n', '\r' or "\r\n", like they do for SourceReader).
+     * @param text The source
+     * @param start The position of the first byte of the line
+     * @return The position of its line terminator, or the end of the source
+     */
+    private static int lineEnd(byte[] text, int start)
+    {
+        int end = start;
+        while(end<text.length && text[end]!='\n' && text[end]!='\r')
+            end++;
+        return end;
+    }
+
+    /**
+     * Find the start of the next line.
+     * @param text The source
+     * @param end The end of the line, as returned by lineEnd
+     * @return The position right after its line terminator
+     */
+    private static int nextLine(byte[] text, int end)
+    {
+        if(end<text.length && text[end++]=='\r' && end<text.length && text[end]=='\n')
+            end++;
+        return end;
+    }
+
+    /**
+     * Find a line by its text, parsing it if it has not been seen before.
+     * @param lines The lines seen in the same area
+     * @param text The text of the line (its remaining bytes)
+     * @param decArea true if the line is in .dec, false if it is in .code
+     * @return The line
+     */
+    private Line find(HashMap<ByteBuffer, Line> lines, ByteBuffer text, boolean decArea)
+    {
+        Line line = lines.get(text);
+        if(line!=null)
+            return line;
+
+        byte[] bytes = new byte[text.remaining()];
+        text.get(text.position(), bytes);
+        line = parse(ByteBuffer.wrap(bytes), decArea);
+        lines.put(line.text, line);
+        return line;
+    }
+
+    /**
+     * Parse a line. Only what the line says on its own is found here; what depends on the other lines (e.g. whether a
+     * label is defined twice) is found when the line is read.
+     * @param text The text of the line
+     * @param decArea true if the line is in .dec, false if it is in .code
+     * @return The line
+     */
+    private Line parse(ByteBuffer text, boolean decArea)
+    {
+        Line line = new Line(text, decArea);
+        line.kind = parser.scanLine(text, 0, text.limit());
+        if(line.kind!=Assembler.STATEMENT)
+            return line;
+
+        int errors = lineErrors.size();
+        line.column = parser.column();
+        if(decArea)
+        {
+            line.kind = VARIABLE;
+            line.symbol = parser.parseVariable(lineErrors);
+        }
+        else if(parser.isLabel())
+        {
+            line.kind = LABEL;
+            line.symbol = parser.parseLabel(lineErrors);
+        }
+        else
+        {
+            line.kind = INSTRUCTION;
+            if(parser.parseInstruction(lineErrors))
+            {
+                line.entry = parsed.get(0);
+                line.column = parsed.column(0);
+            }
+            parsed.clear();
+        }
+        if(lineErrors.size()>errors)
+            line.error = errors;
+        return line;
+    }
+
+    /**
+     * Drop the errors of the lines that have been forgotten.
+     */
+    private void compactLineErrors()
+    {
+        Diagnostics kept = new Diagnostics(Diagnostics.NO_LIMIT);
+        for(HashMap<ByteBuffer, Line> area: Arrays.asList(decLines, codeLines))
+            for(Line line: area.values())
+                if(line.error!=NO_ERROR)
+                {
+                    kept.report(lineErrors, line.error, 0);
+                    line.error = kept.size() - 1;
+                }
+        lineErrors.clear();
+        for(int i=0; i<kept.size(); i++)
+            lineErrors.report(kept, i, 0);
+    }
+
+    /**
+     * Read a parsed line: declare its variable or label, or add its instruction to the program.
+     * @param assembler The assembler of this assembly
+     * @param line The line
+     * @param lineNumber The number of the line in the file
+     */
+    private void read(Assembler assembler, Line line, int lineNumber)
+    {
+        if(line.kind==INSTRUCTION)
+        {
+            //The errors found while parsing are reported in the second pass, in the order of the lines
+            if(line.error!=NO_ERROR)
+            {
+                program.errors().report(lineErrors, line.error, lineNumber);
+                program.addError();
+            }
+            else
+                program.add(line.entry, lineNumber, line.column);
+            addEntryLine(line);
+            return;
+        }
+
+        if(line.error!=NO_ERROR)
+            assembler.diagnostics().report(lineErrors, line.error, lineNumber);
+        else if(line.kind==VARIABLE)
+            symbols.declareVariable(line.symbol, lineNumber);
+        else if(assembler.defineLabel(line.symbol, lineNumber, line.column))
+            addEntryLine(line);
+    }
+
+    /**
+     * Record the line of the last entry of the program.
+     * @param line The line
+     */
+    private void addEntryLine(Line line)
+    {
+        if(program.size()>entryLines.length)
+            entryLines = Arrays.copyOf(entryLines, entryLines.length*2);
+        entryLines[program.size()-1] = line;
+    }
+
+    /**
+     * Generate the code of the program, like the second pass does, and write it to the output file. Only the lines that
+     * are new, or whose symbol changed meaning, are emitted; the rest keep their code from before. The lines that
+     * printed errors or emitted nothing last time are converted again anyway (without being emitted), since their
+     * errors depend on what was reported before them.
+     * @param assembler The assembler of this assembly
+     * @return The number of lines whose code was generated
+     */
+    private int generateCode(Assembler assembler)
+    {
+        ArrayList<Line> generated = new ArrayList<>();
+        emitter.start();
+        for(int i=0; i<program.size(); i++)
+        {
+            Line line = entryLines[i];
+            int meaning = meaning(i);
+            boolean kept = line.code!=null && line.meaning==meaning;
+            if(kept && line.quiet)
+                continue;
+
+            emitter.skipping = kept;
+            if(!kept)
+            {
+                line.code = PENDING;
+                line.meaning = meaning;
+                line.start = (int) emitter.position();
+                generated.add(line);
+            }
+
+            int errors = assembler.diagnostics().count();
+            assembler.generateCode(i);
+            boolean failed = assembler.diagnostics().count()>errors;
+            if(!kept)
+            {
+                line.end = (int) emitter.position();
+                line.quiet = !failed && line.end>line.start;
+            }
+        }
+
+        //Every line that was generated keeps its own copy of its code
+        byte[] generatedCode = emitter.finish();
+        for(Line line: generated)
+            line.code = Arrays.copyOfRange(generatedCode, line.start, line.end);
+
+        int count = program.size();
+        byte[][] codes = new byte[count][];
+        int length = 0;
+        for(int i=0; i<count; i++)
+        {
+            codes[i] = entryLines[i].code;
+            length += codes[i].length;
+        }
+        Arrays.fill(entryLines, 0, count, null);
+
+        //The code of the entries at both ends that did not change is copied from the old output in one go
+        int head = 0;
+        int headLength = 0;
+        while(head<count && head<entryCodes.length && codes[head]==entryCodes[head])
+            headLength += codes[head++].length;
+        int tail = 0;
+        int tailLength = 0;
+        while(tail<count-head && tail<entryCodes.length-head && codes[count-tail-1]==entryCodes[entryCodes.length-tail-1])
+            tailLength += codes[count-(tail++)-1].length;
+
+        byte[] newCode = new byte[length];
+        System.arraycopy(code, 0, newCode, 0, headLength);
+        System.arraycopy(code, code.length-tailLength, newCode, length-tailLength, tailLength);
+        int position = headLength;
+        for(int i=head; i<count-tail; i++)
+        {
+            System.arraycopy(codes[i], 0, newCode, position, codes[i].length);
+            position += codes[i].length;
+        }
+
+        write(newCode);
+        entryCodes = codes;
+        return generated.size();
+    }
+
+    /**
+     * Get what the symbol of an entry means right now (whether it is a variable, a label, both or neither), which
+     * decides the code of the entry.
+     * @param entry The index of the entry
+     * @return The kinds of the symbol (SymbolTable.RAM and SymbolTable.ROM), or 0 if the entry has no symbol
+     */
+    private int meaning(int entry)
+    {
+        if(program.kind(entry)!=Program.SYMBOL && program.kind(entry)!=Program.IMMEDIATE_SYMBOL)
+            return 0;
+
+        int symbol = program.operand(entry);
+        return (symbols.is(symbol, SymbolTable.RAM) ? SymbolTable.RAM : 0) |
+                (symbols.is(symbol, SymbolTable.ROM) ? SymbolTable.ROM : 0);
+    }
+
+    /**
+     * Write the new contents of the output file. Only the part from the first byte that changed is written (up to the
+     * last byte that changed, if the length is the same).
+     * @param newCode The new contents
+     */
+    private void write(byte[] newCode)
+    {
+        int start = rewriting ? 0 : Arrays.mismatch(code, newCode);
+        int end = newCode.length;
+        if(!rewriting && code.length==newCode.length && start!=-1)
+            while(code[end-1]==newCode[end-1])
+                end--;
+        code = newCode;
+        if(start==-1)
+            return;
+
+        try(FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE))
+        {
+            ByteBuffer changed = ByteBuffer.wrap(newCode, start, end - start);
+            while(changed.hasRemaining())
+                channel.write(changed, changed.position());
+            channel.truncate(newCode.length);
+            rewriting = false;
+        }catch(IOException ex)
+        {
+            err.println("There was an error writing the output file.");
+            rewriting = true;
+        }
+    }
+
+    /**
+     * A distinct line of Shack code, with what is known about it.
+     */
+    private static class Line
+    {
+        private final ByteBuffer text;
+        private final boolean decArea; //true if the line is in .dec
+        private int kind = UNKNOWN; //as returned by Assembler.scanLine, or VARIABLE, LABEL or INSTRUCTION
+        private int symbol; //the symbol ID of a variable or label
+        private long entry; //the program entry of an instruction
+        private int column; //the column of the label, or of the operand of the instruction
+        private int error = NO_ERROR; //the index of the error found while parsing, in lineErrors
+
+        private byte[] code; //the Hack code (null if it has not been generated yet)
+        private int meaning; //what the symbol of the line meant when its code was generated
+        private boolean quiet; //true if its conversion printed nothing and did not depend on what was reported before
+        private int start; //where the code is in the output of the current assembly, while it is generated
+        private int end;
+        private int assembly; //the last assembly the line was in
+
+        /**
+         * Constructor for the Line
+         * @param text The text of the line
+         * @param decArea true if the line is in .dec, false if it is in .code
+         */
+        private Line(ByteBuffer text, boolean decArea)
+        {
+            this.text = text;
+            this.decArea = decArea;
+        }
+    }
+
+    /**
+     * Collects the Hack assembly code of the lines that are generated, and drops the code of the ones that are kept from
+     * before. The ROM addresses of the labels are not needed in Hack assembly, so it does not matter that the dropped
+     * instructions are not counted.
+     */
+    private static class LineEmitter implements Emitter
+    {
+        private final SymbolTable symbols;
+        private ByteArrayOutputStream generated;
+        private AsmEmitter target;
+        private boolean skipping; //true if the code is being dropped
+
+        /**
+         * Constructor for the LineEmitter
+         * @param symbols The symbol table the symbol names are taken from
+         */
+        private LineEmitter(SymbolTable symbols)
+        {
+            this.symbols = symbols;
+        }
+
+        /**
+         * Start collecting the code of a new assembly.
+         */
+        private void start()
+        {
+            generated = new ByteArrayOutputStream();
+            target = new AsmEmitter(Channels.newChannel(generated), symbols);
+        }
+
+        /**
+         * Stop collecting code.
+         * @return The code that was collected
+         */
+        private byte[] finish()
+        {
+            try{
+                target.close();
+            }catch(IOException ex)
+            {
+                throw new IllegalStateException(ex); //the code is collected in memory
+            }
+            return generated.toByteArray();
+        }
+
+        @Override
+        public void instruction(HackInstruction instruction)
+        {
+            if(!skipping)
+                target.instruction(instruction);
+        }
+
+        @Override
+        public void address(int address)
+        {
+            if(!skipping)
+                target.address(address);
+        }
+
+        @Override
+        public void symbol(int symbol)
+        {
+            if(!skipping)
+                target.symbol(symbol);
+        }
+
+        @Override
+        public void label(int symbol)
+        {
+            if(!skipping)
+                target.label(symbol);
+        }
+
+        @Override
+        public long position()
+        {
+            return target.position();
+        }
+
+        @Override
+        public int instructionCount()
+        {
+            return target.instructionCount();
+        }
+
+        @Override
+        public void holdFrom(long position)
+        {
+            target.holdFrom(position);
+        }
+
+        @Override
+        public void release()
+        {
+            target.release();
+        }
+
+        @Override
+        public void flush()
+        {
+            target.flush();
+        }
+
+        @Override
+        public void cut(long start, long end)
+        {
+            target.cut(start, end);
+        }
+
+        @Override
+        public boolean checkError()
+        {
+            return target.checkError();
+        }
+
+        @Override
+        public Emitter part()
+        {
+            return null; //the lines are generated one at a time
+        }
+
+        @Override
+        public void append(Emitter part)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            target.close();
+        }
+    }
+}
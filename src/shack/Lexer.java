@@ -0,0 +1,433 @@
+package shack;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits a line of Shack code into tokens in a single scan over its bytes.
+ *
+ * The line is sanitised first: the white spaces at both ends are removed, tabs and new lines are dropped and every
+ * other run of white spaces becomes a single space. The sanitised line is copied into a buffer that is reused for
+ * every line, and the tokens are positions in that buffer, so no Strings are created unless one is asked for.
+ */
+public class Lexer
+{
+    public static final int NOT_A_NUMBER = -1;
+    public static final int OUT_OF_RANGE = -2;
+    public static final int VALID = -1; //returned by findInvalidChar if there is no invalid character
+    public static final int EMPTY = -2; //returned by findInvalidChar if a name that has to start with a letter is empty
+
+    //Character classes
+    private static final byte OTHER = 0;
+    private static final byte LETTER = 1;
+    private static final byte DIGIT = 2;
+    private static final byte UNDERSCORE = 3;
+    private static final byte SEPARATOR = 4; //white space that separates two tokens
+    private static final byte IGNORED = 5; //white space that is dropped (tabs and new lines)
+    private static final byte EDGE_SPACE = 6; //white space that is only removed from the ends of the line
+
+    private static final byte[] CLASSES = new byte[128];
+
+    static
+    {
+        for(char c='a'; c<='z'; c++)
+            CLASSES[c] = LETTER;
+        for(char c='A'; c<='Z'; c++)
+            CLASSES[c] = LETTER;
+        for(char c='0'; c<='9'; c++)
+            CLASSES[c] = DIGIT;
+        CLASSES['_'] = UNDERSCORE;
+
+        CLASSES[' '] = SEPARATOR;
+        CLASSES[0x0B] = SEPARATOR;
+        CLASSES['\f'] = SEPARATOR;
+        CLASSES['\r'] = SEPARATOR;
+        CLASSES['\t'] = IGNORED;
+        CLASSES['\n'] = IGNORED;
+        for(char c=0x1C; c<=0x1F; c++)
+            CLASSES[c] = EDGE_SPACE;
+    }
+
+    private byte[] line = new byte[128]; //the sanitised line
+    private int length;
+    private int[] tokens = new int[16]; //start and end of every token
+    private int tokenCount;
+    private int[] offsets = new int[8]; //where every token starts in the source line, in bytes
+    private ByteBuffer source; //the source of the line, kept so that columns can be found
+    private int sourceStart;
+    private int sourceEnd;
+
+    /**
+     * Sanitise the given line and split it into tokens.
+     * @param source The buffer that holds the line
+     * @param start The position of the first byte of the line
+     * @param end The position right after the last byte of the line
+     */
+    public void scan(ByteBuffer source, int start, int end)
+    {
+        this.source = source;
+        sourceStart = start;
+        sourceEnd = end;
+
+        //Remove the white spaces at both ends
+        while(start<end && isWhitespace(source, start, end))
+            start += sequenceLength(source.get(start));
+        while(end>start)
+        {
+            int last = end - 1;
+            while(last>start && (source.get(last) & 0xC0)==0x80)
+                last--;
+            if(!isWhitespace(source, last, end))
+                break;
+            end = last;
+        }
+
+        if(line.length<end-start)
+            line = new byte[Math.max(end-start, line.length*2)];
+        length = 0;
+        tokenCount = 0;
+
+        //The line starts and ends with a token, since the white spaces at both ends are gone
+        int tokenStart = 0;
+        int tokenOffset = start - sourceStart;
+        boolean separated = false;
+        for(int i=start; i<end; i++)
+        {
+            byte b = source.get(i);
+            byte type = b<0 ? OTHER : CLASSES[b];
+            if(type==IGNORED)
+                continue;
+            if(type==SEPARATOR)
+            {
+                separated = true;
+                continue;
+            }
+            if(separated)
+            {
+                addToken(tokenStart, length, tokenOffset);
+                line[length++] = ' ';
+                tokenStart = length;
+                tokenOffset = i - sourceStart;
+                separated = false;
+            }
+            line[length++] = b;
+        }
+        if(length>0)
+            addToken(tokenStart, length, tokenOffset);
+    }
+
+    /**
+     * Record a token.
+     * @param start The position of its first byte in the sanitised line
+     * @param end The position right after its last byte in the sanitised line
+     * @param offset The position of its first byte in the source line
+     */
+    private void addToken(int start, int end, int offset)
+    {
+        if(tokenCount*2==tokens.length)
+        {
+            int[] newTokens = new int[tokens.length*2];
+            System.arraycopy(tokens, 0, newTokens, 0, tokens.length);
+            tokens = newTokens;
+            offsets = Arrays.copyOf(offsets, tokens.length/2);
+        }
+        tokens[tokenCount*2] = start;
+        tokens[tokenCount*2+1] = end;
+        offsets[tokenCount] = offset;
+        tokenCount++;
+    }
+
+    /**
+     * Find the column of a byte of the sanitised line in the source line. Tokens are only ever shortened by the tabs and
+     * new lines dropped inside them, so the column is found from the start of the token the byte is in.
+     * @param position The position of the byte in the sanitised line (or the end of a token)
+     * @return The column, in bytes from 1 (or 0 if the line is empty)
+     */
+    public int column(int position)
+    {
+        if(tokenCount==0)
+            return 0;
+        int token = 0;
+        while(token+1<tokenCount && start(token+1)<=position)
+            token++;
+
+        int i = sourceStart + offsets[token];
+        for(int kept=start(token); i<sourceEnd; i++)
+        {
+            byte b = source.get(i);
+            if(b>=0 && CLASSES[b]==IGNORED)
+                continue;
+            if(kept++==position)
+                break;
+        }
+        return i - sourceStart + 1;
+    }
+
+    /**
+     * Check if the character at the given position is a white space (as defined by Character.isWhitespace).
+     * @param source The buffer that holds the line
+     * @param position The position of the first byte of the character
+     * @param end The end of the line
+     * @return true if the character is a white space, false otherwise
+     */
+    private static boolean isWhitespace(ByteBuffer source, int position, int end)
+    {
+        byte b = source.get(position);
+        if(b>=0)
+            return CLASSES[b]>=SEPARATOR;
+
+        int length = sequenceLength(b);
+        if(length==1 || position+length>end)
+            return false;
+        int codePoint = b & (0xFF >> (length+1));
+        for(int i=1; i<length; i++)
+            codePoint = (codePoint << 6) | (source.get(position+i) & 0x3F);
+        return Character.isWhitespace(codePoint);
+    }
+
+    /**
+     * Get the number of bytes of the UTF-8 sequence that starts with the given byte.
+     * @param b The first byte
+     * @return The length of the sequence
+     */
+    private static int sequenceLength(byte b)
+    {
+        if((b & 0xE0)==0xC0)
+            return 2;
+        if((b & 0xF0)==0xE0)
+            return 3;
+        if((b & 0xF8)==0xF0)
+            return 4;
+        return 1;
+    }
+
+    /**
+     * Check if the sanitised line is empty.
+     * @return true if it is empty, false otherwise
+     */
+    public boolean isEmpty()
+    {
+        return length==0;
+    }
+
+    /**
+     * Check if the sanitised line is a comment.
+     * @return true if it starts with //, false otherwise
+     */
+    public boolean isComment()
+    {
+        return length>=2 && line[0]=='/' && line[1]=='/';
+    }
+
+    /**
+     * Check if the sanitised line is exactly the given text.
+     * @param text The text (which must be ASCII)
+     * @return true if it is, false otherwise
+     */
+    public boolean lineEquals(String text)
+    {
+        return equals(0, length, text);
+    }
+
+    /**
+     * Check if part of the sanitised line is exactly the given text.
+     * @param start The start of the part
+     * @param end The end of the part
+     * @param text The text (which must be ASCII)
+     * @return true if it is, false otherwise
+     */
+    public boolean equals(int start, int end, String text)
+    {
+        if(end-start!=text.length())
+            return false;
+        for(int i=0; i<text.length(); i++)
+            if(line[start+i]!=text.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Get the length of the sanitised line.
+     * @return The length
+     */
+    public int length()
+    {
+        return length;
+    }
+
+    /**
+     * Get the buffer that holds the sanitised line (only the first length() bytes belong to the current line).
+     * @return The buffer
+     */
+    public byte[] bytes()
+    {
+        return line;
+    }
+
+    /**
+     * Get the byte at the given position of the sanitised line.
+     * @param position The position
+     * @return The byte
+     */
+    public byte byteAt(int position)
+    {
+        return line[position];
+    }
+
+    /**
+     * Get the number of tokens (the parts of the sanitised line separated by spaces).
+     * @return The number of tokens
+     */
+    public int tokenCount()
+    {
+        return tokenCount;
+    }
+
+    /**
+     * Get the start of a token.
+     * @param token The index of the token
+     * @return The position of its first byte in the sanitised line
+     */
+    public int start(int token)
+    {
+        return tokens[token*2];
+    }
+
+    /**
+     * Get the end of a token.
+     * @param token The index of the token
+     * @return The position right after its last byte in the sanitised line
+     */
+    public int end(int token)
+    {
+        return tokens[token*2+1];
+    }
+
+    /**
+     * Check if a token is the given single character (e.g. a register name).
+     * @param token The index of the token
+     * @param c The character
+     * @return true if it is, false otherwise
+     */
+    public boolean tokenIs(int token, char c)
+    {
+        return end(token)-start(token)==1 && line[start(token)]==c;
+    }
+
+    /**
+     * Check if a token starts with the given character.
+     * @param token The index of the token
+     * @param c The character
+     * @return true if it does, false otherwise
+     */
+    public boolean startsWith(int token, char c)
+    {
+        return line[start(token)]==c;
+    }
+
+    /**
+     * Get a token as a String.
+     * @param token The index of the token
+     * @return The token
+     */
+    public String token(int token)
+    {
+        return text(start(token), end(token));
+    }
+
+    /**
+     * Get the whole sanitised line as a String.
+     * @return The line
+     */
+    public String line()
+    {
+        return text(0, length);
+    }
+
+    /**
+     * Get part of the sanitised line as a String.
+     * @param start The start of the part
+     * @param end The end of the part
+     * @return The text
+     */
+    public String text(int start, int end)
+    {
+        return new String(line, start, end-start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Find the first invalid character in part of the sanitised line. A valid code is made of letters, digits and
+     * underscores; a space ends the search.
+     * @param start The start of the part
+     * @param end The end of the part
+     * @param canStartWithNumber true if the code can start with a number, false if it has to start with a letter
+     * @return The position of the invalid character, VALID if there is none, or EMPTY if the part is empty and has to
+     *         start with a letter
+     */
+    public int findInvalidChar(int start, int end, boolean canStartWithNumber)
+    {
+        if(!canStartWithNumber)
+        {
+            if(start==end)
+                return EMPTY;
+            if(line[start]<0 || CLASSES[line[start]]!=LETTER)
+                return start;
+        }
+
+        for(int i=start; i<end; i++)
+        {
+            byte b = line[i];
+            if(b<0 || CLASSES[b]<LETTER || CLASSES[b]>UNDERSCORE)
+                return b==' ' ? VALID : i;
+        }
+        return VALID;
+    }
+
+    /**
+     * Decode the character that starts at the given position.
+     * @param position The position of its first byte
+     * @param end The end of the part of the line it is in
+     * @return The character
+     */
+    public char charAt(int position, int end)
+    {
+        if(line[position]>=0)
+            return (char) line[position];
+        return text(position, Math.min(end, position+4)).charAt(0);
+    }
+
+    /**
+     * Parse part of the sanitised line as a number, the same way Long.parseLong does (an optional sign followed by
+     * decimal digits).
+     * @param start The start of the part
+     * @param end The end of the part
+     * @return NOT_A_NUMBER if it is not a number, OUT_OF_RANGE if it is not a valid address (0 to 32767), or the address
+     */
+    public int parseAddress(int start, int end)
+    {
+        boolean negative = false;
+        if(start<end && (line[start]=='-' || line[start]=='+'))
+            negative = line[start++]=='-';
+        if(start==end)
+            return NOT_A_NUMBER;
+
+        //The value is accumulated as a negative number, so that Long.MIN_VALUE can be parsed without overflowing
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long value = 0;
+        for(int i=start; i<end; i++)
+        {
+            int digit = line[i] - '0';
+            if(digit<0 || digit>9 || value<limit/10)
+                return NOT_A_NUMBER;
+            value *= 10;
+            if(value<limit+digit)
+                return NOT_A_NUMBER;
+            value -= digit;
+        }
+
+        if(negative)
+            return value==0 ? 0 : OUT_OF_RANGE;
+        return value<-32767 ? OUT_OF_RANGE : (int) -value;
+    }
+}
@@ -0,0 +1,257 @@
+package shack;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Links object modules (see ObjectModule) into one Hack program. The modules share one .dec space and one set of
+ * labels: the variables are given RAM addresses in the order the modules are given (and, in every module, in the order
+ * they are declared), and a label can be jumped to from any module.
+ *
+ * The errors about symbols are the same as when the modules are assembled as one file: a label defined more than once
+ * (or defined as a variable), a jump to a label that is never defined and a variable that is not declared. The code of
+ * the instruction an error is about is left out, as it is by the assembler.
+ */
+public class Linker
+{
+    private static final HackInstruction[] INSTRUCTIONS = HackInstruction.values(); //by ordinal
+
+    private final Options options;
+    private final PrintStream err;
+    private final SymbolTable symbols = new SymbolTable();
+    private final Diagnostics diagnostics;
+    private Emitter emitter;
+
+    /**
+     * Constructor for the Linker
+     * @param options The settings (the format of the output, the optimizations and the error limit)
+     * @param err Where the errors are printed
+     */
+    public Linker(Options options, PrintStream err)
+    {
+        this.options = options;
+        this.err = err;
+        diagnostics = new Diagnostics(Assembler.errorLimit(options));
+    }
+
+    /**
+     * Link the given object module files into a Hack file.
+     * @param files The object module files, in the order they are linked in
+     * @param output The name of the Hack file (without its extension)
+     * @param options The settings
+     * @param err Where the errors are printed
+     * @return true if the modules were linked without errors, false otherwise
+     */
+    public static boolean linkFiles(List<String> files, String output, Options options, PrintStream err)
+    {
+        ObjectModule[] modules = new ObjectModule[files.size()];
+        for(int i=0; i<modules.length; i++)
+        {
+            Path file = options.resolve(files.get(i));
+            try{
+                modules[i] = ObjectModule.read(file);
+            }catch(IOException ex)
+            {
+                err.println("Unable to read "+file);
+                return false;
+            }
+        }
+
+        String name = options.resolve(output).toString();
+        return new Linker(options, err).link(modules, Assembler.openOutput(name+options.getFormat().extension(), options,
+                err));
+    }
+
+    /**
+     * Link the given modules, print the errors and write the Hack code.
+     * @param modules The modules, in the order they are linked in
+     * @param channel The channel the Hack code is written to (it is closed at the end)
+     * @return true if there were no errors and the whole Hack code was written, false otherwise
+     */
+    public boolean link(ObjectModule[] modules, WritableByteChannel channel)
+    {
+        if(options.getFormat()==Options.Format.OBJECT)
+            throw new IllegalArgumentException("Modules are linked into Hack code, not into another module.");
+
+        //The symbol indices of every module are mapped to the IDs of the symbol table they all share
+        int[][] ids = new int[modules.length][];
+        BitSet[] dropped = new BitSet[modules.length];
+        for(int i=0; i<modules.length; i++)
+        {
+            String[] names = modules[i].names();
+            ids[i] = new int[names.length];
+            for(int index=0; index<names.length; index++)
+                ids[i][index] = symbols.intern(names[index]);
+        }
+
+        //Every symbol is defined before any code is replayed, since a jump can go forward into a later module
+        for(int i=0; i<modules.length; i++)
+            dropped[i] = define(modules[i], ids[i]);
+
+        emitter = Assembler.createEmitter(channel, symbols, options, err);
+        for(int i=0; i<modules.length; i++)
+            replay(modules[i], ids[i], dropped[i]);
+
+        diagnostics.print(err, symbols);
+        boolean complete = Assembler.closeOutput(emitter, Assembler.isMachineCode(options.getFormat()), err);
+        return diagnostics.count()==0 && complete;
+    }
+
+    /**
+     * Get the errors found while linking.
+     * @return The errors
+     */
+    public Diagnostics diagnostics()
+    {
+        return diagnostics;
+    }
+
+    /**
+     * Get the symbol table the names of the errors are taken from.
+     * @return The symbol table
+     */
+    public SymbolTable symbols()
+    {
+        return symbols;
+    }
+
+    /**
+     * Declare the variables and define the labels of a module, in the order of their lines (as the assembler does
+     * while it reads the file), reporting the labels that have been defined already.
+     * @param module The module
+     * @param ids The symbol IDs, by symbol index of the module
+     * @return The positions of the label records that are left out
+     */
+    private BitSet define(ObjectModule module, int[] ids)
+    {
+        BitSet dropped = new BitSet();
+        int[] variables = module.variables();
+        int[] variableLines = module.variableLines();
+        int[] records = module.records();
+        int variable = 0;
+        for(int position=0; position<records.length; position = next(records, position))
+        {
+            if(records[position] >>> ObjectModule.KIND_SHIFT!=ObjectModule.LABEL)
+                continue;
+
+            int label = ids[records[position] & ObjectModule.VALUE_MASK];
+            int line = records[position + 1];
+            for(; variable<variables.length && variableLines[variable]<line; variable++)
+                symbols.declareVariable(ids[variables[variable]], variableLines[variable]);
+
+            if(symbols.is(label, SymbolTable.ROM) || symbols.is(label, SymbolTable.RAM))
+            {
+                diagnostics.report(symbols.is(label, SymbolTable.ROM) ? ErrorCode.LABEL_DEFINED_TWICE :
+                        ErrorCode.LABEL_DEFINED_AS_VARIABLE, line, records[position + 2], label, null);
+                dropped.set(position);
+            }
+            else
+                symbols.define(label, SymbolTable.ROM, line, SymbolTable.NO_ADDRESS);
+        }
+        for(; variable<variables.length; variable++)
+            symbols.declareVariable(ids[variables[variable]], variableLines[variable]);
+        return dropped;
+    }
+
+    /**
+     * Replay the code of a module into the emitter, leaving out the instructions whose symbol is not what they need.
+     * @param module The module
+     * @param ids The symbol IDs, by symbol index of the module
+     * @param dropped The positions of the label records that are left out
+     */
+    private void replay(ObjectModule module, int[] ids, BitSet dropped)
+    {
+        int[] records = module.records();
+        for(int position=0; position<records.length; position = next(records, position))
+        {
+            int value = records[position] & ObjectModule.VALUE_MASK;
+            switch(records[position] >>> ObjectModule.KIND_SHIFT)
+            {
+                case ObjectModule.INSTRUCTION:
+                    emitter.instruction(INSTRUCTIONS[value]);
+                    break;
+                case ObjectModule.ADDRESS:
+                    emitter.address(value);
+                    break;
+                case ObjectModule.SYMBOL:
+                    emitter.symbol(ids[value]);
+                    break;
+                case ObjectModule.LABEL:
+                    if(!dropped.get(position))
+                    {
+                        symbols.setAddress(ids[value], emitter.instructionCount());
+                        emitter.label(ids[value]);
+                    }
+                    break;
+                case ObjectModule.REFERENCE:
+                    if(!resolve(ids[value], records[position + 1], records[position + 2], records[position + 3]))
+                        while(records[position] >>> ObjectModule.KIND_SHIFT!=ObjectModule.END_REFERENCE)
+                            position = next(records, position);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Check that the symbol of an instruction is what the instruction needs, and report it if it is not (a missing
+     * label or a variable that is not declared is only reported once).
+     * @param symbol The symbol ID
+     * @param use How the instruction uses it (ObjectModule.USE_VARIABLE or USE_JUMP)
+     * @param line The number of the line of the instruction
+     * @param column The column of the symbol in the line
+     * @return true if it is, false if the code of the instruction has to be left out
+     */
+    private boolean resolve(int symbol, int use, int line, int column)
+    {
+        if(use==ObjectModule.USE_JUMP)
+        {
+            if(!symbols.is(symbol, SymbolTable.ROM) && !symbols.is(symbol, SymbolTable.RAM))
+            {
+                if(!symbols.is(symbol, SymbolTable.MISSING))
+                {
+                    symbols.mark(symbol, SymbolTable.MISSING);
+                    diagnostics.report(ErrorCode.LABEL_NOT_DEFINED, line, column, symbol, null);
+                }
+                return false;
+            }
+            if(!symbols.is(symbol, SymbolTable.ROM)) //a variable was used as a jump destination
+            {
+                diagnostics.report(ErrorCode.VARIABLE_AS_JUMP_TARGET, line, column, symbol, null);
+                return false;
+            }
+        }
+        else if(!symbols.is(symbol, SymbolTable.RAM))
+        {
+            if(!symbols.is(symbol, SymbolTable.REPORTED))
+            {
+                symbols.mark(symbol, SymbolTable.REPORTED);
+                diagnostics.report(ErrorCode.VARIABLE_NOT_DECLARED, line, column, symbol, null);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the position of the record after the given one.
+     * @param records The records
+     * @param position The position of a record
+     * @return The position of the next one
+     */
+    private static int next(int[] records, int position)
+    {
+        switch(records[position] >>> ObjectModule.KIND_SHIFT)
+        {
+            case ObjectModule.LABEL:
+                return position + 3;
+            case ObjectModule.REFERENCE:
+                return position + 4;
+            default:
+                return position + 1;
+        }
+    }
+}
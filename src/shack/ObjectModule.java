@@ -0,0 +1,166 @@
+package shack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A relocatable object module: the code of one Shack file, translated but not linked. The code is kept as the calls
+ * the assembler made to its emitter, so the linker can replay them into any output format. Symbols are kept by name,
+ * and every instruction that uses one is marked, since whether the symbol is a variable or a label is only known once
+ * all the modules are linked.
+ *
+ * The file (.sho) is the magic number and the version, the names of the symbols, the variables declared (in the order
+ * they are declared, with their lines) and the records of the code, all as big-endian ints and modified UTF-8 names.
+ */
+public class ObjectModule
+{
+    private static final int MAGIC = 0x53484B4F; //"SHKO"
+    private static final int VERSION = 1;
+
+    //Every record is an int: its kind in the top 3 bits and its value in the rest (some kinds are followed by more ints)
+    static final int KIND_SHIFT = 29;
+    static final int VALUE_MASK = (1 << KIND_SHIFT) - 1;
+    static final int INSTRUCTION = 0; //a fixed Hack instruction; the value is its HackInstruction ordinal
+    static final int ADDRESS = 1; //@address; the value is the address
+    static final int SYMBOL = 2; //@symbol; the value is the symbol index
+    static final int LABEL = 3; //(label); the value is the symbol index, followed by the line and the column
+    static final int REFERENCE = 4; //the start of an instruction that uses a symbol; the value is the symbol index,
+                                     //followed by its use, the line and the column
+    static final int END_REFERENCE = 5; //the end of the instruction
+
+    //How an instruction uses its symbol
+    static final int USE_VARIABLE = 0; //the symbol has to be a variable
+    static final int USE_JUMP = 1; //the symbol has to be a label
+
+    private final String[] names; //by symbol index
+    private final int[] variables; //the symbol indices of the variables, in the order they are declared
+    private final int[] variableLines;
+    private final int[] records;
+
+    /**
+     * Constructor for the ObjectModule
+     * @param names The names of the symbols, by symbol index
+     * @param variables The symbol indices of the variables, in the order they are declared
+     * @param variableLines The lines the variables are declared on
+     * @param records The records of the code
+     */
+    ObjectModule(String[] names, int[] variables, int[] variableLines, int[] records)
+    {
+        this.names = names;
+        this.variables = variables;
+        this.variableLines = variableLines;
+        this.records = records;
+    }
+
+    /**
+     * Put a record together.
+     * @param kind The kind of record
+     * @param value Its value
+     * @return The record
+     */
+    static int record(int kind, int value)
+    {
+        return kind << KIND_SHIFT | value;
+    }
+
+    /**
+     * Read a module from a file.
+     * @param file The file
+     * @return The module
+     * @throws IOException If the file cannot be read or is not an object module
+     */
+    public static ObjectModule read(Path file) throws IOException
+    {
+        try(InputStream stream = Files.newInputStream(file))
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+            if(in.readInt()!=MAGIC || in.readInt()!=VERSION)
+                throw new IOException(file+" is not a Shack object module.");
+
+            String[] names = new String[in.readInt()];
+            for(int i=0; i<names.length; i++)
+                names[i] = in.readUTF();
+            int[] variables = new int[in.readInt()];
+            int[] variableLines = new int[variables.length];
+            for(int i=0; i<variables.length; i++)
+            {
+                variables[i] = in.readInt();
+                variableLines[i] = in.readInt();
+            }
+            int[] records = new int[in.readInt()];
+            for(int i=0; i<records.length; i++)
+                records[i] = in.readInt();
+            return new ObjectModule(names, variables, variableLines, records);
+        }
+    }
+
+    /**
+     * Write the module.
+     * @param channel Where it is written (it is not closed)
+     * @throws IOException If it could not be written
+     */
+    public void write(WritableByteChannel channel) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(names.length);
+        for(String name: names)
+            out.writeUTF(name);
+        out.writeInt(variables.length);
+        for(int i=0; i<variables.length; i++)
+        {
+            out.writeInt(variables[i]);
+            out.writeInt(variableLines[i]);
+        }
+        out.writeInt(records.length);
+        for(int record: records)
+            out.writeInt(record);
+        out.flush();
+    }
+
+    /**
+     * Get the names of the symbols.
+     * @return The names, by symbol index
+     */
+    String[] names()
+    {
+        return names;
+    }
+
+    /**
+     * Get the variables, in the order they are declared.
+     * @return Their symbol indices
+     */
+    int[] variables()
+    {
+        return variables;
+    }
+
+    /**
+     * Get the lines the variables are declared on.
+     * @return The lines, in the order of variables()
+     */
+    int[] variableLines()
+    {
+        return variableLines;
+    }
+
+    /**
+     * Get the records of the code.
+     * @return The records
+     */
+    int[] records()
+    {
+        return records;
+    }
+}
@@ -0,0 +1,196 @@
+package shack;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Records the Hack instructions as the records of an object module, and writes the module when it is closed. The
+ * symbol indices of the module are the symbol IDs of the symbol table of the assembler.
+ *
+ * A module is always translated in two passes, so nothing is ever held back or cut; the peephole optimizer runs when
+ * the modules are linked.
+ */
+public class ObjectWriter implements Emitter
+{
+    private final WritableByteChannel channel;
+    private final SymbolTable symbols;
+
+    private int[] records = new int[1024];
+    private int count; //the number of ints in records
+    private int instructions;
+    private int line; //where the next label or reference is
+    private int column;
+    private boolean error;
+
+    /**
+     * Constructor for the ObjectWriter
+     * @param channel The channel the module is written to
+     * @param symbols The symbol table of the assembler
+     */
+    public ObjectWriter(WritableByteChannel channel, SymbolTable symbols)
+    {
+        this.channel = channel;
+        this.symbols = symbols;
+    }
+
+    /**
+     * Set where the next label or instruction that uses a symbol is, for the errors of the linker.
+     * @param line The number of its line
+     * @param column The column of its label or symbol
+     */
+    public void locate(int line, int column)
+    {
+        this.line = line;
+        this.column = column;
+    }
+
+    /**
+     * Start the code of an instruction that uses a symbol, which is checked when the modules are linked.
+     * @param symbol The symbol ID
+     * @param use How the symbol is used (ObjectModule.USE_VARIABLE or USE_JUMP)
+     */
+    public void reference(int symbol, int use)
+    {
+        add(ObjectModule.record(ObjectModule.REFERENCE, symbol));
+        add(use);
+        add(line);
+        add(column);
+    }
+
+    /**
+     * End the code of the instruction that uses a symbol.
+     */
+    public void endReference()
+    {
+        add(ObjectModule.record(ObjectModule.END_REFERENCE, 0));
+    }
+
+    @Override
+    public void instruction(HackInstruction instruction)
+    {
+        add(ObjectModule.record(ObjectModule.INSTRUCTION, instruction.ordinal()));
+        instructions++;
+    }
+
+    @Override
+    public void address(int address)
+    {
+        add(ObjectModule.record(ObjectModule.ADDRESS, address));
+        instructions++;
+    }
+
+    @Override
+    public void symbol(int symbol)
+    {
+        add(ObjectModule.record(ObjectModule.SYMBOL, symbol));
+        instructions++;
+    }
+
+    @Override
+    public void label(int symbol)
+    {
+        add(ObjectModule.record(ObjectModule.LABEL, symbol));
+        add(line);
+        add(column);
+    }
+
+    /**
+     * Add an int to the records.
+     * @param value The int
+     */
+    private void add(int value)
+    {
+        if(count==records.length)
+            records = Arrays.copyOf(records, records.length*2);
+        records[count++] = value;
+    }
+
+    @Override
+    public long position()
+    {
+        return count;
+    }
+
+    @Override
+    public int instructionCount()
+    {
+        return instructions;
+    }
+
+    @Override
+    public void holdFrom(long position)
+    {
+        //Nothing is written until the module is closed
+    }
+
+    @Override
+    public void release()
+    {
+    }
+
+    @Override
+    public void flush()
+    {
+        //A module is written in one go, once it is closed
+    }
+
+    @Override
+    public void cut(long start, long end)
+    {
+        throw new UnsupportedOperationException(); //only single-pass mode and the optimizer cut
+    }
+
+    @Override
+    public boolean checkError()
+    {
+        return error;
+    }
+
+    @Override
+    public Emitter part()
+    {
+        return null; //a module is recorded in one go
+    }
+
+    @Override
+    public void append(Emitter part)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Write the module and close the channel.
+     * @throws IOException If the channel could not be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        String[] names = new String[symbols.size()];
+        for(int id=0; id<names.length; id++)
+            names[id] = symbols.name(id);
+
+        //The variables are listed in the order they are declared (the order of their lines)
+        Integer[] declared = new Integer[symbols.size()];
+        int variableCount = 0;
+        for(int id=0; id<names.length; id++)
+            if(symbols.is(id, SymbolTable.RAM))
+                declared[variableCount++] = id;
+        Arrays.sort(declared, 0, variableCount, (a, b)->Integer.compare(symbols.line(a), symbols.line(b)));
+        int[] variables = new int[variableCount];
+        int[] variableLines = new int[variableCount];
+        for(int i=0; i<variableCount; i++)
+        {
+            variables[i] = declared[i];
+            variableLines[i] = symbols.line(declared[i]);
+        }
+
+        try{
+            new ObjectModule(names, variables, variableLines, Arrays.copyOf(records, count)).write(channel);
+        }catch(IOException ex)
+        {
+            error = true;
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,130 @@
+package shack;
+
+/**
+ * The Shack instruction codes. Every code carries what the assembler needs to parse and convert it: its form (how many
+ * operands it takes and what they can be) and the Hack instructions it is converted to. The table is built once, with
+ * the enum, and never changes, so it is shared by every assembler.
+ */
+public enum Opcode
+{
+    ADDD(Form.D_REGISTER, HackInstruction.D_PLUS_A, HackInstruction.D_PLUS_M),
+    ANDD(Form.D_REGISTER, HackInstruction.D_AND_A, HackInstruction.D_AND_M),
+    ORD(Form.D_REGISTER, HackInstruction.D_OR_A, HackInstruction.D_OR_M),
+    SUBD(Form.D_REGISTER, HackInstruction.D_MINUS_A, HackInstruction.D_MINUS_M),
+
+    INC(Form.NO_OPERAND, HackInstruction.D_PLUS_ONE),
+    DEC(Form.NO_OPERAND, HackInstruction.D_MINUS_ONE),
+    CLR(Form.NO_OPERAND, HackInstruction.D_ZERO),
+    NEG(Form.NO_OPERAND, HackInstruction.D_NEG),
+    NOT(Form.NO_OPERAND, HackInstruction.D_NOT),
+
+    STO(Form.STORE, null),
+    LOAD(Form.LOAD, null),
+
+    JMP(Form.JUMP, HackInstruction.JMP),
+    JGT(Form.JUMP, HackInstruction.JGT),
+    JEQ(Form.JUMP, HackInstruction.JEQ),
+    JGE(Form.JUMP, HackInstruction.JGE),
+    JLT(Form.JUMP, HackInstruction.JLT),
+    JNE(Form.JUMP, HackInstruction.JNE),
+    JLE(Form.JUMP, HackInstruction.JLE);
+
+    /**
+     * The forms of instruction, by their operands.
+     */
+    public enum Form
+    {
+        NO_OPERAND(0, false), //INC, DEC, CLR, NEG and NOT, which only change D
+        D_REGISTER(1, true), //ADDD, ANDD, ORD and SUBD: D op a destination, which can be immediate
+        JUMP(1, false), //a jump to a destination, which cannot be immediate
+        STORE(2, false), //STO register destination, which cannot be immediate
+        LOAD(2, true); //LOAD register destination (or the other register)
+
+        private final int operands;
+        private final boolean immediate;
+
+        /**
+         * Constructor for the Form
+         * @param operands The number of operands
+         * @param immediate Whether the destination can be immediate
+         */
+        Form(int operands, boolean immediate)
+        {
+            this.operands = operands;
+            this.immediate = immediate;
+        }
+
+        /**
+         * Get the number of operands.
+         * @return The number of operands
+         */
+        public int operands()
+        {
+            return operands;
+        }
+
+        /**
+         * Check if the destination can be immediate (#address or #symbol).
+         * @return true if it can, false otherwise
+         */
+        public boolean allowsImmediate()
+        {
+            return immediate;
+        }
+    }
+
+    private final Form form;
+    private final HackInstruction immediate; //the Hack instruction of the immediate form (or of the only form)
+    private final HackInstruction memory; //the Hack instruction of the form that reads the memory
+
+    /**
+     * Constructor for the Opcode, for a code that is converted to the same Hack instruction whatever its operand.
+     * @param form The form of instruction
+     * @param instruction The Hack instruction (null if it depends on the register operand)
+     */
+    Opcode(Form form, HackInstruction instruction)
+    {
+        this(form, instruction, instruction);
+    }
+
+    /**
+     * Constructor for the Opcode
+     * @param form The form of instruction
+     * @param immediate The Hack instruction of the immediate form
+     * @param memory The Hack instruction of the form that reads the memory at the destination
+     */
+    Opcode(Form form, HackInstruction immediate, HackInstruction memory)
+    {
+        this.form = form;
+        this.immediate = immediate;
+        this.memory = memory;
+    }
+
+    /**
+     * Get the form of instruction.
+     * @return The form
+     */
+    public Form form()
+    {
+        return form;
+    }
+
+    /**
+     * Check if this is a jump.
+     * @return true if it is, false otherwise
+     */
+    public boolean isJump()
+    {
+        return form==Form.JUMP;
+    }
+
+    /**
+     * Get the Hack instruction this code is converted to (after the destination is loaded into A, if it has one).
+     * @param immediate true for the immediate form (which uses A), false for the one that reads the memory (M)
+     * @return The Hack instruction, or null for STO and LOAD, whose Hack instructions depend on their register
+     */
+    public HackInstruction hack(boolean immediate)
+    {
+        return immediate ? this.immediate : memory;
+    }
+}
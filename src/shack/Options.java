@@ -0,0 +1,337 @@
+package shack;
+
+import java.nio.file.Path;
+
+/**
+ * The settings an assembler runs with, as given on the command line.
+ */
+public class Options
+{
+    /**
+     * The kinds of output file.
+     */
+    public enum Format
+    {
+        ASM(".asm"), //Hack assembly code, with symbolic addresses
+        HACK(".hack"), //Hack machine code, one 16-digit binary word per line
+        BINARY(".bin"), //Hack machine code, packed as big-endian 16-bit words
+        OBJECT(".sho"); //a relocatable object module, linked into one of the other formats later
+
+        private final String extension;
+
+        /**
+         * Constructor for the Format
+         * @param extension The extension of the output file
+         */
+        Format(String extension)
+        {
+            this.extension = extension;
+        }
+
+        /**
+         * Get the extension of the output file.
+         * @return The extension
+         */
+        public String extension()
+        {
+            return extension;
+        }
+
+        /**
+         * Find the format with the given name (its extension without the dot, e.g. "hack").
+         * @param name The name
+         * @return The format, or null if there is none with that name
+         */
+        public static Format fromName(String name)
+        {
+            for(Format format: values())
+                if(format.extension.substring(1).equals(name))
+                    return format;
+            return null;
+        }
+    }
+
+    private boolean singlePass;
+    private Format format = Format.ASM;
+    private boolean optimizing;
+    private boolean flowOptimizing;
+    private boolean reporting;
+    private Path directory; //null for the working directory of the process
+    private int errorLimit = Diagnostics.NO_LIMIT;
+    private boolean abortingEarly;
+    private boolean collectingStats;
+    private boolean analyzing;
+    private boolean pipelined;
+    private Path cacheDirectory; //null if the build cache is not used
+    private long cacheLimit = BuildCache.DEFAULT_LIMIT;
+    private int translationThreads = 1;
+
+    /**
+     * Check if every line should be converted as soon as it is read (rather than in a second pass).
+     * @return true if it should, false otherwise
+     */
+    public boolean isSinglePass()
+    {
+        return singlePass;
+    }
+
+    /**
+     * Set whether every line should be converted as soon as it is read.
+     * @param singlePass true if it should, false if the conversion happens in a second pass
+     */
+    public void setSinglePass(boolean singlePass)
+    {
+        this.singlePass = singlePass;
+    }
+
+    /**
+     * Get the kind of output file.
+     * @return The format
+     */
+    public Format getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * Set the kind of output file.
+     * @param format The format
+     */
+    public void setFormat(Format format)
+    {
+        this.format = format;
+    }
+
+    /**
+     * Check if the instructions that do not change the result of the program should be removed.
+     * @return true if they should, false otherwise
+     */
+    public boolean isOptimizing()
+    {
+        return optimizing;
+    }
+
+    /**
+     * Set whether the instructions that do not change the result of the program should be removed.
+     * @param optimizing true if they should, false otherwise
+     */
+    public void setOptimizing(boolean optimizing)
+    {
+        this.optimizing = optimizing;
+    }
+
+    /**
+     * Check if the jumps to blocks that only jump should be threaded and the blocks that cannot be reached dropped.
+     * @return true if they should, false otherwise
+     */
+    public boolean isFlowOptimizing()
+    {
+        return flowOptimizing;
+    }
+
+    /**
+     * Set whether the jumps to blocks that only jump should be threaded and the blocks that cannot be reached dropped.
+     * @param flowOptimizing true if they should, false otherwise
+     */
+    public void setFlowOptimizing(boolean flowOptimizing)
+    {
+        this.flowOptimizing = flowOptimizing;
+    }
+
+    /**
+     * Check if the variables and labels that are never used (and what the control-flow optimization saved) should be
+     * printed after the errors.
+     * @return true if they should, false otherwise
+     */
+    public boolean isReporting()
+    {
+        return reporting;
+    }
+
+    /**
+     * Set whether the variables and labels that are never used (and what the control-flow optimization saved) should
+     * be printed after the errors.
+     * @param reporting true if they should, false otherwise
+     */
+    public void setReporting(boolean reporting)
+    {
+        this.reporting = reporting;
+    }
+
+    /**
+     * Check if the source should be read and the output written on threads of their own, while the lines are parsed
+     * and converted.
+     * @return true if they should, false otherwise
+     */
+    public boolean isPipelined()
+    {
+        return pipelined;
+    }
+
+    /**
+     * Set whether the source should be read and the output written on threads of their own, while the lines are
+     * parsed and converted.
+     * @param pipelined true if they should, false otherwise
+     */
+    public void setPipelined(boolean pipelined)
+    {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Get the directory of the cache of assembled files, which files that have been assembled before with the same
+     * settings are replayed from.
+     * @return The directory, or null if there is no cache
+     */
+    public Path getCacheDirectory()
+    {
+        return cacheDirectory;
+    }
+
+    /**
+     * Set the directory of the cache of assembled files.
+     * @param cacheDirectory The directory, or null for no cache
+     */
+    public void setCacheDirectory(Path cacheDirectory)
+    {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Get the largest size of the cache of assembled files.
+     * @return The size, in bytes
+     */
+    public long getCacheLimit()
+    {
+        return cacheLimit;
+    }
+
+    /**
+     * Set the largest size of the cache of assembled files (the entries used longest ago are deleted to keep it there).
+     * @param cacheLimit The size, in bytes
+     */
+    public void setCacheLimit(long cacheLimit)
+    {
+        this.cacheLimit = cacheLimit;
+    }
+
+    /**
+     * Get the largest number of errors printed for a file.
+     * @return The number of errors, or Diagnostics.NO_LIMIT
+     */
+    public int getErrorLimit()
+    {
+        return errorLimit;
+    }
+
+    /**
+     * Set the largest number of errors printed for a file (the rest are only counted).
+     * @param errorLimit The number of errors, or Diagnostics.NO_LIMIT
+     */
+    public void setErrorLimit(int errorLimit)
+    {
+        this.errorLimit = errorLimit;
+    }
+
+    /**
+     * Check if the assembly of a file should stop as soon as the error limit is reached (or at the first error, if
+     * there is no limit).
+     * @return true if it should, false otherwise
+     */
+    public boolean isAbortingEarly()
+    {
+        return abortingEarly;
+    }
+
+    /**
+     * Set whether the assembly of a file should stop as soon as the error limit is reached.
+     * @param abortingEarly true if it should, false if the whole file is assembled anyway
+     */
+    public void setAbortingEarly(boolean abortingEarly)
+    {
+        this.abortingEarly = abortingEarly;
+    }
+
+    /**
+     * Check if the measurements of the assembly of every file should be written to a stats file next to its output.
+     * @return true if they should, false otherwise
+     */
+    public boolean isCollectingStats()
+    {
+        return collectingStats;
+    }
+
+    /**
+     * Set whether the measurements of the assembly of every file should be written to a stats file.
+     * @param collectingStats true if they should, false otherwise
+     */
+    public void setCollectingStats(boolean collectingStats)
+    {
+        this.collectingStats = collectingStats;
+    }
+
+    /**
+     * Check if the cost of every line (its ROM words and the loops it is in) should be written to a report next to the
+     * output of every file.
+     * @return true if it should, false otherwise
+     */
+    public boolean isAnalyzing()
+    {
+        return analyzing;
+    }
+
+    /**
+     * Set whether the cost of every line should be written to a report.
+     * @param analyzing true if it should, false otherwise
+     */
+    public void setAnalyzing(boolean analyzing)
+    {
+        this.analyzing = analyzing;
+    }
+
+    /**
+     * Get the number of threads the second pass over a large file is split between.
+     * @return The number of threads (1 if the second pass is not split)
+     */
+    public int getTranslationThreads()
+    {
+        return translationThreads;
+    }
+
+    /**
+     * Set the number of threads the second pass over a large file is split between.
+     * @param translationThreads The number of threads (1 for none but the one assembling the file)
+     */
+    public void setTranslationThreads(int translationThreads)
+    {
+        this.translationThreads = translationThreads;
+    }
+
+    /**
+     * Get the directory the file names are relative to.
+     * @return The directory, or null if it is the working directory of the process
+     */
+    public Path getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Set the directory the file names are relative to (e.g. the working directory of a client of the daemon).
+     * @param directory The directory, or null for the working directory of the process
+     */
+    public void setDirectory(Path directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Find a file given on the command line.
+     * @param file The name of the file (absolute, or relative to the directory)
+     * @return The path of the file
+     */
+    public Path resolve(String file)
+    {
+        return directory==null ? Path.of(file) : directory.resolve(file);
+    }
+}
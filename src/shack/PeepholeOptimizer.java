@@ -0,0 +1,354 @@
+package shack;
+
+import java.io.IOException;
+
+/**
+ * Removes the instructions that do not change the result of the program before passing the rest on to another emitter.
+ *
+ * The instructions are held back until the end of a straight run of code (a label, a jump or the end of the program),
+ * and two passes are made over them:
+ * - forwards, the values in A, D and the memory words just read or written are numbered, so an instruction that would
+ *   leave its destination with the value it already has is dropped (e.g. "@x" when A already holds x, or "D=M" right
+ *   after "M=D");
+ * - backwards, an instruction whose result is overwritten before it is used is dropped (e.g. restoring A right before
+ *   it is loaded again).
+ * A and D are kept as they would have been at every label and jump (at a label, only the ones that are read after it,
+ * if setLiveAfter says which). R13 is the assembler's own scratch register
+ * (LOAD D saves A there), so its value is not kept once the code that saved it is done with it.
+ */
+public class PeepholeOptimizer implements Emitter
+{
+    private static final int BLOCK_SIZE = 1024; //the most instructions held back at once
+    private static final int MEMORY_SIZE = 16; //the most memory words whose values are known at once
+
+    private static final int REGISTERS = HackInstruction.REGISTER_A | HackInstruction.REGISTER_D;
+    private static final HackInstruction[] INSTRUCTIONS = HackInstruction.values(); //by ordinal
+
+    //Kinds of held back instructions
+    private static final int INSTRUCTION = 0;
+    private static final int ADDRESS = 1;
+    private static final int SYMBOL = 2;
+
+    //Value numbers: addresses are themselves, symbols come after them and unknown values are negative
+    private static final int SYMBOL_VALUES = 1 << 15;
+    private static final int SCRATCH = -1; //the address of R13, as loaded by the assembler
+
+    private final Emitter next;
+
+    private final int[] kinds = new int[BLOCK_SIZE];
+    private final int[] operands = new int[BLOCK_SIZE]; //instruction ordinal, address or symbol ID
+    private final boolean[] scratch = new boolean[BLOCK_SIZE]; //whether A holds the address of R13 at the instruction
+    private final boolean[] removed = new boolean[BLOCK_SIZE];
+    private int size;
+
+    private int aValue;
+    private int dValue;
+    private final int[] memoryAddresses = new int[MEMORY_SIZE]; //value numbers of the addresses...
+    private final int[] memoryValues = new int[MEMORY_SIZE]; //...and of the words stored there
+    private int memoryCount;
+    private int nextUnknown = SCRATCH - 1;
+    private int liveAfter = REGISTERS; //the registers read after the straight run of code that is held back
+
+    /**
+     * Constructor for the PeepholeOptimizer
+     * @param next The emitter the remaining instructions are passed on to
+     */
+    public PeepholeOptimizer(Emitter next)
+    {
+        this.next = next;
+        forget();
+    }
+
+    @Override
+    public void instruction(HackInstruction instruction)
+    {
+        boolean redundant = false;
+        int before = aValue;
+        switch(instruction)
+        {
+            case AT_R13:
+                redundant = aValue==SCRATCH;
+                aValue = SCRATCH;
+                break;
+            case A_EQ_D:
+                redundant = aValue==dValue;
+                aValue = dValue;
+                break;
+            case A_EQ_M:
+                int loaded = load(aValue);
+                redundant = aValue==loaded;
+                aValue = loaded;
+                break;
+            case D_EQ_A:
+                redundant = dValue==aValue;
+                dValue = aValue;
+                break;
+            case D_EQ_M:
+                loaded = load(aValue);
+                redundant = dValue==loaded;
+                dValue = loaded;
+                break;
+            case D_ZERO:
+                redundant = dValue==0;
+                dValue = 0;
+                break;
+            case M_EQ_D:
+                redundant = memoryIndex(aValue)!=-1 && memoryValues[memoryIndex(aValue)]==dValue;
+                memoryCount = 0; //the address may be the same as any other one
+                remember(aValue, dValue);
+                break;
+            default:
+                if((instruction.writes() & HackInstruction.REGISTER_D)!=0)
+                    dValue = nextUnknown--;
+        }
+        if(!redundant)
+            hold(INSTRUCTION, instruction.ordinal(), before==SCRATCH);
+
+        if(instruction.isJump())
+            flush(true);
+    }
+
+    @Override
+    public void address(int address)
+    {
+        loadA(ADDRESS, address, address);
+    }
+
+    @Override
+    public void symbol(int symbol)
+    {
+        loadA(SYMBOL, symbol, SYMBOL_VALUES + symbol);
+    }
+
+    /**
+     * Hold back an A-instruction, unless A already holds its value.
+     * @param kind ADDRESS or SYMBOL
+     * @param operand The address or the symbol ID
+     * @param value The value number of the address
+     */
+    private void loadA(int kind, int operand, int value)
+    {
+        if(aValue==value)
+            return;
+        hold(kind, operand, aValue==SCRATCH);
+        aValue = value;
+    }
+
+    /**
+     * Get the value number of the memory word at an address.
+     * @param address The value number of the address
+     * @return The value number of the word
+     */
+    private int load(int address)
+    {
+        int index = memoryIndex(address);
+        if(index!=-1)
+            return memoryValues[index];
+        int value = nextUnknown--;
+        remember(address, value);
+        return value;
+    }
+
+    /**
+     * Find the memory word at an address among the ones whose values are known.
+     * @param address The value number of the address
+     * @return The index of the word, or -1 if its value is not known
+     */
+    private int memoryIndex(int address)
+    {
+        for(int i=0; i<memoryCount; i++)
+            if(memoryAddresses[i]==address)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Remember the value of the memory word at an address (if there is room for it).
+     * @param address The value number of the address
+     * @param value The value number of the word
+     */
+    private void remember(int address, int value)
+    {
+        if(memoryCount==MEMORY_SIZE)
+            return;
+        memoryAddresses[memoryCount] = address;
+        memoryValues[memoryCount] = value;
+        memoryCount++;
+    }
+
+    /**
+     * Forget everything that is known about the registers and the memory (e.g. at a label, which can be jumped to).
+     */
+    private void forget()
+    {
+        aValue = nextUnknown--;
+        dValue = nextUnknown--;
+        memoryCount = 0;
+    }
+
+    /**
+     * Hold back an instruction, passing the held back ones on first if there is no room for it.
+     * @param kind INSTRUCTION, ADDRESS or SYMBOL
+     * @param operand The instruction ordinal, the address or the symbol ID
+     * @param isScratch true if A holds the address of R13 when the instruction runs
+     */
+    private void hold(int kind, int operand, boolean isScratch)
+    {
+        if(size==BLOCK_SIZE)
+            flush(false);
+        kinds[size] = kind;
+        operands[size] = operand;
+        scratch[size] = isScratch;
+        removed[size] = false;
+        size++;
+    }
+
+    /**
+     * Set which registers are read after the instructions emitted so far, before they are written (e.g. by the code
+     * after the label that comes next). It is used once, when the straight run of code ends; without it, A and D are
+     * both taken to be read.
+     * @param registers HackInstruction.REGISTER_A and REGISTER_D, combined
+     */
+    public void setLiveAfter(int registers)
+    {
+        liveAfter = registers;
+    }
+
+    /**
+     * Drop the held back instructions whose results are never used and pass the rest on.
+     * @param isEnd true if the straight run of code ends here (R13 is not needed after it and nothing is known about
+     *              the registers and the memory any more), false if it goes on
+     */
+    private void flush(boolean isEnd)
+    {
+        int live = isEnd ? liveAfter : REGISTERS;
+        boolean scratchLive = !isEnd;
+        for(int i=size-1; i>=0; i--)
+        {
+            int reads = 0;
+            int writes = HackInstruction.REGISTER_A;
+            boolean needed;
+            if(kinds[i]==INSTRUCTION)
+            {
+                HackInstruction instruction = INSTRUCTIONS[operands[i]];
+                reads = instruction.reads();
+                writes = instruction.writes();
+                if(instruction.isJump())
+                    needed = true;
+                else if((writes & HackInstruction.MEMORY)!=0)
+                    needed = !scratch[i] || scratchLive;
+                else
+                    needed = (writes & live)!=0;
+            }
+            else
+                needed = (live & HackInstruction.REGISTER_A)!=0;
+
+            if(!needed)
+            {
+                removed[i] = true;
+                continue;
+            }
+            if((writes & HackInstruction.MEMORY)!=0 && scratch[i])
+                scratchLive = false;
+            live = (live & ~writes) | (reads & REGISTERS);
+            if((reads & HackInstruction.MEMORY)!=0 && scratch[i])
+                scratchLive = true;
+        }
+
+        for(int i=0; i<size; i++)
+            if(!removed[i])
+            {
+                if(kinds[i]==INSTRUCTION)
+                    next.instruction(INSTRUCTIONS[operands[i]]);
+                else if(kinds[i]==ADDRESS)
+                    next.address(operands[i]);
+                else
+                    next.symbol(operands[i]);
+            }
+        size = 0;
+
+        if(isEnd)
+        {
+            forget();
+            liveAfter = REGISTERS;
+        }
+    }
+
+    @Override
+    public void label(int symbol)
+    {
+        flush(true);
+        next.label(symbol);
+    }
+
+    @Override
+    public long position()
+    {
+        flush(true);
+        return next.position();
+    }
+
+    @Override
+    public int instructionCount()
+    {
+        flush(true);
+        return next.instructionCount();
+    }
+
+    @Override
+    public void holdFrom(long position)
+    {
+        flush(true);
+        next.holdFrom(position);
+    }
+
+    @Override
+    public void release()
+    {
+        flush(true);
+        next.release();
+    }
+
+    @Override
+    public void flush()
+    {
+        //The instructions held back here are only a few, and they could still be removed by the ones that come next
+        next.flush();
+    }
+
+    @Override
+    public void cut(long start, long end)
+    {
+        flush(true);
+        next.cut(start, end);
+    }
+
+    @Override
+    public boolean checkError()
+    {
+        return next.checkError();
+    }
+
+    @Override
+    public Emitter part()
+    {
+        return null; //what can be removed depends on the instructions before
+    }
+
+    @Override
+    public void append(Emitter part)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Pass on the instructions that are left and close the next emitter.
+     * @throws IOException If the next emitter could not be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        flush(true);
+        next.close();
+    }
+}
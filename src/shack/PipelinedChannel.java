@@ -0,0 +1,117 @@
+package shack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The writer stage of a pipelined assembly: a channel that copies what is written to it into chunks and writes them
+ * to the output file on a thread of its own, so the emitter goes on while the file is written.
+ *
+ * The chunks are passed to the writer through a ring of CHUNKS and handed back through another one once they have been
+ * written, so a writer that falls behind holds the emitter back rather than letting the chunks pile up. An error of the
+ * writer is thrown by the next write, or by close.
+ */
+class PipelinedChannel implements WritableByteChannel, Runnable
+{
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int CHUNKS = 4;
+
+    private final WritableByteChannel channel;
+    private final RingBuffer<ByteBuffer> filled = new RingBuffer<>(CHUNKS); //chunks waiting to be written
+    private final RingBuffer<ByteBuffer> free = new RingBuffer<>(CHUNKS); //chunks waiting to be filled
+    private final Thread thread;
+    private volatile IOException error; //why the writer stopped writing (null if it did not)
+    private boolean open = true;
+
+    /**
+     * Constructor for the PipelinedChannel. It starts the writer thread.
+     * @param channel The channel the chunks are written to (it is closed by close)
+     */
+    PipelinedChannel(WritableByteChannel channel)
+    {
+        this.channel = channel;
+        for(int i=0; i<CHUNKS; i++)
+            free.put(ByteBuffer.allocate(CHUNK_SIZE));
+
+        thread = new Thread(this, "shack-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Write the chunks until the channel is closed. Once a write fails, the chunks are only handed back.
+     */
+    @Override
+    public void run()
+    {
+        for(ByteBuffer chunk = filled.take(); chunk!=null; chunk = filled.take())
+        {
+            try{
+                while(error==null && chunk.hasRemaining())
+                    channel.write(chunk);
+            }catch(IOException ex)
+            {
+                error = ex;
+            }
+            free.put(chunk);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException
+    {
+        if(!open)
+            throw new ClosedChannelException();
+        if(error!=null)
+            throw error;
+
+        int count = source.remaining();
+        while(source.hasRemaining())
+        {
+            ByteBuffer chunk = free.take();
+            int length = Math.min(chunk.capacity(), source.remaining());
+            chunk.clear();
+            chunk.put(source.slice(source.position(), length));
+            chunk.flip();
+            source.position(source.position() + length);
+            filled.put(chunk);
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    /**
+     * Wait for the chunks left to be written, then close the channel.
+     * @throws IOException If a chunk could not be written or the channel could not be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(!open)
+            return;
+        open = false;
+        filled.close();
+
+        boolean interrupted = false;
+        while(thread.isAlive())
+            try{
+                thread.join();
+            }catch(InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+
+        channel.close();
+        if(error!=null)
+            throw error;
+    }
+}
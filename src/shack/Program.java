@@ -0,0 +1,197 @@
+package shack;
+
+import java.util.Arrays;
+
+/**
+ * A parsed Shack program: the instructions and labels of the code area, in the order they appear.
+ *
+ * Every entry is packed into a single long (opcode, register, operand kind and operand), so a program of a million lines
+ * takes a few megabytes. Lines that could not be parsed are kept as errors, so they are reported in order when the code
+ * is generated. The line and column of every entry are kept next to it, for the errors found when its code is generated.
+ */
+public class Program
+{
+    //Operand kinds (and the kinds of the entries that are not instructions)
+    public static final int NONE = 0;
+    public static final int REGISTER_A = 1;
+    public static final int REGISTER_D = 2;
+    public static final int ADDRESS = 3; //a memory address (e.g. 5)
+    public static final int IMMEDIATE = 4; //a number (e.g. #5)
+    public static final int SYMBOL = 5; //the memory word of a variable, or a label (e.g. x)
+    public static final int IMMEDIATE_SYMBOL = 6; //the address of a variable (e.g. #x)
+    public static final int LABEL = 7; //a label declaration; the operand is its symbol ID
+    public static final int ERROR = 8; //a line that could not be parsed; the operand is the index of its error in errors()
+
+    private static final Opcode[] OPCODES = Opcode.values();
+
+    private long[] entries = new long[1024];
+    private int[] lines = new int[1024];
+    private int[] columns = new int[1024]; //the column of the operand of every instruction
+    private int size;
+    private final Diagnostics errors = new Diagnostics(Diagnostics.NO_LIMIT);
+
+    /**
+     * Add an instruction.
+     * @param opcode The instruction code
+     * @param register The register operand (REGISTER_A or REGISTER_D for LOAD and STO, NONE otherwise)
+     * @param kind The kind of the other operand
+     * @param operand The other operand (an address, a number or a symbol ID, depending on its kind)
+     * @param line The number of the line of the instruction
+     * @param column The column of the other operand (in bytes, from 1)
+     */
+    public void add(Opcode opcode, int register, int kind, int operand, int line, int column)
+    {
+        add((long) (opcode.ordinal()+1) << 48 | (long) register << 40 | (long) kind << 32 | (operand & 0xFFFFFFFFL),
+                line, column);
+    }
+
+    /**
+     * Add a label declaration.
+     * @param symbol The symbol ID of the label
+     * @param line The number of the line of the label
+     * @param column The column of the label (in bytes, from 1)
+     */
+    public void addLabel(int symbol, int line, int column)
+    {
+        add((long) LABEL << 32 | symbol, line, column);
+    }
+
+    /**
+     * Add a line that could not be parsed. Its error has to be the last one reported to errors().
+     */
+    public void addError()
+    {
+        int error = errors.size() - 1;
+        add((long) ERROR << 32 | error, errors.line(error), errors.column(error));
+    }
+
+    /**
+     * Add a packed entry, as returned by get (errors have to be added with addError).
+     * @param entry The entry
+     * @param line The number of the line of the entry
+     * @param column The column of the entry, as returned by column
+     */
+    public void add(long entry, int line, int column)
+    {
+        if(size==entries.length)
+        {
+            entries = Arrays.copyOf(entries, entries.length*2);
+            lines = Arrays.copyOf(lines, entries.length);
+            columns = Arrays.copyOf(columns, entries.length);
+        }
+        entries[size] = entry;
+        lines[size] = line;
+        columns[size] = column;
+        size++;
+    }
+
+    /**
+     * Get the number of entries.
+     * @return The number of entries
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    public void clear()
+    {
+        size = 0;
+        errors.clear();
+    }
+
+    /**
+     * Get a packed entry, so that it can be added again later on (e.g. to the program of the next assembly of the same
+     * source). The symbol IDs in it stay valid as long as the same symbol table is used.
+     * @param entry The index of the entry
+     * @return The packed entry
+     */
+    public long get(int entry)
+    {
+        return entries[entry];
+    }
+
+    /**
+     * Get the instruction code of an entry.
+     * @param entry The index of the entry
+     * @return The instruction code, or null if the entry is not an instruction
+     */
+    public Opcode opcode(int entry)
+    {
+        int opcode = (int) (entries[entry] >>> 48);
+        return opcode==0 ? null : OPCODES[opcode-1];
+    }
+
+    /**
+     * Get the register operand of an instruction.
+     * @param entry The index of the entry
+     * @return REGISTER_A, REGISTER_D or NONE
+     */
+    public int register(int entry)
+    {
+        return (int) (entries[entry] >>> 40) & 0xFF;
+    }
+
+    /**
+     * Get the kind of the (other) operand of an instruction, or the kind of the entry if it is not an instruction.
+     * @param entry The index of the entry
+     * @return The kind
+     */
+    public int kind(int entry)
+    {
+        return (int) (entries[entry] >>> 32) & 0xFF;
+    }
+
+    /**
+     * Get the (other) operand of an instruction, or the symbol ID of a label.
+     * @param entry The index of the entry
+     * @return The operand
+     */
+    public int operand(int entry)
+    {
+        return (int) entries[entry];
+    }
+
+    /**
+     * Check if the operand of an instruction is immediate (#n or #x).
+     * @param entry The index of the entry
+     * @return true if it is, false otherwise
+     */
+    public boolean isImmediate(int entry)
+    {
+        return kind(entry)==IMMEDIATE || kind(entry)==IMMEDIATE_SYMBOL;
+    }
+
+    /**
+     * Get the line of an entry.
+     * @param entry The index of the entry
+     * @return The number of the line
+     */
+    public int line(int entry)
+    {
+        return lines[entry];
+    }
+
+    /**
+     * Get the column of the (other) operand of an instruction, or of the label or error of the entry.
+     * @param entry The index of the entry
+     * @return The column (in bytes, from 1)
+     */
+    public int column(int entry)
+    {
+        return columns[entry];
+    }
+
+    /**
+     * Get where the errors of the lines that could not be parsed are kept (the operand of an ERROR entry is the index of
+     * its error there).
+     * @return The errors
+     */
+    public Diagnostics errors()
+    {
+        return errors;
+    }
+}
@@ -0,0 +1,108 @@
+package shack;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue between two threads: one of them puts items in and the other takes them out, in the same order. The
+ * items are kept in an array used as a ring and the two ends are counters that only ever grow, so neither side takes a
+ * lock. A side that cannot go on (the ring is full, or it is empty) spins for a moment and then parks until the other
+ * side has moved, which is what holds a fast producer back to the pace of its consumer.
+ *
+ * @param <T> The type of the items
+ */
+class RingBuffer<T>
+{
+    private static final int SPINS = 128; //the number of times a side checks again before it parks
+
+    private final Object[] items;
+    private final int mask; //the capacity is a power of two, so the index of a position is position & mask
+    private final AtomicLong head = new AtomicLong(); //the position of the next item taken
+    private final AtomicLong tail = new AtomicLong(); //the position of the next item put
+    private volatile boolean closed; //whether no more items will be put
+    private volatile Thread parkedTaker;
+    private volatile Thread parkedPutter;
+
+    /**
+     * Constructor for the RingBuffer
+     * @param capacity The largest number of items it holds (rounded up to a power of two)
+     */
+    RingBuffer(int capacity)
+    {
+        items = new Object[Integer.highestOneBit(Math.max(1, capacity - 1)) << 1];
+        mask = items.length - 1;
+    }
+
+    /**
+     * Add an item at the end, waiting while the ring is full. Only one thread may put items.
+     * @param item The item
+     */
+    void put(T item)
+    {
+        long position = tail.get();
+        for(int spins=0; position - head.get()==items.length; spins++)
+            if(spins<SPINS)
+                Thread.onSpinWait();
+            else
+            {
+                //The putter is published before the ring is checked again, and the taker moves the head before it
+                //looks for a putter, so one of them always sees the other
+                parkedPutter = Thread.currentThread();
+                if(position - head.get()==items.length)
+                    LockSupport.park(this);
+                parkedPutter = null;
+            }
+
+        items[(int) position & mask] = item;
+        tail.set(position + 1);
+        wake(parkedTaker);
+    }
+
+    /**
+     * Take the item at the front, waiting while the ring is empty. Only one thread may take items.
+     * @return The item, or null if the ring is empty and closed
+     */
+    @SuppressWarnings("unchecked")
+    T take()
+    {
+        long position = head.get();
+        for(int spins=0; position==tail.get(); spins++)
+            if(closed && position==tail.get())
+                return null;
+            else if(spins<SPINS)
+                Thread.onSpinWait();
+            else
+            {
+                parkedTaker = Thread.currentThread();
+                if(position==tail.get() && !closed)
+                    LockSupport.park(this);
+                parkedTaker = null;
+            }
+
+        int index = (int) position & mask;
+        T item = (T) items[index];
+        items[index] = null;
+        head.set(position + 1);
+        wake(parkedPutter);
+        return item;
+    }
+
+    /**
+     * Mark that no more items will be put (the taker gets the items left, then null).
+     */
+    void close()
+    {
+        closed = true;
+        wake(parkedTaker);
+    }
+
+    /**
+     * Unpark a thread that waits for the ring (if there is one).
+     * @param thread The thread, or null
+     */
+    private static void wake(Thread thread)
+    {
+        if(thread!=null)
+            LockSupport.unpark(thread);
+    }
+}
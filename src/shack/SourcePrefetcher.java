@@ -0,0 +1,132 @@
+package shack;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The reader stage of a pipelined assembly: a thread that reads a source file (or stream) into blocks while the lines
+ * of the blocks read before are parsed. A block always ends at the end of a line (never between a '\r' and its '\n'),
+ * so the lines of a block can be parsed without looking at the next one; the rest of the file is carried over to the
+ * next block. A block is passed on as soon as a line ends in it, so the lines of a stream are parsed as they come in.
+ *
+ * The blocks are passed to the parser through a ring of BLOCKS and handed back through another one once their lines
+ * have been parsed, so the reader never gets more than BLOCKS blocks ahead and nothing is allocated after the start
+ * (unless a line does not fit in a block, which then grows).
+ */
+class SourcePrefetcher implements Runnable, Closeable
+{
+    private static final int BLOCK_SIZE = 1 << 18;
+    private static final int BLOCKS = 4;
+
+    private final ReadableByteChannel channel;
+    private final RingBuffer<ByteBuffer> read = new RingBuffer<>(BLOCKS); //blocks waiting to be parsed
+    private final RingBuffer<ByteBuffer> free = new RingBuffer<>(BLOCKS); //blocks waiting to be read into
+    private volatile boolean stopped;
+    private volatile IOException error; //why the reader stopped early (null if it did not)
+
+    /**
+     * Constructor for the SourcePrefetcher. It starts reading the file on its own thread.
+     * @param channel The file or stream (it is closed by close)
+     */
+    SourcePrefetcher(ReadableByteChannel channel)
+    {
+        this.channel = channel;
+        for(int i=0; i<BLOCKS; i++)
+            free.put(ByteBuffer.allocate(BLOCK_SIZE));
+
+        Thread thread = new Thread(this, "shack-reader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Read the file into blocks until its end (or until the parser stops).
+     */
+    @Override
+    public void run()
+    {
+        byte[] carry = new byte[0]; //the beginning of a line that did not end in the last block
+        int carried = 0;
+        try{
+            while(!stopped)
+            {
+                ByteBuffer block = free.take();
+                if(carried>=block.capacity()/2) //the line has to fit, with room for more of the file after it
+                    block = ByteBuffer.allocate(Math.max(block.capacity(), carried)*2);
+                block.clear();
+                block.put(carry, 0, carried);
+
+                //A file fills the block in one read; a stream may have to be waited for until a line ends
+                int count;
+                do
+                    count = channel.read(block);
+                while(count>=0 && block.hasRemaining() && lineEnd(block, block.position())==0);
+                block.flip();
+                boolean end = count<0;
+
+                int cut = end ? block.limit() : lineEnd(block, block.limit());
+                carried = block.limit() - cut;
+                if(carried>carry.length)
+                    carry = new byte[Math.max(carried, carry.length*2)];
+                block.get(cut, carry, 0, carried);
+                block.limit(cut);
+                read.put(block);
+                if(end)
+                    break;
+            }
+        }catch(IOException ex)
+        {
+            error = ex;
+        }
+        read.close();
+    }
+
+    /**
+     * Find the end of the last complete line of a block.
+     * @param block The block
+     * @param limit The end of what has been read into the block
+     * @return The position right after the line terminator, or 0 if no line ends in the block
+     */
+    private static int lineEnd(ByteBuffer block, int limit)
+    {
+        if(limit>0 && block.get(limit-1)=='\n')
+            return limit;
+        //A '\r' at the very end could still be followed by a '\n' in the next block
+        for(int position=limit-2; position>=0; position--)
+            if(block.get(position)=='\n' || block.get(position)=='\r')
+                return position + 1;
+        return 0;
+    }
+
+    /**
+     * Hand back the block whose lines have been parsed and get the next one, waiting for it to be read.
+     * @param parsed The block that has been parsed (null if there is none)
+     * @return The next block, from its position 0 to its limit, or null if the whole file has been read
+     * @throws IOException If the file could not be read
+     */
+    ByteBuffer next(ByteBuffer parsed) throws IOException
+    {
+        if(parsed!=null)
+            free.put(parsed);
+        ByteBuffer block = read.take();
+        if(block==null && error!=null)
+            throw error;
+        return block;
+    }
+
+    /**
+     * Stop reading, close the file or stream and wait for the reader to finish. A reader that waits for a stream is
+     * woken up by the stream being closed.
+     * @throws IOException If the file or stream could not be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        stopped = true;
+        channel.close();
+        for(ByteBuffer block = read.take(); block!=null; block = read.take())
+            free.put(block);
+    }
+}
@@ -0,0 +1,271 @@
+package shack;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a Shack source file line by line. The file is memory-mapped and scanned as ASCII bytes, so a line is only a
+ * start and an end position in the mapped buffer; nothing is copied or decoded unless it is asked for. A source that
+ * is already in memory is read the same way, straight from its buffer.
+ *
+ * Lines end with '\n', '\r' or "\r\n", like they do for BufferedReader.readLine().
+ *
+ * A pipelined reader (see pipelined) reads the file into blocks on a thread of its own instead, so the file is read
+ * while the lines read before are parsed. A stream, such as the standard input, is always read that way.
+ */
+public class SourceReader implements Closeable
+{
+    private static final int WINDOW_SIZE = 1 << 30; //the largest part of the file that is mapped at once
+
+    private final FileChannel channel;
+    private final long size;
+    private final int windowSize;
+    private final SourcePrefetcher prefetcher; //the reader stage, if the reader is pipelined (null otherwise)
+
+    private ByteBuffer buffer;
+    private long windowStart; //the file position of the first byte in the buffer
+    private int position; //the buffer position of the next line
+
+    private int lineStart;
+    private int lineEnd;
+    private int lineNumber;
+
+    /**
+     * Constructor for the SourceReader. It maps the beginning of the file.
+     * @param file The file to read
+     * @throws IOException If the file cannot be opened or mapped
+     */
+    public SourceReader(String file) throws IOException
+    {
+        this(file, WINDOW_SIZE);
+    }
+
+    /**
+     * Constructor for the SourceReader. It maps the beginning of the file.
+     * @param file The file to read
+     * @param windowSize The largest part of the file that is mapped at once (no line may be longer than this)
+     * @throws IOException If the file cannot be opened or mapped
+     */
+    public SourceReader(String file, int windowSize) throws IOException
+    {
+        this.windowSize = windowSize;
+        channel = FileChannel.open(Path.of(file), StandardOpenOption.READ);
+        size = channel.size();
+        prefetcher = null;
+        map(0);
+    }
+
+    /**
+     * Constructor for the SourceReader, for a file or stream that is read into blocks on another thread.
+     * @param input The file or stream
+     */
+    private SourceReader(ReadableByteChannel input)
+    {
+        channel = null;
+        prefetcher = new SourcePrefetcher(input);
+        size = 0;
+        windowSize = 0;
+        buffer = ByteBuffer.allocate(0);
+    }
+
+    /**
+     * Create a reader whose file is read on another thread while its lines are read, a block ahead of them (so no
+     * window has to be mapped and the lines can be as long as they need to be).
+     * @param file The file to read
+     * @return The reader
+     * @throws IOException If the file cannot be opened
+     */
+    public static SourceReader pipelined(String file) throws IOException
+    {
+        return new SourceReader(FileChannel.open(Path.of(file), StandardOpenOption.READ));
+    }
+
+    /**
+     * Create a reader of a stream, whose lines can be read as soon as they have come in.
+     * @param input The stream (it is closed by close)
+     * @return The reader
+     */
+    public static SourceReader pipelined(ReadableByteChannel input)
+    {
+        return new SourceReader(input);
+    }
+
+    /**
+     * Constructor for the SourceReader, for a source that is already in memory.
+     * @param source The source, from its position to its limit (the position of the buffer is not changed)
+     */
+    public SourceReader(ByteBuffer source)
+    {
+        channel = null;
+        buffer = source.slice();
+        size = buffer.limit();
+        windowSize = buffer.limit();
+        prefetcher = null;
+    }
+
+    /**
+     * Map the part of the file that starts at the given file position.
+     * @param start The file position
+     * @throws IOException If the file cannot be mapped
+     */
+    private void map(long start) throws IOException
+    {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+        windowStart = start;
+        position = 0;
+    }
+
+    /**
+     * Read the mapped part of the file into memory now, rather than while its lines are read (e.g. so that the time
+     * spent reading it can be measured on its own).
+     */
+    public void load()
+    {
+        if(buffer instanceof MappedByteBuffer)
+            ((MappedByteBuffer) buffer).load();
+    }
+
+    /**
+     * Move to the next line of the file.
+     * @return true if there was another line, false if the end of the file has been reached
+     * @throws IOException If the next part of the file cannot be mapped or read, or if the line does not fit in a
+     *                     window
+     */
+    public boolean nextLine() throws IOException
+    {
+        while(true)
+        {
+            int limit = buffer.limit();
+            boolean lastWindow = prefetcher!=null || windowStart + limit == size; //a block only holds whole lines
+            if(position==limit && lastWindow)
+            {
+                if(prefetcher==null)
+                    return false;
+                ByteBuffer block = prefetcher.next(buffer.capacity()>0 ? buffer : null);
+                if(block==null)
+                {
+                    buffer = ByteBuffer.allocate(0);
+                    position = 0;
+                    return false;
+                }
+                buffer = block;
+                position = 0;
+                continue;
+            }
+
+            int end = position;
+            while(end<limit && buffer.get(end)!='\n' && buffer.get(end)!='\r')
+                end++;
+
+            //A line is complete if its end is in this window (a '\r' at the very end of the window could still be
+            //followed by a '\n' in the next one)
+            if(lastWindow || end<limit-1 || (end==limit-1 && buffer.get(end)=='\n'))
+            {
+                lineStart = position;
+                lineEnd = end;
+                lineNumber++;
+
+                if(end<limit && buffer.get(end++)=='\r' && end<limit && buffer.get(end)=='\n')
+                    end++;
+                position = end;
+                return true;
+            }
+
+            if(position==0)
+                throw new IOException("Line "+(lineNumber+1)+" is longer than "+windowSize+" bytes.");
+            map(windowStart + position);
+        }
+    }
+
+    /**
+     * Go back to the beginning of the file.
+     * @throws IOException If the beginning of the file cannot be mapped, or if the reader is pipelined
+     */
+    public void rewind() throws IOException
+    {
+        if(prefetcher!=null)
+            throw new IOException("A pipelined source cannot be read again.");
+        if(windowStart==0)
+            position = 0;
+        else
+            map(0);
+        lineNumber = 0;
+    }
+
+    /**
+     * Check if the current line is the last one of the lines read so far, so that reading the next one may have to wait
+     * (only a pipelined reader ever has to).
+     * @return true if it is, false otherwise
+     */
+    public boolean endsBlock()
+    {
+        return prefetcher!=null && position==buffer.limit();
+    }
+
+    /**
+     * Get the buffer that holds the current line.
+     * @return The buffer
+     */
+    public ByteBuffer buffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Get the buffer position of the first byte of the current line.
+     * @return The position
+     */
+    public int lineStart()
+    {
+        return lineStart;
+    }
+
+    /**
+     * Get the buffer position right after the last byte of the current line (the line terminator is not included).
+     * @return The position
+     */
+    public int lineEnd()
+    {
+        return lineEnd;
+    }
+
+    /**
+     * Get the number of the current line (starting from 1).
+     * @return The line number
+     */
+    public int lineNumber()
+    {
+        return lineNumber;
+    }
+
+    /**
+     * Decode the current line.
+     * @return The current line
+     */
+    public String line()
+    {
+        byte[] bytes = new byte[lineEnd - lineStart];
+        buffer.get(lineStart, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Close the file or stream (if the source is one).
+     * @throws IOException If the file could not be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(prefetcher!=null)
+            prefetcher.close();
+        if(channel!=null)
+            channel.close();
+    }
+}
@@ -0,0 +1,313 @@
+package shack;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The names used by a Shack program (variables, instruction labels and instruction codes).
+ *
+ * Every name is interned once and gets a symbol ID; the IDs are dense (0, 1, 2...) so everything known about a symbol
+ * is kept in arrays indexed by its ID. The names are found through an open-addressing hash table over their bytes, so
+ * looking a name up does not need a String.
+ */
+public class SymbolTable
+{
+    //Symbol kinds (a name can be more than one kind, e.g. a variable and a label, which is an error reported elsewhere)
+    public static final int RAM = 1; //a variable declared in .dec
+    public static final int ROM = 2; //an instruction label
+    public static final int OPCODE = 4; //an instruction code
+    public static final int REPORTED = 8; //a variable that has already been reported as not declared
+    public static final int MISSING = 16; //a label that has already been reported as not defined
+
+    public static final int NO_ADDRESS = -1;
+    public static final int FIRST_VARIABLE_ADDRESS = 16; //the RAM address of the first variable
+
+    //The symbols the Hack platform defines; a variable with one of these names is given its address
+    private static final HashMap<String, Integer> predefinedSymbols = new HashMap<>(){{
+        for(int i=0; i<16; i++)
+            put("R"+i, i);
+        put("SP", 0);
+        put("LCL", 1);
+        put("ARG", 2);
+        put("THIS", 3);
+        put("THAT", 4);
+        put("SCREEN", 16384);
+        put("KBD", 24576);
+    }};
+
+    private int[] table; //symbol ID + 1 for every slot, 0 for empty slots
+    private int size;
+
+    private byte[][] names;
+    private String[] strings;
+    private int[] hashes;
+    private int[] kinds;
+    private int[] lines;
+    private int[] addresses;
+    private int variableCount;
+
+    /**
+     * Constructor for the SymbolTable.
+     */
+    public SymbolTable()
+    {
+        table = new int[256];
+        names = new byte[64][];
+        strings = new String[64];
+        hashes = new int[64];
+        kinds = new int[64];
+        lines = new int[64];
+        addresses = new int[64];
+    }
+
+    /**
+     * Find a symbol.
+     * @param bytes The buffer that holds the name
+     * @param start The start of the name
+     * @param end The end of the name
+     * @return The symbol ID, or -1 if the name has not been interned
+     */
+    public int find(byte[] bytes, int start, int end)
+    {
+        int hash = hash(bytes, start, end);
+        int mask = table.length - 1;
+        for(int slot=hash & mask; table[slot]!=0; slot=(slot+1) & mask)
+        {
+            int id = table[slot] - 1;
+            if(hashes[id]==hash && Arrays.equals(names[id], 0, names[id].length, bytes, start, end))
+                return id;
+        }
+        return -1;
+    }
+
+    /**
+     * Find a symbol, interning its name if it is not in the table yet.
+     * @param bytes The buffer that holds the name
+     * @param start The start of the name
+     * @param end The end of the name
+     * @return The symbol ID
+     */
+    public int intern(byte[] bytes, int start, int end)
+    {
+        int id = find(bytes, start, end);
+        if(id!=-1)
+            return id;
+
+        if(size==names.length)
+            grow();
+        if((size+1)*2>table.length)
+            rehash(table.length*2);
+
+        id = size++;
+        names[id] = Arrays.copyOfRange(bytes, start, end);
+        strings[id] = new String(names[id], StandardCharsets.UTF_8);
+        hashes[id] = hash(bytes, start, end);
+        addresses[id] = NO_ADDRESS;
+        insert(id);
+        return id;
+    }
+
+    /**
+     * Find a symbol, interning its name if it is not in the table yet.
+     * @param name The name
+     * @return The symbol ID
+     */
+    public int intern(String name)
+    {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return intern(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Make room for more symbols.
+     */
+    private void grow()
+    {
+        int capacity = names.length*2;
+        names = Arrays.copyOf(names, capacity);
+        strings = Arrays.copyOf(strings, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        kinds = Arrays.copyOf(kinds, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        addresses = Arrays.copyOf(addresses, capacity);
+    }
+
+    /**
+     * Rebuild the hash table with the given number of slots.
+     * @param capacity The number of slots (a power of two)
+     */
+    private void rehash(int capacity)
+    {
+        table = new int[capacity];
+        for(int id=0; id<size; id++)
+            insert(id);
+    }
+
+    /**
+     * Put a symbol in the first free slot for its hash.
+     * @param id The symbol ID
+     */
+    private void insert(int id)
+    {
+        int mask = table.length - 1;
+        int slot = hashes[id] & mask;
+        while(table[slot]!=0)
+            slot = (slot+1) & mask;
+        table[slot] = id + 1;
+    }
+
+    /**
+     * Hash a name (FNV-1a, with the high bits mixed into the low ones used for the slot).
+     * @param bytes The buffer that holds the name
+     * @param start The start of the name
+     * @param end The end of the name
+     * @return The hash
+     */
+    private static int hash(byte[] bytes, int start, int end)
+    {
+        int hash = 0x811C9DC5;
+        for(int i=start; i<end; i++)
+            hash = (hash ^ bytes[i]) * 0x01000193;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Declare a symbol as a variable. The variables are given RAM addresses in the order they are declared, except for
+     * the predefined Hack symbols (R0-R15, SP, LCL, ARG, THIS, THAT, SCREEN and KBD), which keep their own.
+     * @param id The symbol ID
+     * @param line The line the variable is declared on
+     * @return true if the variable had not been declared before, false otherwise
+     */
+    public boolean declareVariable(int id, int line)
+    {
+        if(is(id, RAM))
+            return false;
+        int predefined = predefinedAddress(strings[id]);
+        define(id, RAM, line, predefined!=NO_ADDRESS ? predefined : FIRST_VARIABLE_ADDRESS + variableCount++);
+        return true;
+    }
+
+    /**
+     * Get the address of a symbol the Hack platform defines (e.g. R13 or SCREEN).
+     * @param name The name of the symbol
+     * @return The address, or NO_ADDRESS if the Hack platform does not define it
+     */
+    public static int predefinedAddress(String name)
+    {
+        return predefinedSymbols.getOrDefault(name, NO_ADDRESS);
+    }
+
+    /**
+     * Add a kind to a symbol and record where it was defined.
+     * @param id The symbol ID
+     * @param kind The kind
+     * @param line The line the symbol is defined on
+     * @param address The address of the symbol (or NO_ADDRESS)
+     */
+    public void define(int id, int kind, int line, int address)
+    {
+        kinds[id] |= kind;
+        lines[id] = line;
+        addresses[id] = address;
+    }
+
+    /**
+     * Add a kind to a symbol.
+     * @param id The symbol ID
+     * @param kind The kind
+     */
+    public void mark(int id, int kind)
+    {
+        kinds[id] |= kind;
+    }
+
+    /**
+     * Check if a symbol is of the given kind.
+     * @param id The symbol ID (or -1, which is no kind)
+     * @param kind The kind
+     * @return true if it is, false otherwise
+     */
+    public boolean is(int id, int kind)
+    {
+        return id!=-1 && (kinds[id] & kind)!=0;
+    }
+
+    /**
+     * Get the name of a symbol.
+     * @param id The symbol ID
+     * @return The name
+     */
+    public String name(int id)
+    {
+        return strings[id];
+    }
+
+    /**
+     * Get the name of a symbol, encoded as UTF-8.
+     * @param id The symbol ID
+     * @return The encoded name
+     */
+    public byte[] bytes(int id)
+    {
+        return names[id];
+    }
+
+    /**
+     * Get the line a symbol was defined on.
+     * @param id The symbol ID
+     * @return The line number
+     */
+    public int line(int id)
+    {
+        return lines[id];
+    }
+
+    /**
+     * Get the address of a symbol (its RAM address for variables, its ROM address for labels, its Opcode ordinal for
+     * instruction codes).
+     * @param id The symbol ID
+     * @return The address, or NO_ADDRESS if it has none
+     */
+    public int address(int id)
+    {
+        return addresses[id];
+    }
+
+    /**
+     * Set the address of a symbol.
+     * @param id The symbol ID
+     * @param address The address
+     */
+    public void setAddress(int id, int address)
+    {
+        addresses[id] = address;
+    }
+
+    /**
+     * Forget every variable and label, so that the same source can be read again. The symbols keep their IDs, and the
+     * instruction codes stay defined.
+     */
+    public void clearDefinitions()
+    {
+        for(int id=0; id<size; id++)
+        {
+            kinds[id] &= OPCODE;
+            if(kinds[id]==0)
+            {
+                lines[id] = 0;
+                addresses[id] = NO_ADDRESS;
+            }
+        }
+        variableCount = 0;
+    }
+
+    /**
+     * Get the number of symbols.
+     * @return The number of symbols
+     */
+    public int size()
+    {
+        return size;
+    }
+}
@@ -0,0 +1,280 @@
+package shack;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks what the Hack code of the assembler does, by running it on the HackEmulator: the example programs, and small
+ * programs for every kind of LOAD, STO and jump. Every program is assembled in every mode (two-pass and single-pass,
+ * with and without -O and -c).
+ */
+class HackEmulatorTest
+{
+    static final List<String> MODES = List.of("", "-s", "-O", "-c", "-O -c", "-s -O", "-s -c", "-s -O -c");
+    static final long MAX_STEPS = 10_000_000L;
+    static final int SCRATCH = 13; //R13, which the assembler saves A in (and -O may leave alone)
+
+    /**
+     * Get the settings for a mode.
+     * @param mode The command-line flags of the mode, separated by spaces
+     * @param format The output format
+     * @return The settings
+     */
+    static Options options(String mode, Options.Format format)
+    {
+        List<String> flags = List.of(mode.split(" "));
+        Options options = new Options();
+        options.setSinglePass(flags.contains("-s"));
+        options.setOptimizing(flags.contains("-O"));
+        options.setFlowOptimizing(flags.contains("-c"));
+        options.setFormat(format);
+        return options;
+    }
+
+    /**
+     * Assemble Shack source to machine code and load it. The errors of the source are left out, like the command line
+     * leaves their lines out of the output, so the examples (which are full of errors) can be run as well.
+     * @param source The Shack source
+     * @param mode The command-line flags it is assembled with
+     * @return The emulator, with its variables from RAM address 16 up in the order they are declared
+     */
+    static HackEmulator machineCode(String source, String mode)
+    {
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        new EmbeddedAssembler(options(mode, Options.Format.BINARY)).assemble(EmbeddedAssembler.source(source),
+                EmbeddedAssembler.output(code));
+        short[] words = new short[code.size()/2];
+        ByteBuffer.wrap(code.toByteArray()).asShortBuffer().get(words);
+        return new HackEmulator(words, words.length, Map.of());
+    }
+
+    /**
+     * Assemble Shack source that has no errors to Hack assembly code and load it, so its variables can be found by
+     * their names.
+     * @param source The Shack source
+     * @param mode The command-line flags it is assembled with
+     * @return The emulator
+     * @throws IOException If the Hack assembly code cannot be loaded
+     */
+    static HackEmulator assembly(String source, String mode) throws IOException
+    {
+        StringBuilder code = new StringBuilder();
+        AssemblyResult result = new EmbeddedAssembler(options(mode, Options.Format.ASM)).assemble(source, code);
+        assertTrue(result.isSuccessful(), ()->"Errors in "+mode+": "+result.errors());
+        return HackEmulator.fromAssembly(code.toString().lines().toList());
+    }
+
+    /**
+     * Run a program until it halts.
+     * @param emulator The emulator
+     * @param mode The command-line flags it was assembled with
+     */
+    static void runToHalt(HackEmulator emulator, String mode)
+    {
+        emulator.run(MAX_STEPS);
+        assertTrue(emulator.isHalted(), ()->"The program did not halt in "+mode);
+    }
+
+    /**
+     * Get every example program with every mode.
+     * @return The example numbers and modes
+     */
+    static Stream<Arguments> examples()
+    {
+        return IntStream.rangeClosed(1, 5).boxed().flatMap((example)->MODES.stream().map((mode)->
+                Arguments.of(example, mode)));
+    }
+
+    @ParameterizedTest(name = "example{0}.shk [{1}]")
+    @MethodSource("examples")
+    void examplesChangeTheSameRam(int example, String mode) throws IOException
+    {
+        //Every cell starts with a value of its own, so the loads read something that shows up if it is stored
+        HackEmulator emulator = machineCode(Files.readString(Path.of("example"+example+".shk")), mode);
+        for(int address=0; address<256; address++)
+            emulator.setRam(address, 100+address);
+
+        //Examples 4 and 5 end in jumps to numeric addresses, which are somewhere else with -O and -c, so they are only
+        //run for a while
+        emulator.run(MAX_STEPS);
+
+        //Example 5 stores A in 200 (2, from SUBD 2) and in x (200), then D (200) in sum; the others only load
+        Map<Integer, Integer> stored = example==5 ? Map.of(16, 200, 17, 200, 200, 2) : Map.of();
+        for(int address=0; address<256; address++)
+            if(address!=SCRATCH)
+                assertEquals(stored.getOrDefault(address, 100+address), emulator.ram(address),
+                        "RAM["+address+"] of example"+example+".shk "+mode);
+    }
+
+    @ParameterizedTest(name = "[{0}]")
+    @MethodSource("modes")
+    void loadAndStore(String mode) throws IOException
+    {
+        String source = """
+                .dec
+                    x
+                    y
+                    v
+                    w
+                    z
+                .code
+                    LOAD D #5
+                    STO D x
+                    LOAD A #y
+                    STO A z
+                    LOAD A x
+                    LOAD D y
+                    STO D v
+                    LOAD A x
+                    LOAD D y
+                    STO A w
+                    LOAD D 3
+                    LOAD A D
+                    STO A 100
+                    LOAD A 200
+                    LOAD D A
+                    STO D 101
+                    end:
+                    JMP end
+                """;
+        HackEmulator emulator = assembly(source, mode);
+        emulator.setRam(emulator.address("y"), 40);
+        emulator.setRam(3, 30);
+        emulator.setRam(200, 7);
+        runToHalt(emulator, mode);
+
+        assertEquals(5, emulator.ram(emulator.address("x")), "STO D after LOAD D #5");
+        assertEquals(emulator.address("y"), emulator.ram(emulator.address("z")), "STO A after LOAD A #y");
+        assertEquals(40, emulator.ram(emulator.address("v")), "STO D after LOAD D y");
+        assertEquals(5, emulator.ram(emulator.address("w")), "LOAD D y keeps A");
+        assertEquals(30, emulator.ram(100), "STO A after LOAD D 3 and LOAD A D");
+        assertEquals(7, emulator.ram(101), "STO D after LOAD A 200 and LOAD D A");
+    }
+
+    /**
+     * Get the modes.
+     * @return The command-line flags of every mode
+     */
+    static Stream<String> modes()
+    {
+        return MODES.stream();
+    }
+
+    /**
+     * Get every mode with a negative, a zero and a positive value.
+     * @return The modes and values
+     */
+    static Stream<Arguments> modesAndSigns()
+    {
+        return MODES.stream().flatMap((mode)->Stream.of(-3, 0, 4).map((value)->Arguments.of(mode, value)));
+    }
+
+    @ParameterizedTest(name = "[{0}] with n = {1}")
+    @MethodSource("modesAndSigns")
+    void conditionalJumps(String mode, int n) throws IOException
+    {
+        //Every jump either skips the store of its flag or not
+        List<String> jumps = List.of("JGT", "JEQ", "JGE", "JLT", "JNE", "JLE");
+        StringBuilder source = new StringBuilder(".dec\n    n\n");
+        for(String jump: jumps)
+            source.append("    ").append(jump.toLowerCase()).append('\n');
+        source.append(".code\n");
+        for(String jump: jumps)
+            source.append("    LOAD D n\n    ").append(jump).append(" taken").append(jump).append("\n    JMP after")
+                    .append(jump).append("\ntaken").append(jump).append(":\n    LOAD D #1\n    STO D ")
+                    .append(jump.toLowerCase()).append("\nafter").append(jump).append(":\n");
+        source.append("end:\n    JMP end\n");
+
+        HackEmulator emulator = assembly(source.toString(), mode);
+        emulator.setRam(emulator.address("n"), n);
+        runToHalt(emulator, mode);
+
+        boolean[] taken = {n>0, n==0, n>=0, n<0, n!=0, n<=0};
+        for(int i=0; i<jumps.size(); i++)
+            assertEquals(taken[i] ? 1 : 0, emulator.ram(emulator.address(jumps.get(i).toLowerCase())), jumps.get(i));
+    }
+
+    @ParameterizedTest(name = "[{0}]")
+    @MethodSource("modes")
+    void loop(String mode) throws IOException
+    {
+        //The sum of 1 to n, with a jump back to the top and one out of the loop
+        String source = """
+                .dec
+                    n
+                    i
+                    sum
+                .code
+                    CLR
+                    STO D sum
+                    INC
+                    STO D i
+                    top:
+                    LOAD D i
+                    SUBD n
+                    JGT end
+                    LOAD D sum
+                    ADDD i
+                    STO D sum
+                    LOAD D i
+                    INC
+                    STO D i
+                    JMP top
+                    end:
+                    JMP end
+                """;
+        HackEmulator emulator = assembly(source, mode);
+        emulator.setRam(emulator.address("n"), 100);
+        runToHalt(emulator, mode);
+
+        assertEquals(5050, emulator.ram(emulator.address("sum")));
+        assertEquals(101, emulator.ram(emulator.address("i")));
+    }
+
+    @ParameterizedTest(name = "[{0}]")
+    @MethodSource("modes")
+    void droppedJumps(String mode)
+    {
+        //The jumps to a missing label and to a variable declared after them are dropped (with the same errors in every
+        //mode), and the label after them still has to be where its code ended up
+        String source = """
+                .dec
+                    n
+                .code
+                    JMP missing
+                    LOAD D #1
+                    JMP x
+                    STO D n
+                    JMP done
+                    LOAD D #7
+                    STO D n
+                    JMP missing
+                    done:
+                    JMP done
+                .dec
+                    x
+                """;
+        HackEmulator emulator = machineCode(source, mode);
+        runToHalt(emulator, mode);
+        assertEquals(1, emulator.ram(SymbolTable.FIRST_VARIABLE_ADDRESS), "n");
+
+        List<String> errors = new EmbeddedAssembler(options(mode, Options.Format.ASM)).assemble(source,
+                new StringBuilder()).errors().stream().map(AssemblyResult.Diagnostic::message).toList();
+        assertEquals(List.of("RAM label x has been used as a jump destination.",
+                "Instruction label missing has not been defined."), errors);
+    }
+}
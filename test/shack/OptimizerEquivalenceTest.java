@@ -0,0 +1,441 @@
+package shack;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static shack.HackEmulatorTest.MODES;
+import static shack.HackEmulatorTest.SCRATCH;
+import static shack.HackEmulatorTest.machineCode;
+import static shack.HackEmulatorTest.runToHalt;
+
+/**
+ * Checks that -O and -c (and single-pass mode) do not change what a program does: every program is run as it is
+ * assembled in two passes without optimizations and in every other mode, and has to end with the same RAM (apart
+ * from R13, the assembler's own scratch register).
+ */
+class OptimizerEquivalenceTest
+{
+    private static final int PROGRAMS = 200;
+    private static final int STRAIGHT_PROGRAMS = 20;
+    private static final int RAM_USED = 256; //the generated programs only use addresses below this
+
+    /**
+     * Run a program in every mode and check that it ends with the same RAM as without optimizations.
+     * @param source The Shack source
+     * @param ram The values of the RAM before the program runs, from address 0 up
+     * @param modes The modes compared with two-pass mode without optimizations
+     */
+    private static void assertSameRam(String source, short[] ram, List<String> modes)
+    {
+        short[] expected = run(source, ram, "");
+        for(String mode: modes)
+        {
+            short[] actual = run(source, ram, mode);
+            for(int address=0; address<HackEmulator.RAM_SIZE; address++)
+                if(address!=SCRATCH && expected[address]!=actual[address])
+                    assertEquals(expected[address], actual[address], "RAM["+address+"] in "+mode+" of\n"+source);
+        }
+    }
+
+    /**
+     * Run a program until it halts.
+     * @param source The Shack source
+     * @param ram The values of the RAM before the program runs, from address 0 up
+     * @param mode The command-line flags it is assembled with
+     * @return The RAM it ends with
+     */
+    private static short[] run(String source, short[] ram, String mode)
+    {
+        HackEmulator emulator = machineCode(source, mode);
+        for(int address=0; address<ram.length; address++)
+            emulator.setRam(address, ram[address]);
+        runToHalt(emulator, mode);
+
+        short[] result = new short[HackEmulator.RAM_SIZE];
+        for(int address=0; address<result.length; address++)
+            result[address] = emulator.ram(address);
+        return result;
+    }
+
+    /**
+     * Get the modes that are compared with two-pass mode without optimizations.
+     * @return The command-line flags of every mode
+     */
+    private static List<String> optimizedModes()
+    {
+        return MODES.subList(1, MODES.size());
+    }
+
+    /**
+     * Get the seeds of the generated programs.
+     * @return The seeds
+     */
+    static Stream<Integer> seeds()
+    {
+        return IntStream.range(0, PROGRAMS).boxed();
+    }
+
+    @ParameterizedTest(name = "seed {0}")
+    @MethodSource("seeds")
+    void generatedPrograms(int seed)
+    {
+        Random random = new Random(seed);
+        String source = new ProgramGenerator(random, false).generate(random.nextInt(10, 60));
+        assertSameRam(source, randomRam(random), optimizedModes());
+    }
+
+    /**
+     * Get the seeds of the generated programs without jumps.
+     * @return The seeds
+     */
+    static Stream<Integer> straightSeeds()
+    {
+        return IntStream.range(0, STRAIGHT_PROGRAMS).boxed();
+    }
+
+    @ParameterizedTest(name = "seed {0}")
+    @MethodSource("straightSeeds")
+    void longStraightPrograms(int seed)
+    {
+        //Without labels, -O holds back as much code as it can at once, so a LOAD D can be cut off from its restore of A
+        Random random = new Random(seed);
+        String source = new ProgramGenerator(random, true).generate(500);
+        assertSameRam(source, randomRam(random), optimizedModes());
+    }
+
+    /**
+     * Get values for the RAM the generated programs use.
+     * @param random Where the values come from
+     * @return The values, from address 0 up
+     */
+    private static short[] randomRam(Random random)
+    {
+        short[] ram = new short[RAM_USED];
+        for(int address=0; address<ram.length; address++)
+            ram[address] = (short) random.nextInt(-100, 100);
+        return ram;
+    }
+
+    /**
+     * Get a negative and a positive value for n.
+     * @return The values
+     */
+    static Stream<Arguments> signs()
+    {
+        return Stream.of(Arguments.of(-1), Arguments.of(1));
+    }
+
+    @ParameterizedTest(name = "n = {0}")
+    @MethodSource("signs")
+    void fallThrough(int n)
+    {
+        //a is a jump-only block that the code before it also falls into, dead is only fallen into from code that cannot
+        //be reached, and c and d are a chain of jumps
+        String source = """
+                .dec
+                    n
+                    x
+                    y
+                    z
+                .code
+                    LOAD D n
+                    JGT a
+                    LOAD D #1
+                    STO D x
+                    a:
+                    JMP b
+                    LOAD D #2
+                    dead:
+                    STO D y
+                    b:
+                    LOAD D n
+                    JLT c
+                    LOAD D #3
+                    STO D z
+                    c:
+                    JMP d
+                    d:
+                    JMP end
+                    STO D y
+                    end:
+                    JMP end
+                """;
+        short[] ram = new short[RAM_USED];
+        ram[16] = (short) n;
+        assertSameRam(source, ram, optimizedModes());
+
+        short[] result = run(source, ram, "-O -c");
+        assertEquals(n>0 ? 0 : 1, result[17], "x");
+        assertEquals(0, result[18], "y");
+        assertEquals(n<0 ? 0 : 3, result[19], "z");
+    }
+
+    @ParameterizedTest(name = "[{0}]")
+    @MethodSource("shack.HackEmulatorTest#modes")
+    void numericJumpToTheStart(String mode)
+    {
+        //Address 0 is the start of the program in every mode, so the loop runs 10 times whatever moves
+        String source = """
+                .dec
+                    count
+                .code
+                    LOAD D count
+                    INC
+                    STO D count
+                    SUBD #10
+                    JLT 0
+                    end:
+                    JMP end
+                """;
+        assertEquals(10, run(source, new short[0], mode)[16]);
+    }
+
+    @ParameterizedTest(name = "[{0}]")
+    @MethodSource("controlFlowModes")
+    void numericJumpKeepsEveryBlock(String mode)
+    {
+        //The block the numeric jump goes to follows a JMP and has no label, so only the jump reaches it; -c keeps it
+        //where it was, since -c on its own does not move any instruction of this program
+        String skipped = """
+                .dec
+                    a
+                    b
+                    c
+                .code
+                    LOAD D #1
+                    STO D a
+                    JMP %d
+                    LOAD D #9
+                    STO D b
+                    JMP end
+                """;
+        String target = """
+                    LOAD D #2
+                    STO D c
+                    JMP end
+                    end:
+                    JMP end
+                """;
+        //The target is where the code before it ends, without the two words of the halt it is given to be assembled
+        int address = machineCode(skipped.formatted(0)+"end:\n    JMP end\n", "").length() - 2;
+        String source = skipped.formatted(address)+target;
+        assertSameRam(source, new short[0], List.of(mode));
+
+        short[] result = run(source, new short[0], mode);
+        assertEquals(1, result[16], "a");
+        assertEquals(0, result[17], "b");
+        assertEquals(2, result[18], "c");
+    }
+
+    /**
+     * Get the modes in which -c is the only optimization.
+     * @return The command-line flags of the modes
+     */
+    static Stream<String> controlFlowModes()
+    {
+        return Stream.of("-c", "-s -c");
+    }
+
+    @ParameterizedTest(name = "[{0}]")
+    @MethodSource("shack.HackEmulatorTest#modes")
+    void scratchRegister(String mode)
+    {
+        //LOAD D saves A in R13 when A is read after it, even past a label that nothing jumps to, and a program that
+        //writes R13 itself only loses that value
+        String source = """
+                .dec
+                    n
+                    w
+                    x
+                .code
+                    LOAD D #7
+                    STO D 13
+                    LOAD A #x
+                    LOAD D n
+                    here:
+                    STO A w
+                    LOAD D n
+                    STO D x
+                    end:
+                    JMP end
+                """;
+        short[] ram = new short[RAM_USED];
+        ram[16] = 5;
+        short[] result = run(source, ram, mode);
+        assertEquals(18, result[17], "w");
+        assertEquals(5, result[18], "x");
+        assertSameRam(source, ram, optimizedModes());
+    }
+
+    /**
+     * Generates Shack programs that always halt: every jump goes forward, except the one at the end of a loop, whose
+     * counter is only changed by the loop itself. The code is full of what the optimizers work on: conditional jumps,
+     * jumps to jump-only blocks, code after a JMP that no label reaches, labels that are only fallen into, and
+     * LOAD D between a LOAD A and the STO A or LOAD D A that reads A.
+     */
+    private static class ProgramGenerator
+    {
+        private static final List<String> CONDITIONS = List.of("JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP");
+        private static final List<String> OPERATIONS = List.of("ADDD", "SUBD", "ANDD", "ORD");
+        private static final List<String> UNARY = List.of("INC", "DEC", "CLR", "NEG", "NOT");
+        private static final int VARIABLES = 6;
+        private static final int MAX_DEPTH = 2;
+
+        private final Random random;
+        private final boolean straight; //true for code without any jumps or labels
+        private final StringBuilder code = new StringBuilder();
+        private int labels;
+
+        /**
+         * Constructor for the ProgramGenerator
+         * @param random Where the choices come from
+         * @param straight true for code without any jumps or labels, false otherwise
+         */
+        private ProgramGenerator(Random random, boolean straight)
+        {
+            this.random = random;
+            this.straight = straight;
+        }
+
+        /**
+         * Generate a program.
+         * @param length The number of statements outside loops
+         * @return The Shack source
+         */
+        private String generate(int length)
+        {
+            code.append(".dec\n");
+            for(int i=0; i<VARIABLES; i++)
+                code.append("    v").append(i).append('\n');
+            for(int i=0; i<MAX_DEPTH; i++)
+                code.append("    k").append(i).append('\n');
+            code.append(".code\n");
+            block(length, 0);
+            code.append("end:\n    JMP end\n");
+            return code.toString();
+        }
+
+        /**
+         * Generate a block of code. Its jumps only go to labels further down in the block.
+         * @param length The number of statements
+         * @param depth The number of loops around it
+         */
+        private void block(int length, int depth)
+        {
+            ArrayList<String> pending = new ArrayList<>(); //the labels jumped to, which are still to be placed
+            for(int i=0; i<length; i++)
+            {
+                int choice = straight ? random.nextInt(7, 16) : random.nextInt(16);
+                if(choice<2) //a conditional or unconditional jump
+                {
+                    String label = "l"+labels++;
+                    pending.add(label);
+                    line(CONDITIONS.get(random.nextInt(CONDITIONS.size()))+" "+label);
+                }
+                else if(choice<4 && !pending.isEmpty()) //a label, which the code before may also fall into
+                    code.append(pending.remove(random.nextInt(pending.size()))).append(":\n");
+                else if(choice<5 && !pending.isEmpty()) //a jump-only block
+                {
+                    String label = "l"+labels++;
+                    code.append(pending.remove(random.nextInt(pending.size()))).append(":\n");
+                    line("JMP "+label);
+                    pending.add(label);
+                }
+                else if(choice<6) //a label that nothing jumps to
+                    code.append("l").append(labels++).append(":\n");
+                else if(choice<7 && depth<MAX_DEPTH)
+                    loop(length/2, depth);
+                else if(choice<9) //A is set and read again, possibly with a LOAD D in between
+                {
+                    line(random.nextBoolean() ? "LOAD A D" : "LOAD A "+source());
+                    if(random.nextBoolean())
+                        line("LOAD D "+source());
+                    line(random.nextBoolean() ? "STO A "+destination() : "LOAD D A");
+                }
+                else if(choice<11)
+                    line("LOAD D "+source());
+                else if(choice<13)
+                    line("STO D "+destination());
+                else if(choice<15)
+                    line(OPERATIONS.get(random.nextInt(OPERATIONS.size()))+" "+source());
+                else
+                    line(UNARY.get(random.nextInt(UNARY.size())));
+            }
+            for(String label: pending)
+                code.append(label).append(":\n");
+        }
+
+        /**
+         * Generate a loop that runs 1 to 3 times.
+         * @param length The number of statements in its body
+         * @param depth The number of loops around it
+         */
+        private void loop(int length, int depth)
+        {
+            String counter = "k"+depth;
+            String top = "l"+labels++;
+            line("LOAD D #"+random.nextInt(1, 4));
+            line("STO D "+counter);
+            code.append(top).append(":\n");
+            block(length, depth+1);
+            line("LOAD D "+counter);
+            line("DEC");
+            line("STO D "+counter);
+            line("JGT "+top);
+        }
+
+        /**
+         * Get an operand to read: a variable, a number, the address of a variable or a RAM address (never R13, which
+         * the assembler uses).
+         * @return The operand
+         */
+        private String source()
+        {
+            return switch(random.nextInt(4))
+            {
+                case 0 -> "v"+random.nextInt(VARIABLES);
+                case 1 -> "#"+random.nextInt(20);
+                case 2 -> "#v"+random.nextInt(VARIABLES);
+                default -> String.valueOf(address());
+            };
+        }
+
+        /**
+         * Get an operand to write to: a variable or a RAM address (R13 included, since a program may write it).
+         * @return The operand
+         */
+        private String destination()
+        {
+            if(random.nextInt(8)==0)
+                return String.valueOf(SCRATCH);
+            return random.nextBoolean() ? "v"+random.nextInt(VARIABLES) : String.valueOf(address());
+        }
+
+        /**
+         * Get a RAM address other than R13 and the variables.
+         * @return The address
+         */
+        private int address()
+        {
+            int address = random.nextInt(14);
+            return address<SCRATCH ? address : random.nextInt(100, 110);
+        }
+
+        /**
+         * Add an instruction.
+         * @param instruction The instruction
+         */
+        private void line(String instruction)
+        {
+            code.append("    ").append(instruction).append('\n');
+        }
+    }
+}